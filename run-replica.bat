@@ -0,0 +1,10 @@
+@echo off
+chcp 65001 >nul
+set PORT=%1
+if "%PORT%"=="" set PORT=5060
+title ReplicaServer:%PORT%
+echo === Starting ReplicaServer on %PORT% (writes go to 127.0.0.1:5050) ===
+java -Dmetrics.port=0 -Dreplica.primary=127.0.0.1:5050 -cp out server.app.ReplicaServer %PORT%
+echo.
+echo (Replica stopped)
+pause
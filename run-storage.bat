@@ -0,0 +1,10 @@
+@echo off
+chcp 65001 >nul
+set PORT=%1
+if "%PORT%"=="" set PORT=5055
+title StorageDaemon:%PORT%
+echo === Starting StorageDaemon on %PORT% ===
+java -cp out server.app.StorageDaemon %PORT%
+echo.
+echo (Storage daemon stopped)
+pause
@@ -1,24 +1,31 @@
 package client.app;
 
-import server.domain.employees.EmployeeDirectory;
-import server.domain.employees.PasswordPolicy;
-import server.shared.Branch;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Console client with numeric menus.
  * Connects to StoreServer (127.0.0.1:5050) and uses text protocol:
- *   LOGIN, LOGOUT, LIST, BUY, SELL, CUSTOMER_ADD, CUSTOMER_LIST
+ *   LOGIN, LOGOUT, LIST, BUY, SELL, CHECKOUT, CUSTOMER_ADD, CUSTOMER_LIST
+ *   admin: EMPLOYEE_LIST, EMPLOYEE_ADD, EMPLOYEE_DELETE, POLICY_GET, POLICY_SET
+ * Everything, including the branch list, comes from the server: the client
+ * reads no data files.
+ * Store writes go out as "REQ <id> <command>": if the connection drops before
+ * the reply, or no reply comes within -Dclient.read.timeout.millis (default
+ * 30000), the client reconnects, logs in again with RESUME (the server may
+ * not have noticed the old connection is gone) and resends the same id, and
+ * the server answers a request it already ran with its first reply.
  * Also supports ChatServer (127.0.0.1:6060) for chat.
  */
 public class ClientConsole {
@@ -26,6 +33,8 @@ public class ClientConsole {
     private static final String HOST = "127.0.0.1";
     private static final int STORE_PORT = 5050;
     private static final int CHAT_PORT  = 6060; // ChatServer should run here
+    private static final int WRITE_ATTEMPTS = 4;
+    private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("client.read.timeout.millis", 30_000);
 
     private final Scanner in = new Scanner(System.in);
     private Socket socket;
@@ -33,8 +42,13 @@ public class ClientConsole {
     private PrintWriter writer;
 
     private String loggedUsername = null;
+    private String loginLine = null;        // sent again after a reconnect
     private String role = null;             // "admin" or "employee"
-    private Branch employeeBranch = null;   // set for employees
+    private String employeeBranch = null;   // set for employees
+    private List<String> branches = new ArrayList<>(); // from BRANCHES
+
+    private static record Employee(String id, String username, String role, String branch,
+                                   String accountNumber, String phone) {}
     private String employeeRole = null;     // SALESPERSON/CASHIER/SHIFT_MANAGER (info only)
 
     public static void main(String[] args) {
@@ -47,6 +61,7 @@ public class ClientConsole {
             connectToStore();
             String welcome = reader.readLine(); // "OK WELCOME"
             if (welcome != null) System.out.println(welcome);
+            loadBranches();
 
             if (!loginScreen()) {
                 System.out.println("Login failed. Exiting.");
@@ -69,10 +84,63 @@ public class ClientConsole {
     // -------------------- Store connection --------------------
     private void connectToStore() throws IOException {
         socket = new Socket(HOST, STORE_PORT);
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS); // a silently dropped link fails the read instead of hanging
+        socket.setKeepAlive(true);
         reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
     }
 
+    /**
+     * Sends a store write with a new request id and returns the reply lines,
+     * the last being the OK/ERR line. On a lost connection (or while the server
+     * still runs the first try) the same request is sent again.
+     */
+    private List<String> sendWrite(String command) throws IOException {
+        String request = "REQ " + UUID.randomUUID() + " " + command;
+        IOException failure = null;
+        for (int attempt = 0; attempt < WRITE_ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) {
+                    sleepQuietly(500L * attempt);
+                    if (failure != null) reconnectStore();
+                }
+                writer.println(request);
+                if (writer.checkError()) throw new IOException("Connection lost");
+                List<String> reply = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    reply.add(line);
+                    if (line.startsWith("OK") || line.startsWith("ERR")) break;
+                }
+                if (line == null) throw new IOException("Connection lost");
+                if (!"ERR IN_PROGRESS".equals(line)) return reply;
+                failure = null;
+            } catch (IOException e) {
+                failure = e;
+                System.out.println("Connection lost, retrying...");
+            }
+        }
+        throw failure != null ? failure : new IOException("Server is still processing the request");
+    }
+
+    private void reconnectStore() throws IOException {
+        safeCloseStore();
+        connectToStore();
+        reader.readLine(); // OK WELCOME
+        if (loginLine == null) return;
+        writer.println(loginLine + " RESUME"); // takes the session over from the dropped connection
+        String resp = reader.readLine();
+        if (resp == null || !resp.startsWith("OK LOGIN")) throw new IOException("Login again failed: " + resp);
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void safeCloseStore() {
         try {
             if (writer != null) writer.flush();
@@ -95,14 +163,13 @@ public class ClientConsole {
             String resp = reader.readLine();
             if (resp != null && resp.startsWith("OK LOGIN")) {
                 loggedUsername = username;
+                loginLine = "LOGIN " + username + " " + password + " " + role;
 
                 if ("employee".equals(role)) {
-                    
-                    EmployeeDirectory directory = new EmployeeDirectory();
-                    EmployeeDirectory.EmployeeRecord rec = directory.findByUsername(username)
-                            .orElseThrow(() -> new IllegalStateException("Employee not found in directory"));
-                    employeeBranch = rec.branch();
-                    employeeRole   = rec.role();
+                    String[] p = resp.split(" "); // OK LOGIN <ROLE> <BRANCH>
+                    if (p.length < 4) throw new IOException("Server did not send the employee's branch");
+                    employeeRole   = p[2];
+                    employeeBranch = p[3];
                     System.out.println("Login successful as " + prettyEmployeeRole(employeeRole));
                     System.out.println("Your branch: " + employeeBranch);
                 } else {
@@ -139,8 +206,6 @@ public class ClientConsole {
 
     // -------------------- Admin Menu --------------------
     private void adminMenuLoop() throws IOException {
-        EmployeeDirectory directory = new EmployeeDirectory();
-
         while (true) {
             System.out.println("\n-- Admin Menu --");
             System.out.println("1) List inventory (choose branch)");
@@ -148,6 +213,8 @@ public class ClientConsole {
             System.out.println("3) Set password policy");
             System.out.println("4) List employees");
             System.out.println("5) Delete employee by ID");
+            System.out.println("6) Server statistics");
+            System.out.println("7) Sales report");
             System.out.println("0) Logout");
             System.out.print("Choice: ");
             String c = in.nextLine().trim();
@@ -157,20 +224,26 @@ public class ClientConsole {
                     logout();
                     return;
                 case "1":
-                    Branch branch = askBranch();
+                    String branch = askBranch();
                     doList(branch);
                     break;
                 case "2":
-                    addEmployeeFlow(directory);
+                    addEmployeeFlow();
                     break;
                 case "3":
                     setPasswordPolicyFlow();
                     break;
                 case "4":
-                    listEmployeesFlow(directory);
+                    listEmployeesFlow();
                     break;
                 case "5":
-                    deleteEmployeeFlow(directory);
+                    deleteEmployeeFlow();
+                    break;
+                case "6":
+                    doStats();
+                    break;
+                case "7":
+                    doReport();
                     break;
                 default:
                     System.out.println("Invalid choice.");
@@ -178,61 +251,66 @@ public class ClientConsole {
         }
     }
 
-    private void addEmployeeFlow(EmployeeDirectory directory) {
-        try {
-            System.out.println("\n=== Add Employee ===");
-            System.out.print("Username: ");
-            String username = in.nextLine().trim();
+    private void addEmployeeFlow() throws IOException {
+        System.out.println("\n=== Add Employee ===");
+        System.out.print("Username: ");
+        String username = in.nextLine().trim();
 
-            String password = readPassword("Password: ");
-            String confirm  = readPassword("Confirm password: ");
-            if (!password.equals(confirm)) {
-                System.out.println("Passwords do not match.");
-                return;
-            }
+        String password = readPassword("Password: ");
+        String confirm  = readPassword("Confirm password: ");
+        if (!password.equals(confirm)) {
+            System.out.println("Passwords do not match.");
+            return;
+        }
 
-            String roleCode = askRole();     // SALESPERSON/CASHIER/SHIFT_MANAGER
-            Branch branch = askBranch();     // HOLON/TEL_AVIV/RISHON
+        if (username.isEmpty() || username.contains(" ") || password.isEmpty() || password.contains(" ")) {
+            System.out.println("Username and password are required and cannot contain spaces.");
+            return;
+        }
 
-            System.out.print("Account number: ");
-            String accountNumber = in.nextLine().trim();
-            System.out.print("Phone: ");
-            String phone = in.nextLine().trim();
+        String roleCode = askRole();     // SALESPERSON/CASHIER/SHIFT_MANAGER
+        String branch = askBranch();     // one of the server's branches
 
-            EmployeeDirectory.EmployeeRecord rec =
-                    directory.addEmployee(username, password, roleCode, branch, accountNumber, phone);
-            System.out.println("Employee added. ID=" + rec.employeeId() + ", Username=" + rec.username()
-                    + ", Role=" + rec.role() + ", Branch=" + rec.branch());
+        System.out.print("Account number: ");
+        String accountNumber = in.nextLine().trim();
+        System.out.print("Phone: ");
+        String phone = in.nextLine().trim();
 
-        } catch (IllegalArgumentException ex) {
-            System.out.println("Failed: " + ex.getMessage());
-            showPolicyHintIfRelevant(ex.getMessage());
-        } catch (Exception e) {
-            System.out.println("Failed: " + e.getMessage());
+        writer.println("EMPLOYEE_ADD " + username + " " + password + " " + roleCode + " " + branch + " "
+                + (accountNumber.isEmpty() ? "-" : accountNumber) + " " + (phone.isEmpty() ? "-" : phone));
+        String resp = reader.readLine();
+        if (resp != null && resp.startsWith("OK EMPLOYEE_ADDED ")) {
+            System.out.println("Employee added. ID=" + resp.substring(18) + ", Username=" + username
+                    + ", Role=" + roleCode + ", Branch=" + branch);
+        } else {
+            String msg = resp == null ? "No response" : resp.replaceFirst("^ERR ", "").replace('_', ' ');
+            System.out.println("Failed: " + msg);
+            showPolicyHintIfRelevant(msg);
         }
     }
 
-    private void deleteEmployeeFlow(EmployeeDirectory directory) {
+    private void deleteEmployeeFlow() throws IOException {
         System.out.println("\n=== Delete Employee ===");
         System.out.print("Employee ID to delete: ");
         String id = in.nextLine().trim();
 
-        java.util.Optional<EmployeeDirectory.EmployeeRecord> recOpt = directory.findById(id);
-        if (!recOpt.isPresent()) {
+        Employee r = null;
+        for (Employee e : fetchEmployees()) if (e.id().equals(id)) r = e;
+        if (r == null) {
             System.out.println("Employee not found: " + id);
             return;
         }
-        EmployeeDirectory.EmployeeRecord r = recOpt.get();
                 displayEmployeeDeleteConfirmation(r);
         if (!askYesNo("Are you sure? (y/n): ")) {
             System.out.println("Cancelled.");
             return;
         }
-        boolean ok = directory.deleteById(id);
-        System.out.println(ok ? "Employee deleted." : "Delete failed.");
+        writer.println("EMPLOYEE_DELETE " + id);
+        String resp = reader.readLine();
+        System.out.println("OK EMPLOYEE_DELETED".equals(resp) ? "Employee deleted." : "Delete failed.");
     }
 
-    private void setPasswordPolicyFlow() {
+    private void setPasswordPolicyFlow() throws IOException {
         System.out.println("\n=== Password Policy ===");
         displayPasswordPolicy();
 
@@ -240,15 +318,28 @@ public class ClientConsole {
         boolean needDigit  = askYesNo("Require digit? (y/n): ");
         boolean needLetter = askYesNo("Require letter? (y/n): ");
 
-        PasswordPolicy.configure(min, needDigit, needLetter);
-        System.out.println("Policy updated and saved.");
+        writer.println("POLICY_SET " + min + " " + needDigit + " " + needLetter);
+        String resp = reader.readLine();
+        System.out.println("OK POLICY_SET".equals(resp) ? "Policy updated and saved." : (resp == null ? "No response" : resp));
+    }
+
+    private void listEmployeesFlow() throws IOException {
+        displayEmployeesTable(fetchEmployees());
     }
 
-    private void listEmployeesFlow(EmployeeDirectory directory) {
-        displayEmployeesTable(directory.listAll());
+    private List<Employee> fetchEmployees() throws IOException {
+        writer.println("EMPLOYEE_LIST");
+        List<Employee> out = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null && line.startsWith("EMP ")) {
+            String[] t = line.substring(4).split(",", -1); // id,username,role,branch,account,phone
+            if (t.length >= 6) out.add(new Employee(t[0], t[1], t[2], t[3], t[4], t[5]));
+        }
+        if (line != null && line.startsWith("ERR")) System.out.println(line);
+        return out;
     }
     
-    private void displayEmployeesTable(java.util.List<EmployeeDirectory.EmployeeRecord> employees) {
+    private void displayEmployeesTable(java.util.List<Employee> employees) {
         if (employees.isEmpty()) {
             System.out.println("No employees found.");
             return;
@@ -264,10 +355,10 @@ public class ClientConsole {
         System.out.println("-".repeat(85));
         
         // Print each employee
-        for (EmployeeDirectory.EmployeeRecord r : employees) {
+        for (Employee r : employees) {
             String role = prettyEmployeeRole(r.role());
             System.out.printf("%-5s %-15s %-18s %-12s %-15s %-15s%n",
-                r.employeeId(), r.username(), role, r.branch(), r.accountNumber(), r.phone());
+                r.id(), r.username(), role, r.branch(), r.accountNumber(), r.phone());
         }
         
         System.out.println("-".repeat(85));
@@ -275,7 +366,7 @@ public class ClientConsole {
         System.out.println("=".repeat(85) + "\n");
     }
 
-    private void showPolicyHintIfRelevant(String msg) {
+    private void showPolicyHintIfRelevant(String msg) throws IOException {
         if (msg != null && msg.toLowerCase().contains("password")) {
             displayPasswordPolicy();
         }
@@ -332,6 +423,9 @@ public class ClientConsole {
             System.out.println("2) Order product to branch");
             System.out.println("3) Add new product to inventory");
             System.out.println("4) Remove product from stock");
+            System.out.println("5) Checkout cart (several products)");
+            System.out.println("6) Find product in all branches");
+            System.out.println("7) Transfer stock from another branch");
             System.out.println("0) Back");
             System.out.print("Choice: ");
             String c = in.nextLine().trim();
@@ -340,6 +434,9 @@ public class ClientConsole {
             else if ("2".equals(c)) doBuy(employeeBranch);
             else if ("3".equals(c)) doAddProduct(employeeBranch);
             else if ("4".equals(c)) doRemoveProduct(employeeBranch);
+            else if ("5".equals(c)) doCheckout(employeeBranch);
+            else if ("6".equals(c)) doStockWhere();
+            else if ("7".equals(c)) doTransfer(employeeBranch);
             else System.out.println("Invalid choice.");
         }
     }
@@ -374,9 +471,8 @@ public class ClientConsole {
         String type = "NEW"; // Default to NEW customer type
 
         String nameToken = fullName.replace(' ', '_');
-        writer.println("CUSTOMER_ADD " + id + " " + nameToken + " " + phone + " " + type);
-        String resp = reader.readLine();
-        System.out.println(resp == null ? "No response" : resp.replace('_', ' '));
+        List<String> reply = sendWrite("CUSTOMER_ADD " + id + " " + nameToken + " " + phone + " " + type);
+        System.out.println(reply.get(reply.size() - 1).replace('_', ' '));
     }
 
     private void doListCustomers() throws IOException {
@@ -443,12 +539,12 @@ public class ClientConsole {
         System.out.println("=".repeat(50) + "\n");
     }
     
-    private void displayEmployeeDeleteConfirmation(EmployeeDirectory.EmployeeRecord r) {
+    private void displayEmployeeDeleteConfirmation(Employee r) {
         System.out.println("\n" + "=".repeat(60));
         System.out.println("                    EMPLOYEE DELETE CONFIRMATION");
         System.out.println("=".repeat(60));
         
-        System.out.printf("%-20s %s%n", "ID:", r.employeeId());
+        System.out.printf("%-20s %s%n", "ID:", r.id());
         System.out.printf("%-20s %s%n", "Username:", r.username());
         System.out.printf("%-20s %s%n", "Role:", prettyEmployeeRole(r.role()));
         System.out.printf("%-20s %s%n", "Branch:", r.branch());
@@ -456,14 +552,21 @@ public class ClientConsole {
         System.out.println("=".repeat(60));
     }
     
-    private void displayPasswordPolicy() {
+    private void displayPasswordPolicy() throws IOException {
+        writer.println("POLICY_GET");
+        String resp = reader.readLine(); // OK POLICY <minLength> <requireDigit> <requireLetter>
+        String[] p = resp == null ? new String[0] : resp.split(" ");
+        if (p.length < 5 || !resp.startsWith("OK POLICY ")) {
+            System.out.println(resp == null ? "No response" : resp);
+            return;
+        }
         System.out.println("\n" + "=".repeat(55));
         System.out.println("                    CURRENT PASSWORD POLICY");
         System.out.println("=".repeat(55));
         
-        System.out.printf("%-25s %s%n", "Minimum length:", PasswordPolicy.minimumLength());
-        System.out.printf("%-25s %s%n", "Require digit:", PasswordPolicy.requireDigit());
-        System.out.printf("%-25s %s%n", "Require letter:", PasswordPolicy.requireLetter());
+        System.out.printf("%-25s %s%n", "Minimum length:", p[2]);
+        System.out.printf("%-25s %s%n", "Require digit:", p[3]);
+        System.out.printf("%-25s %s%n", "Require letter:", p[4]);
         
         System.out.println("=".repeat(55));
     }
@@ -495,7 +598,7 @@ public class ClientConsole {
 
             // Identify to chat server
             String myRole = (employeeRole == null ? "SALESPERSON" : employeeRole);
-            String myBranch = (employeeBranch == null ? Branch.HOLON.name() : employeeBranch.name());
+            String myBranch = (employeeBranch == null ? branches.get(0) : employeeBranch);
             chatOut.println("HELLO " + loggedUsername + " " + myRole + " " + myBranch);
             String hello = chatIn.readLine();
             if (hello == null || !hello.startsWith("OK HELLO")) {
@@ -555,6 +658,8 @@ public class ClientConsole {
                 if (isManager) {
                     System.out.println("3) List active conversations");
                     System.out.println("4) Join conversation (Shift Manager)");
+                    System.out.println("5) Conversation history");
+                    System.out.println("6) Search chat history");
                 }
                 System.out.println("0) Back");
                 System.out.print("Choice: ");
@@ -565,9 +670,9 @@ public class ClientConsole {
                     break;
 
                 } else if ("1".equals(c)) {
-                    Branch b = askBranch();
+                    String b = askBranch();
                     paired.set(false); 
-                    chatOut.println("REQUEST_BRANCH " + b.name());
+                    chatOut.println("REQUEST_BRANCH " + b);
                     System.out.println("(Broadcast to branch " + b + " sent; waiting for someone to ACCEPT...)");
                     if (waitForPairing(paired, 15000)) {
                         chatChatLoop(chatOut);
@@ -613,6 +718,22 @@ public class ClientConsole {
                         }
                     }
 
+                } else if (isManager && "5".equals(c)) {
+                    System.out.print("Conversation ID: ");
+                    String id = in.nextLine().trim();
+                    if (!id.isEmpty()) {
+                        chatOut.println("HISTORY " + id);
+                        try { Thread.sleep(300); } catch (InterruptedException ignored) {}
+                    }
+
+                } else if (isManager && "6".equals(c)) {
+                    System.out.print("Search (words, optional from:<user> since:<yyyy-MM-dd> until:<yyyy-MM-dd>): ");
+                    String query = in.nextLine().trim();
+                    if (!query.isEmpty()) {
+                        chatOut.println("SEARCH " + query);
+                        try { Thread.sleep(300); } catch (InterruptedException ignored) {}
+                    }
+
                 } else {
                     System.out.println("Invalid choice.");
                 }
@@ -644,8 +765,8 @@ public class ClientConsole {
     }
 
     // -------------------- Store actions --------------------
-    private void doList(Branch branch) throws IOException {
-        writer.println("LIST " + branch.name());
+    private void doList(String branch) throws IOException {
+        writer.println("LIST " + branch);
         String line;
         
         // Collect all inventory items first
@@ -658,12 +779,12 @@ public class ClientConsole {
         }
         
         if (items.isEmpty()) {
-            System.out.println("No inventory items found for branch: " + branch.name());
+            System.out.println("No inventory items found for branch: " + branch);
             return;
         }
         
         // Display as a formatted table
-        displayInventoryTable(items, branch.name());
+        displayInventoryTable(items, branch);
     }
     
     private void displayInventoryTable(java.util.List<String> items, String branchName) {
@@ -696,33 +817,106 @@ public class ClientConsole {
         System.out.println("=".repeat(60) + "\n");
     }
 
-    private void doSell(Branch branch) throws IOException {
+    private void doSell(String branch) throws IOException {
         System.out.print("Enter ID: ");
         String sku = in.nextLine().trim();
         int quantity = askPositiveInt("Enter quantity: ");
         System.out.print("Enter customer ID: ");
         String customerId = in.nextLine().trim();
 
-        writer.println("SELL " + branch.name() + " " + sku + " " + quantity + " " + customerId);
-        String resp = reader.readLine();
-        if (resp != null && resp.startsWith("OK SALE ")) {
+        List<String> reply = sendWrite("SELL " + branch + " " + sku + " " + quantity + " " + customerId);
+        String resp = reply.get(reply.size() - 1);
+        if (resp.startsWith("OK SALE ")) {
             String[] parts = resp.split(" ");
             if (parts.length >= 6) {
                 displaySaleSummary(parts[5], parts[2], parts[3], parts[4]);
             } else System.out.println(resp);
-        } else System.out.println(resp == null ? "No response" : resp);
+        } else System.out.println(resp);
     }
 
-    private void doBuy(Branch branch) throws IOException {
+    private void doCheckout(String branch) throws IOException {
+        StringBuilder cart = new StringBuilder();
+        int lines = 0;
+        while (true) {
+            System.out.print("Enter ID (empty to finish): ");
+            String sku = in.nextLine().trim();
+            if (sku.isEmpty()) break;
+            int quantity = askPositiveInt("Enter quantity: ");
+            cart.append(' ').append(sku).append(':').append(quantity);
+            lines++;
+        }
+        if (lines == 0) { System.out.println("Cart is empty."); return; }
+        System.out.print("Enter customer ID: ");
+        String customerId = in.nextLine().trim();
+
+        List<String> reply = sendWrite("CHECKOUT " + branch + " " + customerId + cart);
+        List<String[]> rows = new ArrayList<>();
+        for (String l : reply) if (l.startsWith("LINE ")) rows.add(l.split(" "));
+        String resp = reply.get(reply.size() - 1);
+        if (!resp.startsWith("OK CHECKOUT ")) {
+            System.out.println(resp.replace('_', ' '));
+            return;
+        }
+        String[] total = resp.split(" ");
+
+        System.out.println("\n" + "=".repeat(60));
+        System.out.println("                    CART SUMMARY");
+        System.out.println("=".repeat(60));
+        System.out.printf("%-8s %-6s %-14s %-14s %-14s%n", "ID", "Qty", "Base", "Discount", "Final");
+        System.out.println("-".repeat(60));
+        for (String[] r : rows) {
+            if (r.length >= 6) System.out.printf("%-8s %-6s %-14s %-14s %-14s%n", r[1], r[2], r[3] + "$", r[4] + "$", r[5] + "$");
+        }
+        System.out.println("-".repeat(60));
+        if (total.length >= 6) {
+            System.out.printf("%-20s %s%n", "Customer type:", total[5]);
+            System.out.printf("%-20s $%s%n", "Base price:", total[2]);
+            System.out.printf("%-20s $%s%n", "Discount:", total[3]);
+            System.out.printf("%-20s $%s%n", "Final price:", total[4]);
+        }
+        System.out.println("=".repeat(60) + "\n");
+    }
+
+    private void doStockWhere() throws IOException {
+        System.out.print("Enter ID: ");
+        String sku = in.nextLine().trim();
+        writer.println("STOCK_WHERE " + sku);
+        String resp;
+        boolean header = false;
+        while ((resp = reader.readLine()) != null && resp.startsWith("STOCK ")) {
+            if (!header) {
+                System.out.printf("%-10s %-10s %-10s%n", "Branch", "Quantity", "Price");
+                header = true;
+            }
+            String[] p = resp.split(" ");
+            if (p.length >= 4) System.out.printf("%-10s %-10s %-10s%n", p[1], p[2], p[3] + "$");
+        }
+        if (resp == null || !resp.startsWith("OK")) System.out.println(resp == null ? "No response" : resp);
+    }
+
+    private void doTransfer(String branch) throws IOException {
+        System.out.print("Enter ID: ");
+        String sku = in.nextLine().trim();
+        System.out.println("Transfer from:");
+        String from = askBranch();
+        int quantity = askPositiveInt("Enter quantity: ");
+        List<String> reply = sendWrite("TRANSFER " + sku + " " + from + " " + branch + " " + quantity);
+        String resp = reply.get(reply.size() - 1);
+        if (resp.startsWith("OK TRANSFER ")) {
+            String[] p = resp.split(" ");
+            System.out.println("Transferred. " + from + " now has " + p[2] + ", " + branch + " now has " + p[3] + ".");
+        } else System.out.println(resp);
+    }
+
+    private void doBuy(String branch) throws IOException {
         System.out.print("Enter ID: ");
         String sku = in.nextLine().trim();
         int quantityToAdd = askPositiveInt("Enter quantity to add: ");
-        writer.println("BUY " + branch.name() + " " + sku + " " + quantityToAdd);
-        String resp = reader.readLine();
-        System.out.println(resp == null ? "No response" : resp);
+        List<String> reply = sendWrite("BUY " + branch + " " + sku + " " + quantityToAdd);
+        System.out.println(reply.get(reply.size() - 1));
     }
 
-    private void doAddProduct(Branch branch) throws IOException {
+    private void doAddProduct(String branch) throws IOException {
         System.out.print("Enter new category (non-existing allowed): ");
         String category = in.nextLine().trim();
         int quantity = askPositiveInt("Enter initial quantity: ");
@@ -732,12 +926,11 @@ public class ClientConsole {
             System.out.println("Category and price are required.");
             return;
         }
-        writer.println("ADD_PRODUCT " + branch.name() + " " + category.replace(' ', '_') + " " + quantity + " " + price);
-        String resp = reader.readLine();
-        System.out.println(resp == null ? "No response" : resp.replace('_', ' '));
+        List<String> reply = sendWrite("ADD_PRODUCT " + branch + " " + category.replace(' ', '_') + " " + quantity + " " + price);
+        System.out.println(reply.get(reply.size() - 1).replace('_', ' '));
     }
 
-    private void doRemoveProduct(Branch branch) throws IOException {
+    private void doRemoveProduct(String branch) throws IOException {
         System.out.print("Enter ID: ");
         String sku = in.nextLine().trim();
         if (sku.isEmpty()) { System.out.println("ID is required."); return; }
@@ -745,9 +938,56 @@ public class ClientConsole {
             System.out.println("Cancelled.");
             return;
         }
-        writer.println("REMOVE_PRODUCT " + branch.name() + " " + sku);
-        String resp = reader.readLine();
-        System.out.println(resp == null ? "No response" : resp);
+        List<String> reply = sendWrite("REMOVE_PRODUCT " + branch + " " + sku);
+        System.out.println(reply.get(reply.size() - 1));
+    }
+
+    private void doStats() throws IOException {
+        writer.println("STATS");
+        String line;
+        System.out.println("\n" + "=".repeat(60));
+        System.out.println("                    SERVER STATISTICS");
+        System.out.println("=".repeat(60));
+        while ((line = reader.readLine()) != null) {
+            if ("OK END".equals(line)) break;
+            if (line.startsWith("ERR")) { System.out.println(line); break; }
+            if (line.startsWith("STAT ")) System.out.println(line.substring(5));
+        }
+        System.out.println("=".repeat(60) + "\n");
+    }
+
+    private void doReport() throws IOException {
+        System.out.println("Group by:");
+        System.out.println("1) Total");
+        System.out.println("2) Branch");
+        System.out.println("3) Category");
+        System.out.println("4) Customer type");
+        System.out.println("5) Hour of day");
+        System.out.print("Choice: ");
+        String[] dims = {"TOTAL", "BRANCH", "CATEGORY", "TIER", "HOUR"};
+        String c = in.nextLine().trim();
+        int i;
+        try { i = Integer.parseInt(c) - 1; } catch (NumberFormatException e) { i = -1; }
+        if (i < 0 || i >= dims.length) { System.out.println("Invalid choice."); return; }
+
+        writer.println("REPORT " + dims[i]);
+        String line;
+        System.out.println("\n" + "=".repeat(75));
+        System.out.println("                    SALES REPORT (" + dims[i] + ")");
+        System.out.println("=".repeat(75));
+        System.out.printf("%-14s %-10s %-10s %-18s %-18s%n", "Group", "Sales", "Units", "Revenue", "Discount");
+        System.out.println("-".repeat(75));
+        while ((line = reader.readLine()) != null) {
+            if ("OK END".equals(line)) break;
+            if (line.startsWith("ERR")) { System.out.println(line); break; }
+            if (!line.startsWith("REPORT ")) continue;
+            String[] p = line.substring(7).split(" ");
+            if (p.length < 5) continue;
+            System.out.printf("%-14s %-10s %-10s %-18s %-18s%n", p[0],
+                    p[1].substring(p[1].indexOf('=') + 1), p[2].substring(p[2].indexOf('=') + 1),
+                    p[3].substring(p[3].indexOf('=') + 1) + "$", p[4].substring(p[4].indexOf('=') + 1) + "$");
+        }
+        System.out.println("=".repeat(75) + "\n");
     }
 
     private void logout() throws IOException {
@@ -757,17 +997,23 @@ public class ClientConsole {
     }
 
     // -------------------- Helpers --------------------
-    private Branch askBranch() {
+    private void loadBranches() throws IOException {
+        writer.println("BRANCHES");
+        String resp = reader.readLine(); // OK BRANCHES <name>...
+        if (resp == null || !resp.startsWith("OK BRANCHES ")) throw new IOException("Cannot get branches: " + resp);
+        branches = List.of(resp.substring(12).split(" "));
+    }
+
+    private String askBranch() {
         while (true) {
             System.out.println("Select branch:");
-            System.out.println("1) HOLON");
-            System.out.println("2) TEL_AVIV");
-            System.out.println("3) RISHON");
+            for (int i = 0; i < branches.size(); i++) System.out.println((i + 1) + ") " + branches.get(i));
             System.out.print("Choice: ");
             String c = in.nextLine().trim();
-            if ("1".equals(c)) return Branch.HOLON;
-            if ("2".equals(c)) return Branch.TEL_AVIV;
-            if ("3".equals(c)) return Branch.RISHON;
+            try {
+                int i = Integer.parseInt(c);
+                if (i >= 1 && i <= branches.size()) return branches.get(i - 1);
+            } catch (NumberFormatException ignored) { }
             System.out.println("Invalid choice.");
         }
     }
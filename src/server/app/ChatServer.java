@@ -1,7 +1,10 @@
 package server.app;
 
 import server.shared.Branch;
+import server.util.ChatHistory;
 import server.util.ChatLogger;
+import server.util.LatencyHistogram;
+import server.util.Metrics;
 
 import java.io.*;
 import java.net.ServerSocket;
@@ -16,20 +19,29 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * - First ACCEPT wins; others get REQUEST_TAKEN.
  * - Shift Manager can LIST_CONVS + JOIN.
  * - Missed requests + CALLBACK.
+ * - Shift Manager can read/search the indexed chat history.
  * - Prevent duplicate login per username.
+ * - Stock alerts from the StoreServer are pushed to the branch's Shift Managers.
  *
  * Protocol:
- *  HELLO <username> <role:SALESPERSON|CASHIER|SHIFT_MANAGER> <branch:HOLON|TEL_AVIV|RISHON>
+ *  HELLO <username> <role:SALESPERSON|CASHIER|SHIFT_MANAGER> <branch: a name from data/branches.txt>
  *  REQUEST_ANY_OTHER_BRANCH
  *  REQUEST_BRANCH <branch>
  *  REQUEST_USER <username>
  *  ACCEPT <requestId>
  *  LIST_CONVS
  *  JOIN <conversationId>
+ *  HISTORY <conversationId>
+ *  SEARCH [from:<user>] [since:<yyyy-MM-dd>] [until:<yyyy-MM-dd>] <terms...>
  *  CALLBACK <username>
  *  MSG <text...>
  *  END
  *  QUIT
+ *
+ * Alert feed (loopback only, instead of HELLO):
+ *  ALERT_FEED
+ *  ALERT <branch> <text...>   -> "ALERT <text...>" to every Shift Manager of that branch;
+ *                                held (latest PENDING_ALERTS per branch) until one connects
  */
 public class ChatServer {
 
@@ -99,6 +111,13 @@ public class ChatServer {
         }
     }
 
+    private static final int SEARCH_LIMIT = 100;
+    private static final int PENDING_ALERTS = 50;
+    private static final Map<String, LatencyHistogram> CMD_TIME = Metrics.histograms("chat.cmd.", Arrays.asList(
+            "REQUEST_ANY_OTHER_BRANCH", "REQUEST_BRANCH", "REQUEST_USER", "ACCEPT", "LIST_CONVS", "JOIN",
+            "HISTORY", "SEARCH", "CALLBACK", "MSG", "END", "QUIT"));
+    private static final LatencyHistogram OTHER_TIME = Metrics.histogram("chat.cmd.OTHER");
+
     // ========= state =========
     private final int port;
     private final ExecutorService pool = Executors.newCachedThreadPool();
@@ -108,12 +127,20 @@ public class ChatServer {
     private final ConcurrentMap<Branch, Set<Session>> idleByBranch = new ConcurrentHashMap<Branch, Set<Session>>();
     private final ConcurrentMap<String, BroadcastRequest> openRequests = new ConcurrentHashMap<String, BroadcastRequest>();
     private final ConcurrentMap<String, List<String>> missedForUser = new ConcurrentHashMap<String, List<String>>();
+    private final ConcurrentMap<Branch, Deque<String>> pendingAlerts = new ConcurrentHashMap<Branch, Deque<String>>();
 
-    public ChatServer(int port) { this.port = port; }
+    public ChatServer(int port) {
+        this.port = port;
+        Metrics.gauge("chat.sessions", online::size);
+        Metrics.gauge("chat.conversations", conversations::size);
+        Metrics.gauge("chat.requests.open", openRequests::size);
+    }
 
     public void start() {
         System.out.println("ChatServer started on port " + port);
         ChatLogger.logServerStart(port);
+        // local scrape endpoint: http://127.0.0.1:9091/metrics (-Dmetrics.port=0 disables)
+        Metrics.startHttpEndpoint(Integer.getInteger("metrics.port", 9091));
         ServerSocket ss = null;
         try {
             ss = new ServerSocket(port);
@@ -139,6 +166,7 @@ public class ChatServer {
             PrintWriter out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream()), true);
 
             String hello = in.readLine();
+            if (hello != null && "ALERT_FEED".equals(hello.trim())) { serveAlertFeed(sock, in, out); return; }
             if (hello == null || !hello.startsWith("HELLO ")) { out.println("ERR HELLO_REQUIRED"); sock.close(); return; }
             String[] t = hello.trim().split(" ");
             if (t.length < 4) { out.println("ERR BAD_HELLO"); sock.close(); return; }
@@ -165,6 +193,7 @@ public class ChatServer {
             markIdle(session);
             deliverOpenRequestsToIdle(session);
             flushMissed(session);
+            if (session.isManager()) flushAlerts(session);
 
             String line;
             while ((line = session.in.readLine()) != null) {
@@ -179,9 +208,11 @@ public class ChatServer {
     }
 
     private void handle(Session s, String line) {
+        long started = System.nanoTime();
+        String cmd = "";
         try {
             String[] t = line.trim().split(" ", 2);
-            String cmd = t[0].toUpperCase();
+            cmd = t[0].toUpperCase();
             String rest = (t.length > 1) ? t[1] : "";
 
             if ("REQUEST_ANY_OTHER_BRANCH".equals(cmd)) {
@@ -196,6 +227,10 @@ public class ChatServer {
                 listConvs(s);
             } else if ("JOIN".equals(cmd)) {
                 joinConv(s, rest);
+            } else if ("HISTORY".equals(cmd)) {
+                showHistory(s, rest);
+            } else if ("SEARCH".equals(cmd)) {
+                searchHistory(s, rest);
             } else if ("CALLBACK".equals(cmd)) {
                 doCallback(s, rest);
             } else if ("MSG".equals(cmd)) {
@@ -211,6 +246,8 @@ public class ChatServer {
         } catch (Exception e) {
             s.send("ERR " + e.getMessage().replace(' ', '_'));
             ChatLogger.logError("Session " + s.username, "Error handling command: " + e.getMessage(), e);
+        } finally {
+            CMD_TIME.getOrDefault(cmd, OTHER_TIME).recordSince(started);
         }
     }
 
@@ -324,6 +361,30 @@ public class ChatServer {
         ChatLogger.logConversationJoined(c.id, s.username, c.participantsCsv());
     }
 
+    private void showHistory(Session s, String rest) {
+        if (!s.isManager()) { s.send("ERR NOT_ALLOWED"); return; }
+        String id = (rest == null ? "" : rest.trim());
+        if (id.isEmpty()) { s.send("ERR BAD_ARGS"); return; }
+        sendHistory(s, ChatLogger.history().conversation(id));
+    }
+
+    private void searchHistory(Session s, String rest) {
+        if (!s.isManager()) { s.send("ERR NOT_ALLOWED"); return; }
+        if (rest == null || rest.trim().isEmpty()) { s.send("ERR BAD_ARGS"); return; }
+        ChatHistory.Query q;
+        try { q = ChatHistory.Query.parse(rest); }
+        catch (Exception e) { s.send("ERR BAD_QUERY"); return; }
+        sendHistory(s, ChatLogger.history().search(q, SEARCH_LIMIT));
+    }
+
+    private void sendHistory(Session s, List<ChatHistory.Entry> entries) {
+        if (entries.isEmpty()) { s.send("INFO NO_HISTORY"); return; }
+        for (ChatHistory.Entry e : entries) {
+            s.send("HIST " + e.conversationId() + " " + e.formattedTime() + " " + e.sender() + " " + e.content());
+        }
+        s.send("OK END");
+    }
+
     private void doCallback(Session s, String rest) {
         ensureNotBusy(s);
         String target = (rest == null ? "" : rest.trim());
@@ -457,6 +518,58 @@ public class ChatServer {
         }
     }
 
+    // ===== stock alerts =====
+    private void serveAlertFeed(Socket sock, BufferedReader in, PrintWriter out) throws IOException {
+        if (!sock.getInetAddress().isLoopbackAddress()) {
+            ChatLogger.logWarning("Alerts", "Alert feed refused from " + sock.getInetAddress().getHostAddress());
+            out.println("ERR NOT_ALLOWED");
+            return;
+        }
+        out.println("OK ALERT_FEED");
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] t = line.trim().split(" ", 3);
+            if (t.length < 3 || !"ALERT".equals(t[0])) continue;
+            try {
+                pushAlert(Branch.valueOf(t[1].toUpperCase()), t[2]);
+            } catch (IllegalArgumentException e) {
+                ChatLogger.logWarning("Alerts", "Alert for unknown branch " + t[1]);
+            }
+        }
+    }
+
+    private void pushAlert(Branch branch, String text) {
+        Metrics.counter("chat.alerts").increment();
+        boolean delivered = false;
+        for (Session s : online.values()) {
+            if (s.isManager() && s.branch == branch) {
+                s.send("ALERT " + text);
+                delivered = true;
+            }
+        }
+        if (delivered) return;
+        Deque<String> pending = pendingAlerts.get(branch);
+        if (pending == null) {
+            pendingAlerts.putIfAbsent(branch, new ArrayDeque<String>());
+            pending = pendingAlerts.get(branch);
+        }
+        synchronized (pending) {
+            if (pending.size() == PENDING_ALERTS) pending.removeFirst();
+            pending.addLast(text);
+        }
+    }
+
+    private void flushAlerts(Session s) {
+        Deque<String> pending = pendingAlerts.get(s.branch);
+        if (pending == null) return;
+        List<String> copy;
+        synchronized (pending) {
+            copy = new ArrayList<String>(pending);
+            pending.clear();
+        }
+        for (String text : copy) s.send("ALERT " + text);
+    }
+
     // ===== cleanup =====
     private void cleanupSession(Session s) {
         // Log user disconnection
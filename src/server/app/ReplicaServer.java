@@ -0,0 +1,88 @@
+package server.app;
+
+import server.domain.employees.AuthService;
+import server.domain.employees.EmployeeDirectory;
+import server.net.ReplicaHandler;
+import server.net.ReplicaState;
+import server.util.KeyValueStore;
+import server.util.Loggers;
+import server.util.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-only StoreServer for catalog browsing, so LIST and CUSTOMER_LIST
+ * traffic stays off the primary's locks. Runs from the primary's working
+ * directory, on its own port (and -Dmetrics.port):
+ *   java -Dmetrics.port=9091 -Dreplica.primary=127.0.0.1:5050 -cp out server.app.ReplicaServer 5060
+ *
+ * Products and customers are read from data/ at startup and kept current by
+ * following data/changes.log; see ReplicaState for what is served and
+ * ReplicaHandler for how writes are forwarded to -Dreplica.primary (or
+ * rejected without it). Any number of replicas can run next to one primary;
+ * they write nothing to data/.
+ *
+ * Needs the text storage (-Dstorage.engine=csv, -Dinventory.format=csv):
+ * the lsm and binary formats belong to one process.
+ */
+public class ReplicaServer {
+    private final int port;
+    private final InetSocketAddress primary;
+    private final EmployeeDirectory employees = new EmployeeDirectory();
+    private final AuthService auth = new AuthService(employees);
+    private final ReplicaState state = ReplicaState.load(Path.of("data/products"));
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    public ReplicaServer(int port, InetSocketAddress primary) {
+        this.port = port;
+        this.primary = primary;
+        Metrics.gauge("store.sessions.logged_in", auth::activeCount);
+        state.follow();
+    }
+
+    public void start() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            Loggers.system().info("ReplicaServer started on port " + port
+                    + (primary == null ? ", read only" : ", forwarding writes to " + primary));
+            Metrics.startHttpEndpoint(Integer.getInteger("metrics.port", 9091));
+            while (true) {
+                Socket socket = serverSocket.accept();
+                pool.submit(new ReplicaHandler(socket, auth, employees, state, primary));
+            }
+        } catch (IOException e) {
+            Loggers.system().severe("ReplicaServer fatal error: " + e.getMessage());
+        } finally {
+            try { pool.shutdownNow(); } catch (Exception ignored) {}
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = 5060;
+        if (args != null && args.length > 0) {
+            try { port = Integer.parseInt(args[0]); } catch (NumberFormatException ignored) {}
+        }
+        if (KeyValueStore.lsm() || "binary".equalsIgnoreCase(System.getProperty("inventory.format", "csv"))) {
+            System.err.println("ReplicaServer needs -Dstorage.engine=csv and -Dinventory.format=csv");
+            System.exit(1);
+        }
+        InetSocketAddress primary = null;
+        String p = System.getProperty("replica.primary");
+        if (p != null && !p.isBlank()) {
+            int colon = p.lastIndexOf(':');
+            try {
+                primary = colon < 0 ? new InetSocketAddress("127.0.0.1", Integer.parseInt(p.trim()))
+                        : new InetSocketAddress(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1).trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Bad -Dreplica.primary (host:port): " + p);
+                System.exit(1);
+            }
+        }
+        new ReplicaServer(port, primary).start();
+    }
+}
@@ -0,0 +1,188 @@
+package server.app;
+
+import server.util.ChangeLog;
+import server.util.FileDatabase;
+import server.util.Loggers;
+import server.util.Metrics;
+import server.util.StaleDataException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the data files for several StoreServer front ends on one machine.
+ *
+ * Start it first, then each front end with -Dstorage.port=<port> and its own
+ * client port (and -Dmetrics.port), all from the same working directory:
+ *   java -cp out server.app.StorageDaemon 5055
+ *   java -Dstorage.port=5055 -cp out server.app.StoreServer 5050
+ *   java -Dstorage.port=5055 -Dmetrics.port=9091 -cp out server.app.StoreServer 5051
+ *
+ * Loopback only. One request per line, paths relative to the working
+ * directory and inside data/ (-Dstorage.root):
+ *   READ <path>                          -> VERSION <v>, LINE <text>..., OK END
+ *   STAT <path>                          -> OK <v>
+ *   WRITE <path> <expectedVersion|*> <n> [<m>]
+ *                                        -> followed by n "LINE <text>" lines and m "CHANGE <entry>"
+ *                                           lines (ChangeLog entries, seq 0); OK <v> | ERR STALE
+ *   APPEND <path> <text...>              -> OK <v>
+ * Errors: ERR BAD_REQUEST, ERR NOT_ALLOWED (path outside the root), ERR IO.
+ *
+ * Requests on one file run one at a time (FileDatabase is synchronized, and
+ * takes the same file locks as processes that access the files directly);
+ * different files proceed in parallel. The CHANGE entries of a WRITE go to
+ * the daemon's ChangeLog (data/changes.log, -Dchanges.file) while the file
+ * is still locked, so they are logged in the order the writes were made.
+ */
+public class StorageDaemon {
+    private final int port;
+    private final Path root;
+    private final Map<Path, FileDatabase> files = new ConcurrentHashMap<>();
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    public StorageDaemon(int port, Path root) {
+        this.port = port;
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    public void start() {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            Loggers.system().info("StorageDaemon started on port " + port + " for " + root);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                pool.submit(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            Loggers.system().severe("StorageDaemon fatal error: " + e.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                handle(line, in, out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            Loggers.system().fine("Storage connection closed: " + e.getMessage());
+        }
+    }
+
+    private void handle(String line, BufferedReader in, BufferedWriter out) throws IOException {
+        String[] t = line.split(" ", 3);
+        String cmd = t[0];
+        if (t.length < 2) { reply(out, "ERR BAD_REQUEST"); return; }
+        FileDatabase db = file(t[1]);
+
+        // WRITE carries its lines; read them before any early reply so the stream stays in step
+        List<String> lines = null;
+        List<ChangeLog.Change> changes = new ArrayList<>();
+        long expected = -1;
+        if ("WRITE".equals(cmd)) {
+            String[] a = t.length == 3 ? t[2].split(" ") : new String[0];
+            int n, m;
+            try {
+                expected = "*".equals(a[0]) ? -1 : Long.parseLong(a[0]);
+                n = Integer.parseInt(a[1]);
+                m = a.length > 2 ? Integer.parseInt(a[2]) : 0;
+            } catch (RuntimeException e) {
+                reply(out, "ERR BAD_REQUEST");
+                return;
+            }
+            lines = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String s = in.readLine();
+                if (s == null || !s.startsWith("LINE ")) throw new IOException("short WRITE");
+                lines.add(s.substring(5));
+            }
+            for (int i = 0; i < m; i++) {
+                String s = in.readLine();
+                if (s == null || !s.startsWith("CHANGE ")) throw new IOException("short WRITE");
+                ChangeLog.Change c = ChangeLog.Change.parse(s.substring(7));
+                if (c != null) changes.add(c);
+            }
+        }
+        if (db == null) { reply(out, "ERR NOT_ALLOWED"); return; }
+
+        try {
+            switch (cmd) {
+                case "READ": {
+                    FileDatabase.Contents c = db.read();
+                    out.write("VERSION " + c.version() + "\n");
+                    for (String s : c.lines()) out.write("LINE " + s + "\n");
+                    reply(out, "OK END");
+                    break;
+                }
+                case "STAT":
+                    reply(out, "OK " + db.version());
+                    break;
+                case "WRITE":
+                    try {
+                        reply(out, "OK " + db.writeAllLinesIfVersion(lines, expected, changes));
+                    } catch (StaleDataException e) {
+                        reply(out, "ERR STALE");
+                    }
+                    break;
+                case "APPEND":
+                    if (t.length < 3) { reply(out, "ERR BAD_REQUEST"); break; }
+                    reply(out, "OK " + db.appendLine(t[2]));
+                    break;
+                default:
+                    reply(out, "ERR BAD_REQUEST");
+            }
+        } catch (RuntimeException e) {
+            Loggers.system().warning("Storage " + cmd + " " + t[1] + " failed: " + e.getMessage());
+            reply(out, "ERR IO");
+        }
+    }
+
+    /** The file for a request path, or null if it is outside the root. */
+    private FileDatabase file(String name) {
+        Path p;
+        try {
+            p = Path.of(name).toAbsolutePath().normalize();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (!p.startsWith(root) || p.equals(root)) return null;
+        return files.computeIfAbsent(p, FileDatabase::new);
+    }
+
+    private static void reply(BufferedWriter out, String s) throws IOException {
+        out.write(s);
+        out.write('\n');
+    }
+
+    public static void main(String[] args) {
+        if (FileDatabase.viaDaemon()) {
+            System.err.println("StorageDaemon must access the files itself: do not pass -Dstorage.port");
+            System.exit(1);
+        }
+        int port = 5055;
+        if (args != null && args.length > 0) {
+            try { port = Integer.parseInt(args[0]); } catch (NumberFormatException ignored) {}
+        }
+        Metrics.startHttpEndpoint(Integer.getInteger("metrics.port", 0));
+        new StorageDaemon(port, Path.of(System.getProperty("storage.root", "data"))).start();
+    }
+}
@@ -1,29 +1,42 @@
 package server.app;
 
 import server.domain.employees.AuthService;
+import server.domain.employees.EmployeeDirectory;
 import server.domain.invantory.InventoryService;
+import server.domain.invantory.LowStockMonitor;
 import server.domain.customers.CustomerService;
 import server.domain.sales.SalesService;
 
+import server.net.ChatAlertSink;
 import server.net.ClientHandler;
 import server.util.Loggers;
+import server.util.Metrics;
+import server.util.Snapshots;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class StoreServer {
     private final int port;
-    private final AuthService auth = new AuthService();
+    private final EmployeeDirectory employees = new EmployeeDirectory();
+    private final AuthService auth = new AuthService(employees);
     private final InventoryService inventory = new InventoryService();
     private final CustomerService customers = new CustomerService();
     private final SalesService sales = new SalesService();
+    private final LowStockMonitor lowStock =
+            new LowStockMonitor(inventory, Path.of("data/stock_thresholds.txt"), ChatAlertSink.fromConfig());
     private final ExecutorService pool = Executors.newCachedThreadPool();
 
     public StoreServer(int port) {
         this.port = port;
+        Metrics.gauge("store.sessions.logged_in", auth::activeCount);
+        sales.onRulesChanged(r -> customers.setTierThresholds(r.returningThreshold(), r.vipThreshold()));
+        lowStock.start();
+        Snapshots.start(); // every service has restored or loaded its data by now
         // סוגר את מאגר־השרשורים כשמבקשים לסגור את התהליך
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try { pool.shutdownNow(); } catch (Exception ignored) {}
@@ -34,9 +47,11 @@ public class StoreServer {
     public void start() {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             Loggers.system().info("StoreServer started on port " + port);
+            // local scrape endpoint: http://127.0.0.1:9090/metrics (-Dmetrics.port=0 disables)
+            Metrics.startHttpEndpoint(Integer.getInteger("metrics.port", 9090));
             while (true) {
                 Socket socket = serverSocket.accept();
-                pool.submit(new ClientHandler(socket, auth, inventory, customers, sales));
+                pool.submit(new ClientHandler(socket, auth, employees, inventory, customers, sales));
             }
         } catch (IOException e) {
             Loggers.system().severe("StoreServer fatal error: " + e.getMessage());
@@ -1,11 +1,14 @@
 package server.domain.customers;
 
-import server.util.FileDatabase;
+import server.util.ChangeLog;
+import server.util.KeyValueStore;
+import server.util.LogEvent;
 import server.util.Loggers;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -15,90 +18,79 @@ import java.util.Optional;
  * Purchase counts are stored in: data/customer_stats.txt
  *   line: id,count
  *
- * Auto-promotion thresholds:
+ * Auto-promotion thresholds (defaults; StoreServer sets them from the pricing rules):
  *   >= 10 purchases => VIP
  *   >=  2 purchases => RETURNING
  *   else            => NEW
+ *
+ * Both are KeyValueStores keyed by id (see -Dstorage.engine). Every change is
+ * one atomic step, so StoreServer processes sharing the files never lose each
+ * other's customers or purchase counts.
+ *
+ * Changes go to the ChangeLog as CUSTOMER events keyed by id: ADDED and
+ * UPDATED with the customers line (fullName,phone,type), PURCHASED with the
+ * new count. Each is recorded in the atomic step that makes it (see
+ * KeyValueStore.Batch.record), so the log has them in the order they were
+ * made, also across processes.
  */
 public class CustomerService {
 
-    private final FileDatabase customersDb = new FileDatabase(Path.of("data/customers.txt"));
-    private final FileDatabase statsDb     = new FileDatabase(Path.of("data/customer_stats.txt"));
+    private volatile int returningAt = 2;
+    private volatile int vipAt = 10;
+
+    private final KeyValueStore customers = KeyValueStore.open(Path.of("data/customers.txt")); // id -> fullName,phone,type
+    private final KeyValueStore stats     = KeyValueStore.open(Path.of("data/customer_stats.txt")); // id -> count
 
     /** Find by ID in customers file. */
     public Optional<Customer> findById(String id) {
-        for (String s : customersDb.readAllLines()) {
-            if (s == null) continue;
-            String line = s.trim();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-
-            String[] t = line.split(",", -1); // id,fullName,phone,type
-            if (t.length < 4) continue;
-            if (t[0].equals(id)) {
-                return Optional.of(new Customer(t[0], t[1], t[2], typeFrom(t[3])));
-            }
-        }
-        return Optional.empty();
+        return customers.get(id).map(v -> parse(id, v));
     }
 
-    /** List all customers. */
+    /** List all customers, by id. */
     public List<Customer> listAll() {
         List<Customer> out = new ArrayList<>();
-        for (String s : customersDb.readAllLines()) {
-            if (s == null) continue;
-            String line = s.trim();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1);
-            if (t.length < 4) continue;
-            out.add(new Customer(t[0], t[1], t[2], typeFrom(t[3])));
+        for (Map.Entry<String, String> e : customers.all().entrySet()) {
+            Customer c = parse(e.getKey(), e.getValue());
+            if (c != null) out.add(c);
         }
         return out;
     }
 
     /** Insert or update by id. */
-    public void upsert(Customer customer) {
-        List<String> lines = new ArrayList<>(customersDb.readAllLines());
-        boolean found = false;
-
-        for (int i = 0; i < lines.size(); i++) {
-            String raw = lines.get(i);
-            if (raw == null) continue;
-            String line = raw.trim();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-
-            String[] t = line.split(",", -1);
-            if (t.length < 4) continue;
-
-            if (t[0].equals(customer.id())) {
-                lines.set(i, format(customer));
-                found = true;
-                break;
-            }
-        }
-        if (!found) lines.add(format(customer));
-        customersDb.writeAllLines(lines);
+    public synchronized void upsert(Customer customer) {
+        String value = format(customer);
+        customers.atomically(b -> {
+            b.put(customer.id(), value);
+            b.record(ChangeLog.change("CUSTOMER", "UPDATED", customer.id(), value));
+            return null;
+        });
     }
 
     /** Add a new customer (fails if id already exists). */
-    public Customer addCustomer(String id, String fullName, String phone, String typeCode) {
+    public synchronized Customer addCustomer(String id, String fullName, String phone, String typeCode) {
         if (id == null || id.trim().isEmpty()) throw new IllegalArgumentException("Customer ID is required");
-        if (findById(id).isPresent()) throw new IllegalArgumentException("Customer already exists: " + id);
 
         CustomerType type = typeFrom(typeCode);
         Customer c = new Customer(id, fullName == null ? "" : fullName, phone == null ? "" : phone, type);
-        upsert(c);
+        customers.atomically(b -> {
+            // checked in the same step as the insert, so two processes cannot both add the id
+            if (b.get(id).isPresent()) throw new IllegalArgumentException("Customer already exists: " + id);
+            b.put(id, format(c));
+            b.record(ChangeLog.change("CUSTOMER", "ADDED", id, format(c)));
+            return null;
+        });
         // initialize stats at zero
         ensureStatsRow(id);
-        
+
         // Log the customer addition
-        Loggers.customers().info(String.format("CUSTOMER_ADDED: ID=%s, FullName=%s, Phone=%s, Type=%s", 
-            id, fullName, phone, typeCode));
+        LogEvent.info(Loggers.customers(), "CUSTOMER_ADDED")
+                .field("ID", id).field("FullName", fullName).field("Phone", phone).field("Type", typeCode).log();
         
         return c;
     }
 
     /** Record a purchase and auto-promote type if thresholds reached. */
-    public void recordPurchase(String id) {
+    public synchronized void recordPurchase(String id) {
         int count = incrementAndGetCount(id);
         String newTypeCode = tierForCount(count);
 
@@ -115,58 +107,39 @@ public class CustomerService {
     // ---------- Helpers ----------
 
     private CustomerType typeFrom(String code) {
-        String c = code == null ? "NEW" : code.trim().toUpperCase();
-        switch (c) {
-            case "VIP":        return new VipCustomer();
-            case "RETURNING":  return new ReturningCustomer();
-            default:           return new NewCustomer();
-        }
+        return CustomerType.fromCode(code);
+    }
+
+    /** Purchases needed for RETURNING / VIP. */
+    public void setTierThresholds(int returningAt, int vipAt) {
+        this.returningAt = returningAt;
+        this.vipAt = vipAt;
     }
 
     private String tierForCount(int count) {
-        if (count >= 10) return "VIP";
-        if (count >= 2)  return "RETURNING";
+        if (count >= vipAt) return "VIP";
+        if (count >= returningAt) return "RETURNING";
         return "NEW";
     }
 
     private void ensureStatsRow(String id) {
-        List<String> lines = new ArrayList<>(statsDb.readAllLines());
-        for (String s : lines) {
-            if (s == null) continue;
-            String line = s.trim();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1);
-            if (t.length < 2) continue;
-            if (t[0].equals(id)) return; // already exists
-        }
-        lines.add(id + ",0");
-        statsDb.writeAllLines(lines);
+        stats.compute(id, count -> count == null ? "0" : count);
     }
 
     private int incrementAndGetCount(String id) {
-        List<String> lines = new ArrayList<>(statsDb.readAllLines());
-        boolean updated = false;
-        for (int i = 0; i < lines.size(); i++) {
-            String s = lines.get(i);
-            if (s == null) continue;
-            String line = s.trim();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1);
-            if (t.length < 2) continue;
-
-            if (t[0].equals(id)) {
-                int cur = parseIntSafe(t[1]);
-                int next = cur + 1;
-                lines.set(i, id + "," + next);
-                statsDb.writeAllLines(lines);
-                updated = true;
-                return next;
-            }
-        }
-        // no row -> create with 1
-        lines.add(id + ",1");
-        statsDb.writeAllLines(lines);
-        return 1;
+        return stats.atomically(b -> {
+            int count = b.get(id).map(this::parseIntSafe).orElse(0) + 1;
+            b.put(id, String.valueOf(count));
+            b.record(ChangeLog.change("CUSTOMER", "PURCHASED", id, String.valueOf(count)));
+            return count;
+        });
+    }
+
+    /** fullName,phone,type -> Customer, or null for a malformed value. */
+    private Customer parse(String id, String value) {
+        String[] t = value.split(",", -1);
+        if (t.length < 3) return null;
+        return new Customer(id, t[0], t[1], typeFrom(t[2]));
     }
 
     private int parseIntSafe(String s) {
@@ -175,7 +148,6 @@ public class CustomerService {
 
     private String format(Customer c) {
         return String.join(",",
-                c.id(),
                 c.fullName(),
                 c.phone(),
                 c.type().code()
@@ -2,7 +2,7 @@ package server.domain.customers;
 
 import java.math.BigDecimal;
 
-/** Strategy for customer purchase discount. */
+/** Strategy for customer purchase discount. Implementations are stateless singletons. */
 public interface CustomerType {
     String code(); // NEW | RETURNING | VIP
 
@@ -11,4 +11,17 @@ public interface CustomerType {
      * e.g., if base = 100 and discount = 5%, return 5.00
      */
     BigDecimal applyDiscount(BigDecimal basePrice);
+
+    /** Same rate as applyDiscount, in basis points (500 = 5%); used by the fixed-point pricing path. */
+    int discountBasisPoints();
+
+    /** Cached strategy for a tier code; unknown or null codes are NEW. */
+    static CustomerType fromCode(String code) {
+        String c = code == null ? "NEW" : code.trim().toUpperCase();
+        switch (c) {
+            case "VIP":        return VipCustomer.INSTANCE;
+            case "RETURNING":  return ReturningCustomer.INSTANCE;
+            default:           return NewCustomer.INSTANCE;
+        }
+    }
 }
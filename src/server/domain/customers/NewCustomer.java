@@ -3,8 +3,11 @@ package server.domain.customers;
 import java.math.BigDecimal;
 
 public class NewCustomer implements CustomerType {
+    public static final NewCustomer INSTANCE = new NewCustomer();
+
     @Override public String code() { return "NEW"; }
     @Override public BigDecimal applyDiscount(BigDecimal basePrice) {
         return BigDecimal.ZERO; // no discount
     }
+    @Override public int discountBasisPoints() { return 0; }
 }
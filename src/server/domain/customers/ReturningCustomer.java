@@ -3,9 +3,14 @@ package server.domain.customers;
 import java.math.BigDecimal;
 
 public class ReturningCustomer implements CustomerType {
+    public static final ReturningCustomer INSTANCE = new ReturningCustomer();
+
+    // 5% discount
+    private static final BigDecimal RATE = new BigDecimal("0.05");
+
     @Override public String code() { return "RETURNING"; }
     @Override public BigDecimal applyDiscount(BigDecimal basePrice) {
-        // 5% discount
-        return basePrice.multiply(new BigDecimal("0.05"));
+        return basePrice.multiply(RATE);
     }
+    @Override public int discountBasisPoints() { return 500; }
 }
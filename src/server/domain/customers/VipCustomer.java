@@ -3,9 +3,14 @@ package server.domain.customers;
 import java.math.BigDecimal;
 
 public class VipCustomer implements CustomerType {
+    public static final VipCustomer INSTANCE = new VipCustomer();
+
+    // 12% discount
+    private static final BigDecimal RATE = new BigDecimal("0.12");
+
     @Override public String code() { return "VIP"; }
     @Override public BigDecimal applyDiscount(BigDecimal basePrice) {
-        // 12% discount
-        return basePrice.multiply(new BigDecimal("0.12"));
+        return basePrice.multiply(RATE);
     }
+    @Override public int discountBasisPoints() { return 1200; }
 }
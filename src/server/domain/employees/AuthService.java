@@ -1,16 +1,31 @@
 package server.domain.employees;
 
-import server.util.FileDatabase;
 import server.util.Loggers;
 
-import java.nio.file.Path;
+import java.io.Closeable;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+/**
+ * Passwords and the set of logged-in users. A user has one session at a
+ * time: a second LOGIN is refused, unless it asks to resume, in which case
+ * the old session is closed and the user moves to the new one (a client
+ * reconnecting after a drop the server has not noticed yet).
+ */
 public class AuthService {
-    private final FileDatabase employeesDb = new FileDatabase(Path.of("data/employees.txt"));
-    private final Set<String> activeUsers = Collections.synchronizedSet(new HashSet<>());
+    private final EmployeeDirectory directory;
+    private final Map<String, Closeable> activeUsers = new HashMap<>(); // username -> its session; guarded by itself
+
+    public AuthService() {
+        this(new EmployeeDirectory());
+    }
+
+    /** Checks passwords against the directory's in-memory index. */
+    public AuthService(EmployeeDirectory directory) {
+        this.directory = directory;
+    }
 
     public static String sha256(String s) {
         try {
@@ -31,60 +46,67 @@ public class AuthService {
         ALREADY_CONNECTED
     }
 
-    public LoginResult loginAdmin(String username, String password) {
+    /** Logs {@code username} in on {@code session}; with {@code resume}, a session the user already has is closed. */
+    public LoginResult loginAdmin(String username, String password, Closeable session, boolean resume) {
         // Easy admin (as requested)
         if ("admin".equals(username) && "admin".equals(password)) {
-            synchronized (activeUsers) {
-                if (activeUsers.contains(username)) {
-                    return LoginResult.ALREADY_CONNECTED;
-                }
-                activeUsers.add(username);
-            }
-            return LoginResult.SUCCESS;
+            return claim(username, session, resume);
         }
 
         // Optional: support ADMIN role from file too
-        String hash = sha256(password);
-        for (String line : employeesDb.readAllLines()) {
-            if (line.isBlank() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1);
-            if (t.length < 7) continue;
-            if (t[1].equals(username) && t[2].equals(hash) && "ADMIN".equalsIgnoreCase(t[3])) {
-                synchronized (activeUsers) {
-                    if (activeUsers.contains(username)) {
-                        return LoginResult.ALREADY_CONNECTED;
-                    }
-                    activeUsers.add(username);
-                }
-                return LoginResult.SUCCESS;
-            }
+        Optional<EmployeeDirectory.EmployeeRecord> rec = directory.findByUsername(username);
+        if (rec.isPresent() && "ADMIN".equalsIgnoreCase(rec.get().role()) && passwordMatches(username, password)) {
+            return claim(username, session, resume);
         }
         return LoginResult.INVALID_CREDENTIALS;
     }
 
-    public LoginResult loginEmployee(String username, String password) {
-        String hash = sha256(password);
-        for (String line : employeesDb.readAllLines()) {
-            if (line.isBlank() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1); // employeeId,username,hash,role,branch,accountNumber,phone
-            if (t.length < 7) continue;
-            if (t[1].equals(username) && t[2].equals(hash)) {
-                synchronized (activeUsers) {
-                    if (activeUsers.contains(username)) {
-                        Loggers.auth().warning("Double login blocked: " + username);
-                        return LoginResult.ALREADY_CONNECTED;
-                    }
-                    activeUsers.add(username);
-                }
+    /** Logs {@code username} in on {@code session}; with {@code resume}, a session the user already has is closed. */
+    public LoginResult loginEmployee(String username, String password, Closeable session, boolean resume) {
+        if (passwordMatches(username, password)) {
+            LoginResult result = claim(username, session, resume);
+            if (result == LoginResult.ALREADY_CONNECTED) {
+                Loggers.auth().warning("Double login blocked: " + username);
+            } else {
                 Loggers.auth().info("Employee login OK: " + username);
-                return LoginResult.SUCCESS;
             }
+            return result;
         }
         Loggers.auth().warning("Employee login FAIL: " + username);
         return LoginResult.INVALID_CREDENTIALS;
     }
 
-    public void logout(String username) {
-        if (username != null) activeUsers.remove(username);
+    private LoginResult claim(String username, Closeable session, boolean resume) {
+        Closeable old;
+        synchronized (activeUsers) {
+            old = activeUsers.get(username);
+            if (old == session) return resume ? LoginResult.SUCCESS : LoginResult.ALREADY_CONNECTED;
+            if (old != null && !resume) return LoginResult.ALREADY_CONNECTED;
+            activeUsers.put(username, session);
+        }
+        if (old != null) {
+            Loggers.auth().info("Session of " + username + " resumed on a new connection; closing the old one");
+            try { old.close(); } catch (IOException ignored) {} // its handler wakes up and ends
+        }
+        return LoginResult.SUCCESS;
+    }
+
+    private boolean passwordMatches(String username, String password) {
+        return directory.passwordHash(username).map(h -> h.equals(sha256(password))).orElse(false);
+    }
+
+    /** Ends {@code username}'s session, unless a resumed login has moved it to another one. */
+    public void logout(String username, Closeable session) {
+        if (username == null) return;
+        synchronized (activeUsers) {
+            activeUsers.remove(username, session);
+        }
+    }
+
+    /** Number of users currently logged in. */
+    public int activeCount() {
+        synchronized (activeUsers) {
+            return activeUsers.size();
+        }
     }
 }
@@ -1,18 +1,27 @@
 package server.domain.employees;
 
 import server.shared.Branch;
-import server.util.FileDatabase;
+import server.util.ChangeLog;
+import server.util.KeyValueStore;
+import server.util.LogEvent;
 import server.util.Loggers;
 
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * EmployeeDirectory
  * File: data/employees.txt
  * Format: employeeId,username,hash,role,branch,accountNumber,phone
  * Roles: SALESPERSON | CASHIER | SHIFT_MANAGER
+ *
+ * Lives in the StoreServer (clients use the EMPLOYEE_* commands). Stored as
+ * a KeyValueStore keyed by employeeId (see -Dstorage.engine). Lookups go to
+ * an in-memory index, rebuilt after our own changes and when another server
+ * process changed the store.
+ *
+ * Changes go to the ChangeLog as EMPLOYEE events keyed by employeeId: ADDED
+ * with username,role,branch,accountNumber,phone (never the hash) and DELETED.
  */
 public class EmployeeDirectory {
 
@@ -23,23 +32,71 @@ public class EmployeeDirectory {
             String employeeId, String username, String role, Branch branch,
             String accountNumber, String phone) {}
 
-    private final FileDatabase db = new FileDatabase(Path.of("data/employees.txt"));
+    private final KeyValueStore db; // employeeId -> username,hash,role,branch,accountNumber,phone
+
+    // all is by employeeId; passwordHashes is by username
+    private record Index(List<EmployeeRecord> all, Map<String, EmployeeRecord> byUsername,
+                         Map<String, EmployeeRecord> byId, Map<String, String> passwordHashes) {}
+
+    private volatile Index index; // null = rebuild on next lookup
+
+    public EmployeeDirectory() {
+        this(Path.of("data/employees.txt"));
+    }
+
+    public EmployeeDirectory(Path file) {
+        this.db = KeyValueStore.open(file);
+        index(); // built at startup, not by the first login
+    }
 
     public Optional<EmployeeRecord> findByUsername(String username) {
-        return listAll().stream().filter(r -> r.username().equals(username)).findFirst();
+        return Optional.ofNullable(index().byUsername().get(username));
     }
 
     /** Find by employee numeric ID (string). */
     public Optional<EmployeeRecord> findById(String employeeId) {
-        return listAll().stream().filter(r -> r.employeeId().equals(employeeId)).findFirst();
+        return Optional.ofNullable(index().byId().get(employeeId));
     }
 
     public List<EmployeeRecord> listAll() {
-        List<String> lines = db.readAllLines();
-        return lines.stream()
-                .filter(s -> s != null && !s.trim().isEmpty() && !s.startsWith("#"))
-                .map(this::parse)
-                .collect(Collectors.toList());
+        return index().all();
+    }
+
+    /** SHA-256 of the password of {@code username} (see AuthService.sha256). */
+    Optional<String> passwordHash(String username) {
+        return Optional.ofNullable(index().passwordHashes().get(username));
+    }
+
+    private Index index() {
+        Index i = index;
+        if (i != null && !db.changedElsewhere()) return i;
+        synchronized (this) {
+            if (index == null || db.changedElsewhere()) index = buildIndex(db.all());
+            return index;
+        }
+    }
+
+    private Index buildIndex(Map<String, String> entries) {
+        List<EmployeeRecord> all = new ArrayList<>();
+        Map<String, EmployeeRecord> byUsername = new HashMap<>();
+        Map<String, EmployeeRecord> byId = new HashMap<>();
+        Map<String, String> hashes = new HashMap<>();
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            EmployeeRecord r;
+            try {
+                r = parse(e.getKey(), e.getValue());
+            } catch (IllegalArgumentException | IllegalStateException ex) {
+                Loggers.system().warning("Skipping employees line: " + ex.getMessage());
+                continue;
+            }
+            all.add(r);
+            byUsername.putIfAbsent(r.username(), r);
+            byId.putIfAbsent(r.employeeId(), r);
+            hashes.putIfAbsent(r.username(), e.getValue().split(",", -1)[1]);
+        }
+        // ids are numbers but keys order as strings ("10" before "2")
+        all.sort(Comparator.comparingInt((EmployeeRecord r) -> r.employeeId().length()).thenComparing(EmployeeRecord::employeeId));
+        return new Index(Collections.unmodifiableList(all), byUsername, byId, hashes);
     }
 
     public boolean usernameExists(String username) {
@@ -47,7 +104,7 @@ public class EmployeeDirectory {
     }
 
     /** Add a new employee (validates role & password policy, ensures unique username). */
-    public EmployeeRecord addEmployee(String username,
+    public synchronized EmployeeRecord addEmployee(String username,
                                       String plainPassword,
                                       String role,
                                       Branch branch,
@@ -55,18 +112,18 @@ public class EmployeeDirectory {
                                       String phone) {
         if (username == null || username.trim().isEmpty())
             throw new IllegalArgumentException("Username is required");
-        if (usernameExists(username))
-            throw new IllegalArgumentException("Username already exists");
+        for (String field : new String[] {username, accountNumber, phone}) {
+            if (field != null && (field.indexOf(',') >= 0 || field.chars().anyMatch(Character::isWhitespace)))
+                throw new IllegalArgumentException("Fields must not contain commas or spaces");
+        }
         String upperRole = role == null ? "" : role.trim().toUpperCase();
         if (!ROLES.contains(upperRole))
             throw new IllegalArgumentException("Role must be one of: " + ROLES);
         if (!PasswordPolicy.validate(plainPassword))
             throw new IllegalArgumentException("Password does not meet the policy");
 
-        String id = nextEmployeeId();
         String hash = AuthService.sha256(plainPassword);
-        String line = String.join(",",
-                id,
+        String value = String.join(",",
                 username,
                 hash,
                 upperRole,
@@ -74,58 +131,60 @@ public class EmployeeDirectory {
                 accountNumber == null ? "" : accountNumber,
                 phone == null ? "" : phone
         );
-        db.appendLine(line);
+        // uniqueness check, id and insert in one step, so concurrent servers cannot reuse either
+        String id = db.atomically(b -> {
+            Map<String, String> existing = b.scan(null, null);
+            for (String v : existing.values()) {
+                if (v.startsWith(username + ",")) throw new IllegalArgumentException("Username already exists");
+            }
+            String next = nextEmployeeId(existing.keySet());
+            b.put(next, value);
+            b.record(ChangeLog.change("EMPLOYEE", "ADDED", next, String.join(",", username, upperRole, branch.name(),
+                    accountNumber == null ? "" : accountNumber, phone == null ? "" : phone)));
+            return next;
+        });
+        index = null;
         
         // Log the employee addition
-        Loggers.employees().info(String.format("EMPLOYEE_ADDED: ID=%s, Username=%s, Role=%s, Branch=%s, Account=%s, Phone=%s", 
-            id, username, upperRole, branch.name(), accountNumber, phone));
+        LogEvent.info(Loggers.employees(), "EMPLOYEE_ADDED")
+                .field("ID", id).field("Username", username).field("Role", upperRole)
+                .field("Branch", branch.name()).field("Account", accountNumber).field("Phone", phone).log();
         
-        return parse(line);
+        return parse(id, value);
     }
 
     /** Delete employee by ID. Returns true if removed. */
-    public boolean deleteById(String employeeId) {
-        List<String> lines = new ArrayList<>(db.readAllLines());
-        boolean removed = false;
-
-        for (Iterator<String> it = lines.iterator(); it.hasNext();) {
-            String s = it.next();
-            if (s == null) continue;
-            String line = s.trim();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1);
-            if (t.length < 7) continue;
-            if (t[0].equals(employeeId)) {
-                it.remove();
-                removed = true;
-            }
-        }
+    public synchronized boolean deleteById(String employeeId) {
+        boolean removed = db.atomically(b -> {
+            if (!b.delete(employeeId)) return false;
+            b.record(ChangeLog.change("EMPLOYEE", "DELETED", employeeId, ""));
+            return true;
+        });
+        index = null;
         if (removed) {
-            db.writeAllLines(lines);
-            
             // Log the employee deletion
-            Loggers.employees().info(String.format("EMPLOYEE_DELETED: ID=%s", employeeId));
+            LogEvent.info(Loggers.employees(), "EMPLOYEE_DELETED").field("ID", employeeId).log();
         }
         return removed;
     }
 
-    private String nextEmployeeId() {
+    private static String nextEmployeeId(Set<String> existing) {
         int max = 0;
-        for (EmployeeRecord r : listAll()) {
+        for (String id : existing) {
             try {
-                max = Math.max(max, Integer.parseInt(r.employeeId()));
+                max = Math.max(max, Integer.parseInt(id));
             } catch (NumberFormatException ignored) {}
         }
         return String.valueOf(max + 1);
     }
 
-    private EmployeeRecord parse(String s) {
-        String[] t = s.split(",", -1);
-        // employeeId,username,hash,role,branch,accountNumber,phone
-        if (t.length < 7) throw new IllegalStateException("Bad employees line: " + s);
+    private EmployeeRecord parse(String id, String value) {
+        String[] t = value.split(",", -1);
+        // username,hash,role,branch,accountNumber,phone
+        if (t.length < 6) throw new IllegalStateException("Bad employees line: " + id + "," + value);
         return new EmployeeRecord(
-                t[0], t[1], t[3], Branch.valueOf(t[4]),
-                t[5], t[6]
+                id, t[0], t[2], Branch.valueOf(t[3]),
+                t[4], t[5]
         );
     }
 }
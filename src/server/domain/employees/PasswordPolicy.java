@@ -30,6 +30,7 @@ public class PasswordPolicy {
     }
 
     public static synchronized boolean validate(String password) {
+        refresh();
         if (password == null || password.length() < minimumLength) return false;
         boolean hasDigit = false, hasLetter = false;
         for (char c : password.toCharArray()) {
@@ -41,9 +42,18 @@ public class PasswordPolicy {
         return true;
     }
 
-    public static int minimumLength() { return minimumLength; }
-    public static boolean requireDigit() { return requireDigit; }
-    public static boolean requireLetter() { return requireLetter; }
+    public static synchronized int minimumLength() { refresh(); return minimumLength; }
+    public static synchronized boolean requireDigit() { refresh(); return requireDigit; }
+    public static synchronized boolean requireLetter() { refresh(); return requireLetter; }
+
+    // another server process may have configured a new policy
+    private static void refresh() {
+        try {
+            if (db.changedElsewhere()) load();
+        } catch (RuntimeException ignored) {
+            // keep the policy we have
+        }
+    }
 
     private static void load() {
         try {
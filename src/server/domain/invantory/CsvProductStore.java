@@ -0,0 +1,213 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.CsvScanner;
+import server.util.FileDatabase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File: data/products/<BRANCH>.txt (one per branch)
+ * Format: sku,category,branch,quantity,price
+ *
+ * The file is parsed in parallel chunks straight from its bytes (see
+ * FileDatabase.scan; no per-line String, no split, no BigDecimal) and the
+ * chunks are appended to the table in file order. Every change rewrites the file from the table; leading "#"
+ * comment lines are kept. The rewrite is conditional: if another StoreServer
+ * process wrote the file since we loaded it, StaleDataException is thrown and
+ * the shard reloads. The table also goes into the snapshot image, so a
+ * restart whose file has not changed skips the parse.
+ */
+class CsvProductStore implements ProductStore {
+    private final FileDatabase productsDb;
+    private final List<String> comments = new ArrayList<>();
+
+    CsvProductStore(Path file) { this.productsDb = new FileDatabase(file); }
+
+    @Override
+    public void loadInto(InventoryTable table) {
+        List<Chunk> chunks = productsDb.scan(Chunk::new, Chunk::parse); // in parallel, straight from the file's bytes
+        int rows = table.size();
+        for (Chunk c : chunks) rows += c.size;
+        table.ensureCapacity(rows);
+        comments.clear();
+        for (Chunk c : chunks) {
+            comments.addAll(c.comments);
+            List<String> names = c.categories.values();
+            int[] ids = new int[names.size()];
+            for (int i = 0; i < ids.length; i++) ids[i] = table.categoryId(names.get(i));
+            for (int i = 0; i < c.size; i++) {
+                table.add(c.skuNum[i], c.skuText == null ? null : c.skuText[i], ids[c.category[i]],
+                        c.branch[i], c.quantity[i], c.price[i]);
+            }
+        }
+    }
+
+    /** The rows of one part of the file, parsed on its own; category ids are local to the chunk. */
+    private static final class Chunk {
+        final List<String> comments = new ArrayList<>();
+        final CsvScanner.Dictionary categories = new CsvScanner.Dictionary();
+        final byte[][] branchNames = branchNames();
+        int size;
+        long[] skuNum = new long[1024];
+        String[] skuText; // allocated on the first SKU that is not a plain number
+        int[] category = new int[1024];
+        byte[] branch = new byte[1024];
+        int[] quantity = new int[1024];
+        long[] price = new long[1024];
+
+        void parse(CsvScanner.Line l) {
+            if (l.charAt(0) == '#') { comments.add(l.toString()); return; }
+            if (l.isBlank()) return;
+            if (l.fields() < 5) throw new IllegalArgumentException("Bad product line: " + l);
+            if (size == skuNum.length) grow();
+            long num = InventoryTable.numericSku(l, 0, l.end(0));
+            if (num == InventoryTable.NOT_NUMERIC) {
+                if (skuText == null) skuText = new String[skuNum.length];
+                skuText[size] = l.field(0);
+            }
+            skuNum[size] = num;
+            category[size] = categories.id(l, 1);
+            branch[size] = (byte) branchOrdinal(l);
+            quantity[size] = Integer.parseInt(l, l.start(3), l.end(3), 10);
+            price[size] = InventoryTable.parseMinor(l, l.start(4), l.length());
+            size++;
+        }
+
+        private void grow() {
+            int n = skuNum.length * 2;
+            skuNum = Arrays.copyOf(skuNum, n);
+            if (skuText != null) skuText = Arrays.copyOf(skuText, n);
+            category = Arrays.copyOf(category, n);
+            branch = Arrays.copyOf(branch, n);
+            quantity = Arrays.copyOf(quantity, n);
+            price = Arrays.copyOf(price, n);
+        }
+
+        private int branchOrdinal(CsvScanner.Line l) {
+            for (int b = 0; b < branchNames.length; b++) if (l.fieldEquals(2, branchNames[b])) return b;
+            throw new IllegalArgumentException("Unknown branch: " + l.field(2));
+        }
+
+        private static byte[][] branchNames() {
+            Branch[] all = Branch.values();
+            byte[][] names = new byte[all.length][];
+            for (Branch b : all) names[b.ordinal()] = b.name().getBytes(StandardCharsets.UTF_8);
+            return names;
+        }
+    }
+
+    @Override
+    public boolean changedElsewhere() { return productsDb.changedElsewhere(); }
+
+    @Override
+    public boolean saveSnapshot(InventoryTable table, DataOutputStream out) throws IOException {
+        FileDatabase.Stamp stamp = productsDb.stampIfUnchanged(); // null: the table is behind the file
+        if (stamp == null) return false;
+        stamp.writeTo(out);
+        out.writeInt(comments.size());
+        for (String c : comments) out.writeUTF(c);
+        table.writeTo(out);
+        return true;
+    }
+
+    @Override
+    public boolean restoreSnapshot(InventoryTable table, DataInputStream in) throws IOException {
+        List<String> since = productsDb.linesSince(FileDatabase.Stamp.readFrom(in));
+        if (since == null || !since.isEmpty()) return false; // rewritten (or hand-edited) since the image
+        comments.clear();
+        for (int n = in.readInt(); n > 0; n--) comments.add(in.readUTF());
+        table.readFrom(in);
+        return true;
+    }
+
+    @Override
+    public void quantityChanged(InventoryTable table, int row, List<StockChange> changes) { writeAll(table, changes); }
+
+    @Override
+    public void quantitiesChanged(InventoryTable table, int[] rows, List<StockChange> changes) {
+        writeAll(table, changes); // one rewrite per cart
+    }
+
+    @Override
+    public void added(InventoryTable table, int row, List<StockChange> changes) { writeAll(table, changes); }
+
+    @Override
+    public void removed(InventoryTable table, Branch branch, String sku, List<StockChange> changes) { writeAll(table, changes); }
+
+    private void writeAll(InventoryTable table, List<StockChange> changes) {
+        List<String> lines = new ArrayList<>(comments.size() + table.size());
+        lines.addAll(comments);
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < table.size(); i++) {
+            sb.setLength(0);
+            lines.add(formatRow(sb, table, i).toString());
+        }
+        productsDb.writeAllLinesIfUnchanged(lines, StockChange.logged(changes));
+    }
+
+    /** Splits a products file into <BRANCH>.txt files in {@code dir}; "#" lines go to each of them. */
+    static int splitByBranch(Path file, Path dir) {
+        List<String> comments = new ArrayList<>();
+        Map<Branch, List<String>> byBranch = new LinkedHashMap<>();
+        for (Branch b : Branch.values()) byBranch.put(b, new ArrayList<>());
+        int n = 0;
+        for (String s : new FileDatabase(file).readAllLines()) {
+            if (s.startsWith("#")) { comments.add(s); continue; }
+            if (s.isBlank()) continue;
+            int c2 = s.indexOf(',', s.indexOf(',') + 1), c3 = s.indexOf(',', c2 + 1);
+            if (c2 < 0 || c3 < 0) throw new IllegalArgumentException("Bad product line: " + s);
+            byBranch.get(Branch.values()[branchOrdinal(s, c2 + 1, c3)]).add(s);
+            n++;
+        }
+        for (Map.Entry<Branch, List<String>> e : byBranch.entrySet()) {
+            List<String> lines = new ArrayList<>(comments);
+            lines.addAll(e.getValue());
+            new FileDatabase(dir.resolve(e.getKey().name() + ".txt")).writeAllLines(lines);
+        }
+        return n;
+    }
+
+    /** sku,category,branch,quantity,price -> one table row. */
+    static int parseInto(InventoryTable table, String s) {
+        int c1 = s.indexOf(','), c2 = s.indexOf(',', c1 + 1), c3 = s.indexOf(',', c2 + 1), c4 = s.indexOf(',', c3 + 1);
+        if (c1 < 0 || c2 < 0 || c3 < 0 || c4 < 0) throw new IllegalArgumentException("Bad product line: " + s);
+        return table.add(
+                s.substring(0, c1),
+                s.substring(c1 + 1, c2),
+                branchOrdinal(s, c2 + 1, c3),
+                parseInt(s, c3 + 1, c4),
+                InventoryTable.parseMinor(s, c4 + 1, s.length()));
+    }
+
+    static StringBuilder formatRow(StringBuilder sb, InventoryTable table, int row) {
+        long num = table.skuNumber(row);
+        if (num != InventoryTable.NOT_NUMERIC) sb.append(num); else sb.append(table.sku(row));
+        sb.append(',').append(table.category(row))
+          .append(',').append(table.branch(row).name())
+          .append(',').append(table.quantity(row))
+          .append(',');
+        return InventoryTable.appendMinor(sb, table.priceMinor(row));
+    }
+
+    private static int branchOrdinal(String s, int from, int to) {
+        for (Branch b : Branch.values()) {
+            String n = b.name();
+            if (n.length() == to - from && s.regionMatches(from, n, 0, n.length())) return b.ordinal();
+        }
+        throw new IllegalArgumentException("Unknown branch: " + s.substring(from, to));
+    }
+
+    private static int parseInt(String s, int from, int to) {
+        return Integer.parseInt(s, from, to, 10);
+    }
+}
@@ -1,142 +1,343 @@
 package server.domain.invantory;
 import server.util.FileDatabase;
+import server.util.LogEvent;
 import server.util.Loggers;
+import server.util.StaleDataException;
 import server.shared.Branch;
 
 
 import java.math.BigDecimal;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
+/**
+ * Routes inventory operations to one InventoryShard per Branch.
+ *
+ * Everything that names a branch (list, find, sell, order, checkout, add,
+ * remove) goes to that branch's shard only: its own file, table, snapshot and
+ * lock, so branches never contend. Cross-branch work is kept here:
+ *   - TRANSFER locks the two shards (in branch order, so two transfers cannot
+ *     deadlock) and goes through a redo log, because it writes two files.
+ *   - STOCK_WHERE reads every shard's snapshot; a StampedLock taken only by
+ *     transfers lets it read optimistically and retry if a transfer published
+ *     in between, so it never sees units in both branches or in neither.
+ *   - new SKUs are numbered from one counter across all branches, kept in
+ *     data/products/last_sku.txt so StoreServer processes sharing the
+ *     directory never hand out the same number.
+ * Every change goes to the ChangeLog as a PRODUCT event keyed
+ * "<BRANCH>/<sku>" with the row after it (category,branch,quantity,price),
+ * logged by the branch's store with the write that makes it (see
+ * ProductStore), so the log has them in write order across processes too.
+ */
 public class InventoryService {
 
     public static record StockInfo(
             String sku, String category, Branch branch,
             int quantity, BigDecimal price) {}
 
-    private final FileDatabase productsDb = new FileDatabase(Path.of("data/products.txt"));
+    private final InventoryShard[] shards;
+    private final TransferJournal journal;
+    private final StampedLock transfers = new StampedLock();
+    private final AtomicLong lastSku;
+    private final FileDatabase lastSkuDb;
+    private static final int TRANSFER_ATTEMPTS = 5;
 
-    public synchronized List<Product> listByBranch(Branch branch) {
-        return productsDb.readAllLines().stream()
-                .filter(s -> !s.isBlank() && !s.startsWith("#"))
-                .map(this::parseProduct)
-                .filter(p -> p.branch() == branch)
-                .collect(Collectors.toList());
-    }
+    // told about every committed change, under the shard's lock: listeners must not block
+    private final List<Consumer<StockChange>> changeListeners = new CopyOnWriteArrayList<>();
 
-    public synchronized Optional<Product> findProduct(Branch branch, String sku) {
-        return listByBranch(branch).stream().filter(p -> p.sku().equals(sku)).findFirst();
+    public InventoryService() {
+        this(Path.of("data/products"));
     }
 
-    public synchronized Optional<StockInfo> getStockInfo(Branch branch, String sku) {
-        return findProduct(branch, sku)
-                .map(p -> new StockInfo(p.sku(), p.category(), p.branch(), p.quantity(), p.price()));
+    public InventoryService(Path dir) {
+        int migrated = ProductStore.migrateLegacy(dir.resolveSibling("products.txt"), dir.resolveSibling("products.bin"), dir);
+        if (migrated > 0) Loggers.system().info("Split " + migrated + " products into one file per branch in " + dir);
+
+        Branch[] branches = Branch.values();
+        shards = new InventoryShard[branches.length];
+        long maxSku = 1000;
+        for (Branch b : branches) {
+            shards[b.ordinal()] = new InventoryShard(b, ProductStore.fromConfig(dir, b), this::publish);
+            maxSku = Math.max(maxSku, shards[b.ordinal()].maxNumericSku(1000));
+        }
+        lastSku = new AtomicLong(maxSku);
+        lastSkuDb = new FileDatabase(dir.resolve("last_sku.txt"));
+
+        journal = new TransferJournal(dir.resolve("transfers.log"));
+        redoUnfinishedTransfers();
     }
 
-    public synchronized StockInfo requireStockInfo(Branch branch, String sku) {
-        return getStockInfo(branch, sku)
-                .orElseThrow(() -> new IllegalStateException("SKU not found in branch: " + branch + " sku=" + sku));
+    private InventoryShard shard(Branch branch) { return shards[branch.ordinal()]; }
+
+    /** Registers a listener for committed stock changes. It runs on the writer's thread and must only hand the event off. */
+    public void onStockChange(Consumer<StockChange> listener) {
+        changeListeners.add(listener);
     }
 
-    public synchronized void updateQuantity(Branch branch, String sku, int delta) {
-        List<String> lines = productsDb.readAllLines();
-        boolean updated = false;
-        for (int i = 0; i < lines.size(); i++) {
-            String s = lines.get(i);
-            if (s.isBlank() || s.startsWith("#")) continue;
-            Product p = parseProduct(s);
-            if (p.branch() == branch && p.sku().equals(sku)) {
-                int newQuantity = Math.max(0, p.quantity() + delta);
-                Product np = new Product(p.sku(), p.category(), p.branch(), newQuantity, p.price());
-                lines.set(i, formatProduct(np));
-                productsDb.writeAllLines(lines);
-                updated = true;
-                
-                // Log the transaction
-                if (delta > 0) {
-                    Loggers.transactions().info(String.format("STOCK_ORDERED: Branch=%s, ID=%s, Category=%s, Quantity=%d, Price=%s", 
-                        branch.name(), sku, p.category(), delta, p.price()));
-                } else if (delta < 0) {
-                    Loggers.transactions().info(String.format("STOCK_SOLD: Branch=%s, ID=%s, Category=%s, Quantity=%d, Price=%s", 
-                        branch.name(), sku, p.category(), Math.abs(delta), p.price()));
+    // under the shard's lock, once the store has written (and logged) the changes
+    private void publish(List<StockChange> changes) {
+        for (StockChange change : changes) {
+            for (Consumer<StockChange> l : changeListeners) {
+                try {
+                    l.accept(change);
+                } catch (RuntimeException e) {
+                    Loggers.system().warning("Stock change listener failed: " + e.getMessage());
                 }
-                break;
             }
         }
-        if (!updated) throw new IllegalStateException("SKU not found for update: " + sku + " at " + branch);
-    }
-
-    public synchronized boolean removeProduct(Branch branch, String sku) {
-        java.util.List<String> lines = productsDb.readAllLines();
-        boolean removed = false;
-        java.util.List<String> out = new java.util.ArrayList<String>(lines.size());
-        Product removedProduct = null;
-        for (String s : lines) {
-            if (s.isBlank() || s.startsWith("#")) { out.add(s); continue; }
-            Product p = parseProduct(s);
-            if (p.branch() == branch && p.sku().equals(sku)) {
-                removed = true; // skip adding
-                removedProduct = p; // store for logging
-            } else {
-                out.add(s);
-            }
+    }
+
+    /**
+     * The products of {@code branch} as stored in {@code dir}, read without
+     * opening the service: no migration, no transfer redo, nothing written.
+     * For processes that only follow the store (ReplicaServer).
+     */
+    public static List<Product> readBranch(Path dir, Branch branch) {
+        InventoryTable table = new InventoryTable();
+        ProductStore.fromConfig(dir, branch).loadInto(table);
+        return InventorySnapshot.of(table).byBranch(branch);
+    }
+
+    // ---------- reads: the shard's current snapshot, no lock ----------
+
+    public List<Product> listByBranch(Branch branch) {
+        return shard(branch).snapshot().byBranch(branch);
+    }
+
+    public Optional<Product> findProduct(Branch branch, String sku) {
+        InventorySnapshot snap = shard(branch).snapshot();
+        int row = snap.find(branch, sku);
+        return row < 0 ? Optional.empty() : Optional.of(snap.product(row));
+    }
+
+    public Optional<StockInfo> getStockInfo(Branch branch, String sku) {
+        InventorySnapshot snap = shard(branch).snapshot();
+        int row = snap.find(branch, sku);
+        if (row < 0) return Optional.empty();
+        return Optional.of(new StockInfo(snap.sku(row), snap.category(row), branch, snap.quantity(row), snap.price(row)));
+    }
+
+    public StockInfo requireStockInfo(Branch branch, String sku) {
+        return getStockInfo(branch, sku)
+                .orElseThrow(() -> new IllegalStateException("SKU not found in branch: " + branch + " sku=" + sku));
+    }
+
+    /** Every branch that carries {@code sku}, in branch order, as of one moment between transfers. */
+    public List<StockInfo> stockWhere(String sku) {
+        long stamp = transfers.tryOptimisticRead();
+        List<StockInfo> out = stockWhereUnguarded(sku);
+        if (transfers.validate(stamp)) return out;
+        stamp = transfers.readLock(); // a transfer published while we read: read again, excluding them
+        try {
+            return stockWhereUnguarded(sku);
+        } finally {
+            transfers.unlockRead(stamp);
         }
-        if (removed) {
-            productsDb.writeAllLines(out);
-            
-            // Log the transaction
-            if (removedProduct != null) {
-                Loggers.transactions().info(String.format("PRODUCT_REMOVED: Branch=%s, ID=%s, Category=%s, Quantity=%d, Price=%s", 
-                    branch.name(), sku, removedProduct.category(), removedProduct.quantity(), removedProduct.price()));
-            }
+    }
+
+    private List<StockInfo> stockWhereUnguarded(String sku) {
+        List<StockInfo> out = new ArrayList<>(shards.length);
+        for (InventoryShard s : shards) {
+            InventorySnapshot snap = s.snapshot();
+            int row = snap.find(s.branch, sku); // the (sku, branch) index answers each branch directly
+            if (row >= 0) out.add(new StockInfo(snap.sku(row), snap.category(row), s.branch, snap.quantity(row), snap.price(row)));
         }
-        return removed;
+        return out;
+    }
+
+    // ---------- writes ----------
+
+    public void updateQuantity(Branch branch, String sku, int delta) {
+        shard(branch).updateQuantity(sku, delta);
+    }
+
+    /**
+     * Takes every cart line out of stock together, or none of them.
+     * Fails with IllegalStateException "SKU_NOT_FOUND <sku>" or "NOT_ENOUGH_STOCK <sku>".
+     * Returns the products as they were before the reservation, in cart order.
+     */
+    public List<Product> reserveAll(Branch branch, List<String> skus, int[] quantities) {
+        return shard(branch).reserveAll(skus, quantities);
     }
 
-    private Product parseProduct(String s) {
-        String[] t = s.split(",", -1); // sku,category,branch,quantity,price
-        Product p = new Product(
-                t[0], t[1], Branch.valueOf(t[2]),
-                Integer.parseInt(t[3]),
-                new BigDecimal(t[4])
-        );
-        return p;
+    /** Puts back what reserveAll took, when the sale could not be recorded. */
+    public void releaseAll(Branch branch, List<String> skus, int[] quantities) {
+        shard(branch).releaseAll(skus, quantities);
     }
 
-    private String formatProduct(Product p) {
-        return String.join(",",
-                p.sku(), p.category(), p.branch().name(),
-                String.valueOf(p.quantity()), p.price().toPlainString()
-        );
+    public boolean removeProduct(Branch branch, String sku) {
+        return shard(branch).removeProduct(sku);
     }
 
-    public synchronized String addNewProduct(Branch branch, String category, int quantity, BigDecimal price) {
+    public String addNewProduct(Branch branch, String category, int quantity, BigDecimal price) {
         if (quantity < 0) throw new IllegalArgumentException("quantity must be non-negative");
         if (price.compareTo(BigDecimal.ZERO) < 0) throw new IllegalArgumentException("price must be non-negative");
-
-        java.util.List<String> lines = productsDb.readAllLines();
-        // Allocate a unique numeric SKU
-        long maxNumeric = 1000;
-        for (String line : lines) {
-            if (line.isBlank() || line.startsWith("#")) continue;
-            String[] t = line.split(",", -1);
-            String skuStr = t[0];
-            try {
-                long val = Long.parseLong(skuStr);
-                if (val > maxNumeric) maxNumeric = val;
-            } catch (NumberFormatException ignored) { }
+        long priceMinor;
+        try {
+            priceMinor = InventoryTable.toMinor(price);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("price must have at most 2 decimals");
         }
-        String newSku = String.valueOf(maxNumeric + 1);
-
-        Product np = new Product(newSku, category, branch, quantity, price);
-        lines.add(formatProduct(np));
-        productsDb.writeAllLines(lines);
-        
-        // Log the transaction
-        Loggers.transactions().info(String.format("PRODUCT_ADDED: Branch=%s, ID=%s, Category=%s, Quantity=%d, Price=%s", 
-            branch.name(), newSku, category, quantity, price));
-        
+
+        // Allocate a unique numeric SKU (unique across branches and processes)
+        String newSku = String.valueOf(nextSku());
+        shard(branch).addNewProduct(newSku, category, quantity, priceMinor);
         return newSku;
     }
+
+    private long nextSku() {
+        long[] next = new long[1];
+        lastSkuDb.update(lines -> {
+            long stored = lines.isEmpty() ? 0 : Long.parseLong(lines.get(0).trim());
+            next[0] = Math.max(stored, lastSku.get()) + 1;
+            return List.of(String.valueOf(next[0]));
+        });
+        lastSku.accumulateAndGet(next[0], Math::max);
+        return next[0];
+    }
+
+    /**
+     * Moves {@code quantity} units of {@code sku} from one branch to another; a
+     * branch that does not carry the SKU yet gets it with the source's category
+     * and price. Fails with IllegalStateException "SKU_NOT_FOUND",
+     * "NOT_ENOUGH_STOCK" or "SAME_BRANCH". Returns the new quantities {from, to}.
+     */
+    public int[] transfer(String sku, Branch from, Branch to, int quantity) {
+        if (quantity <= 0) throw new IllegalArgumentException("quantity must be positive");
+        if (from == to) throw new IllegalStateException("SAME_BRANCH");
+        return withBoth(from, to, (src, dst) -> transferLocked(sku, from, to, quantity, src, dst));
+    }
+
+    /** Runs {@code op} with both shards locked (in branch order) on current data, retried if another process wrote in between. */
+    private <T> T withBoth(Branch from, Branch to, BiFunction<InventoryShard, InventoryShard, T> op) {
+        InventoryShard src = shard(from), dst = shard(to);
+        InventoryShard first = from.ordinal() < to.ordinal() ? src : dst, second = first == src ? dst : src;
+        first.lock();
+        second.lock();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                src.reloadIfChanged(); // another process may have written either branch
+                dst.reloadIfChanged();
+                try {
+                    return op.apply(src, dst);
+                } catch (StaleDataException e) {
+                    if (attempt >= TRANSFER_ATTEMPTS) throw e;
+                }
+            }
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+    }
+
+    private int[] transferLocked(String sku, Branch from, Branch to, int quantity, InventoryShard src, InventoryShard dst) {
+        int fromRow = src.find(sku);
+        if (fromRow < 0) throw new IllegalStateException("SKU_NOT_FOUND");
+        int fromBefore = src.quantity(fromRow);
+        if (fromBefore < quantity) throw new IllegalStateException("NOT_ENOUGH_STOCK");
+        String category = src.category(fromRow);
+        long priceMinor = src.priceMinor(fromRow);
+        int toRow = dst.find(sku);
+        int toBefore = toRow < 0 ? 0 : dst.quantity(toRow);
+
+        StockChange out = src.change(StockChange.Kind.TRANSFERRED_OUT, sku, category, fromBefore, fromBefore - quantity, priceMinor);
+        StockChange in = dst.change(StockChange.Kind.TRANSFERRED_IN, sku, category, toBefore, toBefore + quantity, priceMinor);
+        String id = journal.begin(sku, from, to, fromBefore - quantity, toBefore + quantity, category, priceMinor, quantity);
+        try {
+            src.setQuantity(fromRow, out);
+        } catch (RuntimeException e) {
+            journal.done(id); // nothing was changed
+            throw e;
+        }
+        boolean toAdded = toRow < 0;
+        try {
+            if (toAdded) toRow = dst.addRow(in);
+            else dst.setQuantity(toRow, in);
+        } catch (RuntimeException e) {
+            // the units come back, logged as such; if this fails too, the journal completes the transfer at startup
+            src.setQuantity(fromRow, src.change(StockChange.Kind.TRANSFERRED_IN, sku, category,
+                    fromBefore - quantity, fromBefore, priceMinor));
+            journal.done(id);
+            throw e;
+        }
+        journal.done(id);
+
+        InventorySnapshot nextSrc = src.advance(false, fromRow), nextDst = dst.advance(toAdded, toRow);
+        long stamp = transfers.writeLock();
+        try {
+            src.publishSnapshot(nextSrc);
+            dst.publishSnapshot(nextDst);
+        } finally {
+            transfers.unlockWrite(stamp);
+        }
+
+        src.publish(out);
+        dst.publish(in);
+        LogEvent.info(Loggers.transactions(), "STOCK_TRANSFERRED")
+                .field("Branch", from.name()).field("To", to.name()).field("ID", sku).field("Category", category)
+                .field("Quantity", quantity).field("Price", BigDecimal.valueOf(priceMinor, 2)).log();
+        return new int[] {fromBefore - quantity, toBefore + quantity};
+    }
+
+    /**
+     * Completes the transfers of processes that died between BEGIN and the
+     * end of the transfer (startup only). Other processes may have written
+     * either branch since, so each side is set to its final quantity only if
+     * it still holds the quantity from before the transfer; a side holding
+     * neither is left as it is, with a warning, rather than overwritten.
+     */
+    private void redoUnfinishedTransfers() {
+        journal.recover(e -> withBoth(e.from(), e.to(), (src, dst) -> {
+            redoLocked(e, src, dst);
+            return null;
+        }));
+    }
+
+    private void redoLocked(TransferJournal.Entry e, InventoryShard src, InventoryShard dst) {
+        boolean unknown = e.quantity() < 0; // an old BEGIN line: set the final quantities as they are
+        int fromRow = src.find(e.sku());
+        if (fromRow >= 0) {
+            int now = src.quantity(fromRow);
+            if (now != e.fromAfter() && (unknown || now == e.fromAfter() + e.quantity())) {
+                StockChange out = src.change(StockChange.Kind.TRANSFERRED_OUT, e.sku(), e.category(), now, e.fromAfter(),
+                        src.priceMinor(fromRow));
+                src.setQuantity(fromRow, out);
+                src.publishSnapshot(src.advance(false, fromRow));
+                src.publish(out);
+            } else if (now != e.fromAfter()) {
+                warnChanged(e, e.from(), now);
+            }
+        }
+        int toRow = dst.find(e.sku());
+        if (toRow >= 0) {
+            int now = dst.quantity(toRow);
+            if (now != e.toAfter() && (unknown || now == e.toAfter() - e.quantity())) {
+                StockChange in = dst.change(StockChange.Kind.TRANSFERRED_IN, e.sku(), e.category(), now, e.toAfter(),
+                        dst.priceMinor(toRow));
+                dst.setQuantity(toRow, in);
+                dst.publishSnapshot(dst.advance(false, toRow));
+                dst.publish(in);
+            } else if (now != e.toAfter()) {
+                warnChanged(e, e.to(), now);
+            }
+        } else if (unknown || e.toAfter() == e.quantity()) { // the transfer was to add the row
+            StockChange in = dst.change(StockChange.Kind.TRANSFERRED_IN, e.sku(), e.category(), 0, e.toAfter(), e.priceMinor());
+            toRow = dst.addRow(in);
+            dst.publishSnapshot(dst.advance(true, toRow));
+            dst.publish(in);
+        } else {
+            warnChanged(e, e.to(), 0);
+        }
+        Loggers.system().warning("Completed interrupted transfer " + e.id() + " of " + e.sku() + " from " + e.from() + " to " + e.to());
+    }
+
+    private static void warnChanged(TransferJournal.Entry e, Branch branch, int now) {
+        Loggers.system().warning("Interrupted transfer " + e.id() + " of " + e.sku() + ": " + branch
+                + " was changed since (now " + now + "), left as is");
+    }
 }
@@ -0,0 +1,345 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.LatencyHistogram;
+import server.util.LogEvent;
+import server.util.Loggers;
+import server.util.Metrics;
+import server.util.Snapshots;
+import server.util.StaleDataException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One branch's inventory: its own store (data/products/<BRANCH>.txt or .bin),
+ * resident table, published snapshot and lock. Operations on different
+ * branches never wait for each other; InventoryService routes to the shard
+ * and coordinates the rare cross-branch work (transfers).
+ *
+ * Other StoreServer processes may share the file. Every write first reloads
+ * the table if the file changed elsewhere, and the store's write is
+ * conditional, so losing a race means reload and retry rather than
+ * overwriting the other process's change. Reads check for such changes at
+ * most every -Dinventory.refresh.millis (default 200).
+ *
+ * Each write hands its StockChanges to the store, which logs them with the
+ * write (see ProductStore); {@code events} gets them once the write is done.
+ */
+final class InventoryShard {
+    final Branch branch;
+    private final ProductStore store;
+    private InventoryTable table;
+    // what readers see; replaced (never changed) by each successful write, so reads take no lock
+    private volatile InventorySnapshot snapshot;
+    private final Consumer<List<StockChange>> events; // the changes of one operation, in order
+
+    // explicit lock (instead of synchronized) so the time spent waiting for it can be measured
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LatencyHistogram lockWait;
+
+    private static final int WRITE_ATTEMPTS = 5;
+    private static final long REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("inventory.refresh.millis", 200));
+    private volatile long lastRefresh = System.nanoTime();
+    private final LongAdder reloads;
+
+    InventoryShard(Branch branch, ProductStore store, Consumer<List<StockChange>> events) {
+        this.branch = branch;
+        this.store = store;
+        this.events = events;
+        this.lockWait = Metrics.histogram("inventory.lock_wait." + branch.name());
+        this.reloads = Metrics.counter("inventory.reloads." + branch.name());
+        this.table = restoreOrLoad();
+        snapshot = InventorySnapshot.of(table);
+        Snapshots.register("inventory." + branch.name(), out -> {
+            lock();
+            try {
+                return store.saveSnapshot(table, out);
+            } finally {
+                unlock();
+            }
+        });
+    }
+
+    // the table from the snapshot image if the store has not changed since, else from the store
+    private InventoryTable restoreOrLoad() {
+        InventoryTable[] restored = new InventoryTable[1];
+        if (Snapshots.restore("inventory." + branch.name(), in -> {
+            InventoryTable t = new InventoryTable();
+            if (!store.restoreSnapshot(t, in)) return false;
+            restored[0] = t;
+            return true;
+        })) return checked(restored[0]);
+        return load();
+    }
+
+    private InventoryTable load() {
+        InventoryTable t = new InventoryTable();
+        store.loadInto(t);
+        return checked(t);
+    }
+
+    private InventoryTable checked(InventoryTable t) {
+        for (int row = t.size() - 1; row >= 0; row--) {
+            if (t.branchOrdinal(row) != branch.ordinal())
+                throw new IllegalStateException("Product " + t.sku(row) + " of " + t.branch(row) + " in the " + branch + " shard");
+        }
+        return t;
+    }
+
+    /** Reloads table and snapshot if another process changed the file. Caller holds the lock. */
+    void reloadIfChanged() {
+        lastRefresh = System.nanoTime();
+        if (!store.changedElsewhere()) return;
+        table = load();
+        snapshot = InventorySnapshot.of(table);
+        reloads.increment();
+    }
+
+    /** Runs a write under the lock on current data; retried from a reload if another process wrote in between. */
+    private <T> T write(Supplier<T> op) {
+        lock();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                reloadIfChanged();
+                try {
+                    return op.get();
+                } catch (StaleDataException e) {
+                    if (attempt >= WRITE_ATTEMPTS) throw e; // the op rolled the table back; the next reload replaces it
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void lock() {
+        if (lock.isHeldByCurrentThread()) { lock.lock(); return; }
+        long t0 = System.nanoTime();
+        lock.lock();
+        lockWait.recordSince(t0);
+    }
+
+    void unlock() { lock.unlock(); }
+
+    InventorySnapshot snapshot() {
+        if (System.nanoTime() - lastRefresh > REFRESH_NANOS && lock.tryLock()) { // a busy writer reloads anyway
+            try {
+                reloadIfChanged();
+            } catch (RuntimeException e) {
+                Loggers.system().warning("Inventory reload of " + branch + " failed: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        return snapshot;
+    }
+
+    /** Largest numeric SKU in this branch, or {@code floor}. */
+    long maxNumericSku(long floor) {
+        return write(() -> table.maxNumericSku(floor));
+    }
+
+    // ---------- branch-local writes ----------
+
+    void updateQuantity(String sku, int delta) {
+        write(() -> {
+            int row = table.find(branch, sku);
+            if (row < 0) throw new IllegalStateException("SKU not found for update: " + sku + " at " + branch);
+            int oldQuantity = table.quantity(row);
+            int newQuantity = Math.max(0, oldQuantity + delta);
+            List<StockChange> changes = delta == 0 ? List.of()
+                    : List.of(change(delta > 0 ? StockChange.Kind.ORDERED : StockChange.Kind.SOLD,
+                            sku, table.category(row), oldQuantity, newQuantity, table.priceMinor(row)));
+            table.setQuantity(row, newQuantity);
+            try {
+                store.quantityChanged(table, row, changes);
+            } catch (RuntimeException e) {
+                table.setQuantity(row, oldQuantity); // keep memory and disk in step
+                throw e;
+            }
+            snapshot = snapshot.withQuantities(table, row);
+
+            // Log the transaction
+            if (delta != 0) {
+                events.accept(changes);
+                LogEvent.info(Loggers.transactions(), delta > 0 ? "STOCK_ORDERED" : "STOCK_SOLD")
+                        .field("Branch", branch.name()).field("ID", sku).field("Category", table.category(row))
+                        .field("Quantity", Math.abs(delta)).field("Price", BigDecimal.valueOf(table.priceMinor(row), 2)).log();
+            }
+            return null;
+        });
+    }
+
+    List<Product> reserveAll(List<String> skus, int[] quantities) {
+        return write(() -> {
+            int n = skus.size();
+            int[] rows = new int[n];
+            Map<Integer, Integer> needed = new HashMap<>(); // a SKU may appear on several lines
+            for (int i = 0; i < n; i++) {
+                rows[i] = table.find(branch, skus.get(i));
+                if (rows[i] < 0) throw new IllegalStateException("SKU_NOT_FOUND " + skus.get(i));
+                if (quantities[i] <= 0) throw new IllegalArgumentException("quantity must be positive");
+                int total = needed.merge(rows[i], quantities[i], Integer::sum);
+                if (table.quantity(rows[i]) < total) throw new IllegalStateException("NOT_ENOUGH_STOCK " + skus.get(i));
+            }
+
+            List<Product> before = new ArrayList<>(n);
+            for (int row : rows) before.add(table.product(row));
+            // per line, so repeated SKUs get consecutive before/after values
+            List<StockChange> sold = new ArrayList<>(n);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                int was = table.quantity(rows[i]);
+                table.setQuantity(rows[i], was - quantities[i]);
+                sold.add(new StockChange(now, StockChange.Kind.SOLD, branch, skus.get(i), table.category(rows[i]),
+                        was, was - quantities[i], table.priceMinor(rows[i])));
+            }
+            try {
+                store.quantitiesChanged(table, rows, sold);
+            } catch (RuntimeException e) {
+                for (int i = 0; i < n; i++) table.setQuantity(rows[i], table.quantity(rows[i]) + quantities[i]);
+                throw e;
+            }
+            snapshot = snapshot.withQuantities(table, rows);
+
+            events.accept(sold); // one cart, one batch
+            for (int i = 0; i < n; i++) {
+                LogEvent.info(Loggers.transactions(), "STOCK_SOLD")
+                        .field("Branch", branch.name()).field("ID", skus.get(i)).field("Category", table.category(rows[i]))
+                        .field("Quantity", quantities[i]).field("Price", BigDecimal.valueOf(table.priceMinor(rows[i]), 2)).log();
+            }
+            return before;
+        });
+    }
+
+    /** Puts units taken by reserveAll back (their sale could not be recorded); SKUs removed since are skipped. */
+    void releaseAll(List<String> skus, int[] quantities) {
+        write(() -> {
+            int[] rows = new int[skus.size()], added = new int[skus.size()];
+            List<StockChange> released = new ArrayList<>(rows.length);
+            int n = 0;
+            for (int i = 0; i < rows.length; i++) {
+                int row = table.find(branch, skus.get(i));
+                if (row < 0) continue;
+                int was = table.quantity(row);
+                table.setQuantity(row, was + quantities[i]);
+                released.add(change(StockChange.Kind.RELEASED, skus.get(i), table.category(row), was, was + quantities[i],
+                        table.priceMinor(row)));
+                rows[n] = row;
+                added[n++] = quantities[i];
+            }
+            if (n == 0) return null;
+            int[] changed = Arrays.copyOf(rows, n);
+            try {
+                store.quantitiesChanged(table, changed, released);
+            } catch (RuntimeException e) {
+                for (int i = 0; i < n; i++) table.setQuantity(changed[i], table.quantity(changed[i]) - added[i]);
+                throw e;
+            }
+            snapshot = snapshot.withQuantities(table, changed);
+
+            events.accept(released);
+            for (StockChange c : released) {
+                LogEvent.info(Loggers.transactions(), "STOCK_RELEASED")
+                        .field("Branch", branch.name()).field("ID", c.sku()).field("Category", c.category())
+                        .field("Quantity", c.after() - c.before()).field("Price", BigDecimal.valueOf(c.priceMinor(), 2)).log();
+            }
+            return null;
+        });
+    }
+
+    boolean removeProduct(String sku) {
+        return write(() -> {
+            int row = table.find(branch, sku);
+            if (row < 0) return false;
+            Product p = table.product(row);
+            List<StockChange> changes = List.of(change(StockChange.Kind.REMOVED, sku, p.category(), p.quantity(), 0,
+                    InventoryTable.toMinor(p.price())));
+            table.remove(row);
+            try {
+                store.removed(table, branch, sku, changes);
+            } catch (RuntimeException e) {
+                table.add(p.sku(), p.category(), branch.ordinal(), p.quantity(), InventoryTable.toMinor(p.price()));
+                throw e;
+            }
+            snapshot = InventorySnapshot.of(table);
+
+            // Log the transaction
+            events.accept(changes);
+            LogEvent.info(Loggers.transactions(), "PRODUCT_REMOVED")
+                    .field("Branch", branch.name()).field("ID", sku).field("Category", p.category())
+                    .field("Quantity", p.quantity()).field("Price", p.price()).log();
+            return true;
+        });
+    }
+
+    void addNewProduct(String sku, String category, int quantity, long priceMinor) {
+        write(() -> {
+            StockChange added = change(StockChange.Kind.ADDED, sku, category, 0, quantity, priceMinor);
+            addRow(added);
+            snapshot = InventorySnapshot.of(table);
+
+            // Log the transaction
+            publish(added);
+            LogEvent.info(Loggers.transactions(), "PRODUCT_ADDED")
+                    .field("Branch", branch.name()).field("ID", sku).field("Category", category)
+                    .field("Quantity", quantity).field("Price", BigDecimal.valueOf(priceMinor, 2)).log();
+            return null;
+        });
+    }
+
+    // ---------- steps of a cross-branch transfer (caller holds the lock) ----------
+
+    int find(String sku) { return table.find(branch, sku); }
+    int quantity(int row) { return table.quantity(row); }
+    String category(int row) { return table.category(row); }
+    long priceMinor(int row) { return table.priceMinor(row); }
+
+    StockChange change(StockChange.Kind kind, String sku, String category, int before, int after, long priceMinor) {
+        return new StockChange(System.currentTimeMillis(), kind, branch, sku, category, before, after, priceMinor);
+    }
+
+    /** Sets {@code row} to {@code change.after()} and persists it with the change; the table is rolled back if the store fails. */
+    void setQuantity(int row, StockChange change) {
+        int old = table.quantity(row);
+        table.setQuantity(row, change.after());
+        try {
+            store.quantityChanged(table, row, List.of(change));
+        } catch (RuntimeException e) {
+            table.setQuantity(row, old);
+            throw e;
+        }
+    }
+
+    /** Appends and persists the row {@code change} adds; the table is rolled back if the store fails. */
+    int addRow(StockChange change) {
+        int row = table.add(change.sku(), change.category(), branch.ordinal(), change.after(), change.priceMinor());
+        try {
+            store.added(table, row, List.of(change));
+        } catch (RuntimeException e) {
+            table.remove(row);
+            throw e;
+        }
+        return row;
+    }
+
+    /** Next snapshot after setQuantity/addRow; must run before the lock is released. */
+    InventorySnapshot advance(boolean rowsAdded, int row) {
+        return rowsAdded ? InventorySnapshot.of(table) : snapshot.withQuantities(table, row);
+    }
+
+    void publishSnapshot(InventorySnapshot next) { snapshot = next; }
+
+    /** Tells the listeners about a change setQuantity/addRow already logged. */
+    void publish(StockChange change) { events.accept(List.of(change)); }
+}
@@ -0,0 +1,81 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable view of the inventory at one commit.
+ *
+ * InventoryService publishes a new snapshot through a volatile field after
+ * every successful write, and every read goes to the current snapshot without
+ * taking the inventory lock, so a long LIST never delays a SELL and always sees
+ * one consistent state.
+ *
+ * Everything except quantities (SKUs, categories, prices, indexes) lives in a
+ * frozen copy of the table that is only replaced when rows are added or
+ * removed. Quantities are kept in chunks of CHUNK rows that versions share: a
+ * stock change copies the chunk it touches plus the array of chunk references,
+ * not the whole column.
+ */
+final class InventorySnapshot {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+
+    private final InventoryTable layout;  // never mutated; its own quantity column is not read
+    private final int[][] quantities;
+
+    private InventorySnapshot(InventoryTable layout, int[][] quantities) {
+        this.layout = layout;
+        this.quantities = quantities;
+    }
+
+    /** Full copy of the live table; used at startup and after rows are added or removed. */
+    static InventorySnapshot of(InventoryTable live) {
+        int n = live.size();
+        int[][] chunks = new int[(n + CHUNK - 1) >>> CHUNK_BITS][];
+        for (int c = 0; c < chunks.length; c++) {
+            int base = c << CHUNK_BITS;
+            int[] q = new int[Math.min(CHUNK, n - base)];
+            for (int i = 0; i < q.length; i++) q[i] = live.quantity(base + i);
+            chunks[c] = q;
+        }
+        return new InventorySnapshot(live.copy(), chunks);
+    }
+
+    /** Next version after quantity-only changes to {@code rows}; the live table has the new values. */
+    InventorySnapshot withQuantities(InventoryTable live, int... rows) {
+        int[][] chunks = quantities.clone();
+        for (int row : rows) {
+            int c = row >>> CHUNK_BITS;
+            if (chunks[c] == quantities[c]) chunks[c] = quantities[c].clone(); // copy each touched chunk once
+            chunks[c][row & (CHUNK - 1)] = live.quantity(row);
+        }
+        return new InventorySnapshot(layout, chunks);
+    }
+
+    // ---------- reads ----------
+
+    int find(Branch branch, String sku) { return layout.find(branch, sku); }
+
+    int quantity(int row) { return quantities[row >>> CHUNK_BITS][row & (CHUNK - 1)]; }
+
+    String sku(int row) { return layout.sku(row); }
+
+    String category(int row) { return layout.category(row); }
+
+    BigDecimal price(int row) { return BigDecimal.valueOf(layout.priceMinor(row), 2); }
+
+    Product product(int row) {
+        return new Product(layout.sku(row), layout.category(row), layout.branch(row), quantity(row), price(row));
+    }
+
+    List<Product> byBranch(Branch b) {
+        List<Product> out = new ArrayList<>();
+        int ord = b.ordinal();
+        for (int i = 0; i < layout.size(); i++) if (layout.branchOrdinal(i) == ord) out.add(product(i));
+        return out;
+    }
+}
@@ -0,0 +1,372 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resident inventory in struct-of-arrays form.
+ *
+ * One row per (sku, branch); columns are primitive arrays:
+ *   skuNum      long   numeric SKU (the common case), or NOT_NUMERIC
+ *   skuText     String only for SKUs that are not a plain number
+ *   category    int    id into the category dictionary
+ *   branch      byte   Branch ordinal
+ *   quantity    int
+ *   priceMinor  long   price in minor units (agorot), scale 2
+ *
+ * A row costs ~25 bytes of primitives instead of a Product record with its
+ * Strings and BigDecimal, and lookups go through a primitive long->row index.
+ * Product objects are only created at the API boundary (product(row)).
+ *
+ * Not thread-safe; InventoryService guards it. Readers use an InventorySnapshot.
+ */
+final class InventoryTable {
+    static final long NOT_NUMERIC = Long.MIN_VALUE;
+    private static final long MAX_NUMERIC_SKU = (1L << 55) - 1; // leaves 8 bits for the branch in the index key
+
+    private int size;
+    private long[] skuNum = new long[16];
+    private String[] skuText = new String[16];
+    private int[] category = new int[16];
+    private byte[] branch = new byte[16];
+    private int[] quantity = new int[16];
+    private long[] priceMinor = new long[16];
+
+    private final List<String> categories = new ArrayList<>();
+    private final Map<String, Integer> categoryIds = new HashMap<>();
+
+    private final LongIntMap numericIndex = new LongIntMap();
+    private final Map<String, Integer> textIndex = new HashMap<>();
+
+    // ---------- reads ----------
+
+    int size() { return size; }
+
+    /** Row of (branch, sku), or -1. */
+    int find(Branch b, String sku) {
+        return find(numericSku(sku), sku, b.ordinal());
+    }
+
+    private int find(long num, String text, int branchOrdinal) {
+        if (num != NOT_NUMERIC) return numericIndex.get(indexKey(num, branchOrdinal));
+        Integer row = textIndex.get(textKey(branchOrdinal, text));
+        return row == null ? -1 : row;
+    }
+
+    String sku(int row)        { return skuText[row] != null ? skuText[row] : Long.toString(skuNum[row]); }
+    long skuNumber(int row)    { return skuNum[row]; }
+    String category(int row)   { return categories.get(category[row]); }
+    Branch branch(int row)     { return Branch.values()[branch[row]]; }
+    int branchOrdinal(int row) { return branch[row]; }
+    int quantity(int row)      { return quantity[row]; }
+    long priceMinor(int row)   { return priceMinor[row]; }
+
+    /** Materializes a Product for callers outside the inventory package. */
+    Product product(int row) {
+        return new Product(sku(row), category(row), branch(row), quantity[row], BigDecimal.valueOf(priceMinor[row], 2));
+    }
+
+    List<Product> byBranch(Branch b) {
+        List<Product> out = new ArrayList<>();
+        byte ord = (byte) b.ordinal();
+        for (int i = 0; i < size; i++) if (branch[i] == ord) out.add(product(i));
+        return out;
+    }
+
+    /** Largest numeric SKU, or {@code floor} if none is larger. */
+    long maxNumericSku(long floor) {
+        long max = floor;
+        for (int i = 0; i < size; i++) if (skuNum[i] != NOT_NUMERIC && skuNum[i] > max) max = skuNum[i];
+        return max;
+    }
+
+    /** Independent deep copy (columns, dictionary and indexes). */
+    InventoryTable copy() {
+        InventoryTable c = new InventoryTable();
+        c.size = size;
+        c.skuNum = Arrays.copyOf(skuNum, Math.max(16, size));
+        c.skuText = Arrays.copyOf(skuText, Math.max(16, size));
+        c.category = Arrays.copyOf(category, Math.max(16, size));
+        c.branch = Arrays.copyOf(branch, Math.max(16, size));
+        c.quantity = Arrays.copyOf(quantity, Math.max(16, size));
+        c.priceMinor = Arrays.copyOf(priceMinor, Math.max(16, size));
+        c.categories.addAll(categories);
+        c.categoryIds.putAll(categoryIds);
+        c.numericIndex.copyFrom(numericIndex);
+        c.textIndex.putAll(textIndex);
+        return c;
+    }
+
+    /** Writes the rows for a snapshot image: category names, then one fixed-layout record per row. */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(categories.size());
+        for (String c : categories) out.writeUTF(c);
+        out.writeInt(size);
+        for (int row = 0; row < size; row++) {
+            out.writeLong(skuNum[row]);
+            if (skuNum[row] == NOT_NUMERIC) out.writeUTF(skuText[row]);
+            out.writeInt(category[row]);
+            out.writeByte(branch[row]);
+            out.writeInt(quantity[row]);
+            out.writeLong(priceMinor[row]);
+        }
+    }
+
+    /** Adds the rows written by writeTo. */
+    void readFrom(DataInput in) throws IOException {
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) names[i] = in.readUTF();
+        for (int n = in.readInt(); n > 0; n--) {
+            long num = in.readLong();
+            String sku = num == NOT_NUMERIC ? in.readUTF() : Long.toString(num);
+            add(sku, names[in.readInt()], in.readByte(), in.readInt(), in.readLong());
+        }
+    }
+
+    // ---------- writes ----------
+
+    void setQuantity(int row, int q) { quantity[row] = q; }
+
+    /** Appends a row; returns its index. */
+    int add(String sku, String categoryName, int branchOrdinal, int qty, long price) {
+        long num = numericSku(sku);
+        if (find(num, sku, branchOrdinal) >= 0)
+            throw new IllegalArgumentException("Duplicate product: " + sku + " at " + Branch.values()[branchOrdinal]);
+        return add(num, num == NOT_NUMERIC ? sku : null, categoryId(categoryName), branchOrdinal, qty, price);
+    }
+
+    /**
+     * Appends a row already split by a loader: {@code num} as numericSku gives
+     * it, {@code text} only when that is NOT_NUMERIC, {@code categoryId} from
+     * categoryId().
+     */
+    int add(long num, String text, int categoryId, int branchOrdinal, int qty, long price) {
+        int row = size;
+        boolean taken = num != NOT_NUMERIC ? numericIndex.putIfAbsent(indexKey(num, branchOrdinal), row) >= 0
+                : textIndex.putIfAbsent(textKey(branchOrdinal, text), row) != null; // one probe: check and index
+        if (taken)
+            throw new IllegalArgumentException("Duplicate product: " + (text != null ? text : Long.toString(num))
+                    + " at " + Branch.values()[branchOrdinal]);
+        if (size == skuNum.length) grow();
+        size++;
+        skuNum[row] = num;
+        skuText[row] = num == NOT_NUMERIC ? text : null;
+        category[row] = categoryId;
+        branch[row] = (byte) branchOrdinal;
+        quantity[row] = qty;
+        priceMinor[row] = price;
+        return row;
+    }
+
+    /** Removes a row, keeping the order of the remaining rows. */
+    void remove(int row) {
+        unindexRow(row);
+        int tail = size - row - 1;
+        System.arraycopy(skuNum, row + 1, skuNum, row, tail);
+        System.arraycopy(skuText, row + 1, skuText, row, tail);
+        System.arraycopy(category, row + 1, category, row, tail);
+        System.arraycopy(branch, row + 1, branch, row, tail);
+        System.arraycopy(quantity, row + 1, quantity, row, tail);
+        System.arraycopy(priceMinor, row + 1, priceMinor, row, tail);
+        size--;
+        skuText[size] = null;
+        for (int i = row; i < size; i++) indexRow(i); // shifted rows moved down by one
+    }
+
+    // ---------- prices ----------
+
+    /** "149.90" -> 14990 without BigDecimal. Rejects more than two decimals. */
+    static long parseMinor(CharSequence s, int from, int to) {
+        boolean neg = false;
+        if (from < to && (s.charAt(from) == '-' || s.charAt(from) == '+')) { neg = s.charAt(from) == '-'; from++; }
+        long whole = 0, frac = 0;
+        int fracDigits = -1;
+        if (from >= to) throw new NumberFormatException("Empty price");
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && fracDigits < 0) { fracDigits = 0; continue; }
+            if (c < '0' || c > '9') throw new NumberFormatException("Bad price: " + s.subSequence(from, to));
+            if (fracDigits < 0) whole = Math.addExact(Math.multiplyExact(whole, 10), c - '0');
+            else if (++fracDigits <= 2) frac = frac * 10 + (c - '0');
+            else if (c != '0') throw new NumberFormatException("Price has more than 2 decimals: " + s.subSequence(from, to));
+        }
+        if (fracDigits == 1) frac *= 10;
+        long minor = Math.addExact(Math.multiplyExact(whole, 100), frac);
+        return neg ? -minor : minor;
+    }
+
+    static long toMinor(BigDecimal price) {
+        return price.setScale(2).unscaledValue().longValueExact(); // throws if more than 2 decimals
+    }
+
+    /** 14990 -> "149.90" */
+    static StringBuilder appendMinor(StringBuilder sb, long minor) {
+        if (minor < 0) { sb.append('-'); minor = -minor; }
+        long frac = minor % 100;
+        return sb.append(minor / 100).append('.').append((char) ('0' + frac / 10)).append((char) ('0' + frac % 10));
+    }
+
+    // ---------- helpers ----------
+
+    /** Parsed SKU when it is a canonical non-negative number ("1001"), else NOT_NUMERIC ("0012", "A-7"). */
+    static long numericSku(String sku) {
+        return numericSku(sku, 0, sku.length());
+    }
+
+    /** numericSku of chars {@code from..to}, for loaders that have not made a String. */
+    static long numericSku(CharSequence s, int from, int to) {
+        int n = to - from;
+        if (n == 0 || n > 17 || (n > 1 && s.charAt(from) == '0')) return NOT_NUMERIC;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return NOT_NUMERIC;
+            v = v * 10 + (c - '0');
+        }
+        return v <= MAX_NUMERIC_SKU ? v : NOT_NUMERIC;
+    }
+
+    int categoryId(String name) {
+        Integer id = categoryIds.get(name);
+        if (id != null) return id;
+        categoryIds.put(name, categories.size());
+        categories.add(name);
+        return categories.size() - 1;
+    }
+
+    private void indexRow(int row) {
+        if (skuNum[row] != NOT_NUMERIC) numericIndex.put(indexKey(skuNum[row], branch[row]), row);
+        else textIndex.put(textKey(branch[row], skuText[row]), row);
+    }
+
+    private void unindexRow(int row) {
+        if (skuNum[row] != NOT_NUMERIC) numericIndex.remove(indexKey(skuNum[row], branch[row]));
+        else textIndex.remove(textKey(branch[row], skuText[row]));
+    }
+
+    private static long indexKey(long sku, int branchOrdinal) { return (sku << 8) | branchOrdinal; }
+
+    private static String textKey(int branchOrdinal, String sku) { return branchOrdinal + ":" + sku; }
+
+    /** Makes room for {@code rows} rows in all, so a bulk load does not grow the columns and index step by step. */
+    void ensureCapacity(int rows) {
+        if (rows > skuNum.length) resize(rows);
+        numericIndex.ensureCapacity(rows);
+    }
+
+    private void grow() {
+        resize(skuNum.length * 2);
+    }
+
+    private void resize(int n) {
+        skuNum = Arrays.copyOf(skuNum, n);
+        skuText = Arrays.copyOf(skuText, n);
+        category = Arrays.copyOf(category, n);
+        branch = Arrays.copyOf(branch, n);
+        quantity = Arrays.copyOf(quantity, n);
+        priceMinor = Arrays.copyOf(priceMinor, n);
+    }
+
+    /** Open-addressing long -> int map (linear probing, backward-shift delete); no boxing. */
+    static final class LongIntMap {
+        private static final long EMPTY = Long.MIN_VALUE;
+        private long[] keys = newKeys(16);
+        private int[] values = new int[16];
+        private int count;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == EMPTY) return -1;
+                if (keys[i] == key) return values[i];
+            }
+        }
+
+        void put(long key, int value) {
+            if ((count + 1) * 2 > keys.length) rehash(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == EMPTY) count++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /** Puts {@code value} unless the key is there; returns the value already there, or -1. */
+        int putIfAbsent(long key, int value) {
+            if ((count + 1) * 2 > keys.length) rehash(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key) return values[i];
+                i = (i + 1) & mask;
+            }
+            count++;
+            keys[i] = key;
+            values[i] = value;
+            return -1;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY) return;
+                i = (i + 1) & mask;
+            }
+            // shift following entries back so probe chains stay unbroken
+            int gap = i;
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = EMPTY;
+            count--;
+        }
+
+        void ensureCapacity(int n) {
+            int capacity = keys.length;
+            while ((long) n * 2 > capacity) capacity *= 2;
+            if (capacity > keys.length) rehash(capacity);
+        }
+
+        void copyFrom(LongIntMap o) {
+            keys = o.keys.clone();
+            values = o.values.clone();
+            count = o.count;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(capacity);
+            values = new int[capacity];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] k = new long[capacity];
+            Arrays.fill(k, EMPTY);
+            return k;
+        }
+    }
+}
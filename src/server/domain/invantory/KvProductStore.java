@@ -0,0 +1,69 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.KeyValueStore;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProductStore over the lsm KeyValueStore (-Dstorage.engine=lsm):
+ * data/products/<BRANCH>.kv, imported from <BRANCH>.txt on first use.
+ * Entry: sku -> category,branch,quantity,price
+ *
+ * A change writes only the products it touched, instead of the whole file.
+ * Products load in SKU string order.
+ */
+class KvProductStore implements ProductStore {
+    private final KeyValueStore kv;
+
+    KvProductStore(KeyValueStore kv) { this.kv = kv; }
+
+    @Override
+    public void loadInto(InventoryTable table) {
+        for (Map.Entry<String, String> e : kv.all().entrySet()) {
+            CsvProductStore.parseInto(table, e.getKey() + "," + e.getValue());
+        }
+    }
+
+    @Override
+    public void quantityChanged(InventoryTable table, int row, List<StockChange> changes) { put(table, row, changes); }
+
+    @Override
+    public void quantitiesChanged(InventoryTable table, int[] rows, List<StockChange> changes) {
+        StringBuilder sb = new StringBuilder(64);
+        kv.atomically(b -> { // one cart, one batch
+            for (int row : rows) b.put(table.sku(row), value(sb, table, row));
+            for (StockChange c : changes) b.record(c.logged());
+            return null;
+        });
+    }
+
+    @Override
+    public void added(InventoryTable table, int row, List<StockChange> changes) { put(table, row, changes); }
+
+    @Override
+    public void removed(InventoryTable table, Branch branch, String sku, List<StockChange> changes) {
+        kv.atomically(b -> {
+            b.delete(sku);
+            for (StockChange c : changes) b.record(c.logged());
+            return null;
+        });
+    }
+
+    private void put(InventoryTable table, int row, List<StockChange> changes) {
+        String value = value(new StringBuilder(64), table, row);
+        kv.atomically(b -> {
+            b.put(table.sku(row), value);
+            for (StockChange c : changes) b.record(c.logged());
+            return null;
+        });
+    }
+
+    // the csv line without its leading "sku,"
+    private static String value(StringBuilder sb, InventoryTable table, int row) {
+        sb.setLength(0);
+        CsvProductStore.formatRow(sb, table, row);
+        return sb.substring(sb.indexOf(",") + 1);
+    }
+}
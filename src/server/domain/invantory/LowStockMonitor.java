@@ -0,0 +1,266 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.FileDatabase;
+import server.util.LogEvent;
+import server.util.Loggers;
+import server.util.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Low-stock alerts and reorder suggestions, evaluated on a background thread.
+ *
+ * InventoryService hands every committed change to {@link #offer}, which only
+ * puts it on a bounded queue (dropped and counted when full), so a sale never
+ * waits for the evaluation. The "low-stock-monitor" thread then:
+ *   - adds sold units to a sliding window of hourly counters per (branch, sku)
+ *   - compares the new quantity with the SKU's threshold, and alerts when it
+ *     drops to or below it (LOW_STOCK) or to zero (OUT_OF_STOCK); a SKU alerts
+ *     once per level and re-arms after it is restocked above the threshold.
+ *
+ * File: data/stock_thresholds.txt ("*" = any; the most specific line wins)
+ *   <sku>,<branch|*>,<threshold>
+ *   *,*,<threshold>                default for everything else (-Dstock.lowThreshold, 5)
+ * The file is re-read when it changes; the current stock is then checked again.
+ *
+ * Reorder suggestion = threshold + expected sales over the cover period - quantity,
+ * where expected sales = units sold in the window (-Dstock.window.hours, 72)
+ * scaled to -Dstock.cover.days (7), and at least one unit.
+ */
+public final class LowStockMonitor {
+
+    public enum Level { OK, LOW, OUT }
+
+    public record Alert(Level level, Branch branch, String sku, String category, int quantity,
+                        int threshold, long soldInWindow, int windowHours, int suggestedReorder) {
+        /** "LOW_STOCK 1001 JEANS qty=3 threshold=5 sold_72h=12 reorder=25" */
+        public String describe() {
+            return (level == Level.OUT ? "OUT_OF_STOCK " : "LOW_STOCK ") + sku + " " + category
+                    + " qty=" + quantity + " threshold=" + threshold
+                    + " sold_" + windowHours + "h=" + soldInWindow + " reorder=" + suggestedReorder;
+        }
+    }
+
+    private static final long HOUR_MILLIS = 3_600_000L;
+    private static final long RELOAD_CHECK_MILLIS = 5_000;
+
+    private final InventoryService inventory;
+    private final Path thresholdsFile;
+    private final FileDatabase thresholdsDb;
+    private final Consumer<Alert> sink;
+    private final int windowHours = Math.max(1, Integer.getInteger("stock.window.hours", 72));
+    private final int coverDays = Math.max(1, Integer.getInteger("stock.cover.days", 7));
+    private final BlockingQueue<StockChange> queue =
+            new ArrayBlockingQueue<>(Math.max(16, Integer.getInteger("stock.events.capacity", 10_000)));
+    private final LongAdder dropped = Metrics.counter("stock.events.dropped");
+    private final LongAdder alerts = Metrics.counter("stock.alerts");
+
+    // only touched by the monitor thread; SKUs that are OK and have no recent sales have no entry
+    private final Map<String, SkuState> states = new HashMap<>();
+    private Map<String, Integer> thresholds = new HashMap<>();
+    private int defaultThreshold = Integer.getInteger("stock.lowThreshold", 5);
+    private FileTime thresholdsModified;
+    private long lastReloadCheck;
+
+    public LowStockMonitor(InventoryService inventory, Path thresholdsFile, Consumer<Alert> sink) {
+        this.inventory = inventory;
+        this.thresholdsFile = thresholdsFile;
+        this.thresholdsDb = new FileDatabase(thresholdsFile);
+        this.sink = sink;
+        Metrics.gauge("stock.events.queued", queue::size);
+    }
+
+    /** Subscribes to the inventory and starts the monitor thread. */
+    public void start() {
+        inventory.onStockChange(this::offer);
+        Thread t = new Thread(this::run, "low-stock-monitor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Non-blocking hand-off from the writer's thread. */
+    public void offer(StockChange change) {
+        if (!queue.offer(change)) dropped.increment();
+    }
+
+    private void run() {
+        loadThresholds();
+        int low = scan(false); // what was already low before startup is not announced again
+        Loggers.system().info("Low-stock monitor started: " + low + " SKUs at or below threshold");
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                StockChange c = queue.poll(1, TimeUnit.SECONDS);
+                if (c != null) evaluate(c);
+                long now = System.currentTimeMillis();
+                if (now - lastReloadCheck >= RELOAD_CHECK_MILLIS) {
+                    lastReloadCheck = now;
+                    if (thresholdsChanged() && loadThresholds()) scan(true);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Loggers.system().warning("Low-stock evaluation failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // ---------- evaluation ----------
+
+    private void evaluate(StockChange c) {
+        String key = key(c.branch(), c.sku());
+        if (c.kind() == StockChange.Kind.REMOVED) {
+            states.remove(key);
+            return;
+        }
+        SkuState s = states.get(key);
+        if (c.unitsSold() > 0) {
+            if (s == null) states.put(key, s = new SkuState());
+            s.add(c.timeMillis() / HOUR_MILLIS, c.unitsSold(), windowHours);
+        }
+        check(key, s, c.branch(), c.sku(), c.category(), c.after(), c.timeMillis(), true);
+    }
+
+    /** Re-evaluates every SKU against the current stock; returns how many are low. */
+    private int scan(boolean alert) {
+        long now = System.currentTimeMillis();
+        int low = 0;
+        for (Branch b : Branch.values()) {
+            for (Product p : inventory.listByBranch(b)) {
+                String key = key(b, p.sku());
+                if (check(key, states.get(key), b, p.sku(), p.category(), p.quantity(), now, alert) != Level.OK) low++;
+            }
+        }
+        return low;
+    }
+
+    private Level check(String key, SkuState s, Branch branch, String sku, String category, int quantity,
+                        long now, boolean alert) {
+        int threshold = threshold(branch, sku);
+        Level level = quantity <= 0 ? Level.OUT : quantity <= threshold ? Level.LOW : Level.OK;
+        Level previous = s == null ? Level.OK : s.level;
+        long sold = s == null ? 0 : s.sold(now / HOUR_MILLIS);
+        if (alert && level.compareTo(previous) > 0) {
+            long expected = Math.max(1, (sold * 24 * coverDays + windowHours - 1) / windowHours);
+            int reorder = (int) Math.max(0, Math.min(Integer.MAX_VALUE, threshold + expected - quantity));
+            raise(new Alert(level, branch, sku, category, quantity, threshold, sold, windowHours, reorder));
+        }
+        if (level == Level.OK && sold == 0) {
+            states.remove(key);
+        } else {
+            if (s == null) states.put(key, s = new SkuState());
+            s.level = level;
+        }
+        return level;
+    }
+
+    private void raise(Alert a) {
+        alerts.increment();
+        LogEvent.warning(Loggers.system(), a.level() == Level.OUT ? "OUT_OF_STOCK" : "LOW_STOCK")
+                .field("Branch", a.branch().name()).field("ID", a.sku()).field("Category", a.category())
+                .field("Quantity", a.quantity()).field("Threshold", a.threshold())
+                .field("Sold", a.soldInWindow()).field("Reorder", a.suggestedReorder()).log();
+        try {
+            sink.accept(a);
+        } catch (RuntimeException e) {
+            Loggers.system().warning("Low-stock alert not delivered: " + e.getMessage());
+        }
+    }
+
+    // ---------- thresholds ----------
+
+    private int threshold(Branch branch, String sku) {
+        Integer t = thresholds.get(key(branch, sku));
+        if (t == null) t = thresholds.get("*:" + sku);
+        return t != null ? t : defaultThreshold;
+    }
+
+    private boolean thresholdsChanged() {
+        try {
+            FileTime modified = Files.exists(thresholdsFile) ? Files.getLastModifiedTime(thresholdsFile) : null;
+            return modified == null ? thresholdsModified != null : !modified.equals(thresholdsModified);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Reads data/stock_thresholds.txt; on a bad file the previous thresholds stay in force. */
+    private boolean loadThresholds() {
+        try {
+            thresholdsModified = Files.exists(thresholdsFile) ? Files.getLastModifiedTime(thresholdsFile) : null; // a bad file is reported once
+            List<String> lines = thresholdsDb.readAllLines();
+            Map<String, Integer> next = new HashMap<>();
+            int nextDefault = Integer.getInteger("stock.lowThreshold", 5);
+            int lineNo = 0;
+            for (String raw : lines) {
+                lineNo++;
+                String line = raw.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] t = line.split(",", -1);
+                try {
+                    if (t.length != 3) throw new IllegalArgumentException("expected 3 fields, got " + t.length);
+                    String sku = t[0].trim(), branch = t[1].trim().toUpperCase();
+                    int threshold = Integer.parseInt(t[2].trim());
+                    if (threshold < 0) throw new IllegalArgumentException("threshold must be non-negative");
+                    if ("*".equals(sku)) {
+                        if (!"*".equals(branch)) throw new IllegalArgumentException("a default must use branch *");
+                        nextDefault = threshold;
+                    } else {
+                        next.put("*".equals(branch) ? "*:" + sku : key(Branch.valueOf(branch), sku), threshold);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("stock thresholds line " + lineNo + ": " + e.getMessage(), e);
+                }
+            }
+            thresholds = next;
+            defaultThreshold = nextDefault;
+            Loggers.system().info("Stock thresholds loaded: " + next.size() + " SKU rules, default " + nextDefault);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Loggers.system().warning("Stock thresholds not reloaded, keeping previous: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String key(Branch branch, String sku) { return branch.name() + ":" + sku; }
+
+    /** Alert level plus units sold per hour over the last windowHours (ring of hourly buckets, made on first sale). */
+    private static final class SkuState {
+        long[] hourOf;
+        int[] units;
+        Level level = Level.OK;
+
+        void add(long hour, int n, int hours) {
+            if (hourOf == null) {
+                hourOf = new long[hours];
+                units = new int[hours];
+            }
+            int i = (int) (hour % hourOf.length);
+            if (hourOf[i] != hour) {
+                hourOf[i] = hour;
+                units[i] = 0;
+            }
+            units[i] += n;
+        }
+
+        long sold(long nowHour) {
+            if (hourOf == null) return 0;
+            long sum = 0;
+            for (int i = 0; i < hourOf.length; i++) {
+                if (hourOf[i] > nowHour - hourOf.length && hourOf[i] <= nowHour) sum += units[i];
+            }
+            return sum;
+        }
+    }
+}
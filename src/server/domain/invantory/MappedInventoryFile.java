@@ -0,0 +1,301 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.FileDatabase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary inventory file with fixed-width records, memory-mapped read/write.
+ *
+ * File: data/products/<BRANCH>.bin (one per branch)
+ *   header (32 bytes): magic "SHPI", version, recordCount, recordSize
+ *   record (40 bytes):
+ *     0  sku            16 bytes UTF-8, zero padded
+ *     16 categoryId     int   (line number in <BRANCH>.categories)
+ *     20 branchOrdinal  byte  (+3 padding)
+ *     24 quantity       int
+ *     28 reserved       int
+ *     32 priceMinor     long  (price in agorot/cents, scale 2)
+ *
+ * Because every field sits at a fixed offset, a stock change is a single 4-byte
+ * putInt into the mapping; when it reaches disk depends on the ForcePolicy.
+ *
+ * Tools:
+ *   java -cp out server.domain.invantory.MappedInventoryFile import data/products/HOLON.txt data/products/HOLON.bin
+ *   java -cp out server.domain.invantory.MappedInventoryFile export data/products/HOLON.bin data/products/HOLON.txt
+ */
+public class MappedInventoryFile implements Closeable {
+
+    /** When in-place writes are flushed to disk with MappedByteBuffer.force(). */
+    public enum ForcePolicy {
+        ALWAYS,     // force after every write (durable, slowest)
+        PERIODIC,   // force at most once per second, and on close
+        OS          // leave it to the OS page cache, force only on close
+    }
+
+    private static final int MAGIC = 0x53485049; // "SHPI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 40;
+    private static final int SKU_BYTES = 16;
+
+    private static final int OFF_SKU = 0;
+    private static final int OFF_CATEGORY = 16;
+    private static final int OFF_BRANCH = 20;
+    private static final int OFF_QUANTITY = 24;
+    private static final int OFF_PRICE = 32;
+
+    private final Path file;
+    private final FileDatabase categoriesDb;
+    private final ForcePolicy forcePolicy;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+    private long lastForce = System.currentTimeMillis();
+
+    private final List<String> categories = new ArrayList<>();
+    private final Map<String, Integer> categoryIds = new HashMap<>();
+    private final Map<String, Integer> index = new HashMap<>(); // branch:sku -> record number
+
+    private MappedInventoryFile(Path file, ForcePolicy forcePolicy) throws IOException {
+        this.file = file;
+        this.forcePolicy = forcePolicy;
+        this.categoriesDb = new FileDatabase(categoriesPath(file));
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // in-place writes cannot be merged with another process's: one process per file (released on close)
+        if (channel.tryLock() == null) {
+            channel.close();
+            throw new IOException("In use by another process: " + file);
+        }
+
+        boolean fresh = channel.size() < HEADER_SIZE;
+        int initialCapacity = fresh ? 64 : Math.max(64, (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE));
+        remap(initialCapacity);
+        if (fresh) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, 0);
+            map.putInt(12, RECORD_SIZE);
+        } else if (map.getInt(0) != MAGIC || map.getInt(12) != RECORD_SIZE) {
+            channel.close();
+            throw new IOException("Not an inventory file: " + file);
+        }
+        count = map.getInt(8);
+
+        for (String c : categoriesDb.readAllLines()) {
+            categoryIds.put(c, categories.size());
+            categories.add(c);
+        }
+        for (int i = 0; i < count; i++) index.put(key(branchAt(i), skuAt(i)), i);
+    }
+
+    public static MappedInventoryFile open(Path file, ForcePolicy forcePolicy) {
+        try {
+            return new MappedInventoryFile(file, forcePolicy);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Path categoriesPath(Path binFile) {
+        String name = binFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return binFile.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".categories");
+    }
+
+    // ---------- reads ----------
+
+    public synchronized int size() { return count; }
+
+    public synchronized Product get(int record) {
+        int base = offset(record);
+        return new Product(
+                skuAt(record),
+                categories.get(map.getInt(base + OFF_CATEGORY)),
+                branchAt(record),
+                map.getInt(base + OFF_QUANTITY),
+                BigDecimal.valueOf(map.getLong(base + OFF_PRICE), 2));
+    }
+
+    public synchronized List<Product> readAll() {
+        List<Product> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) out.add(get(i));
+        return out;
+    }
+
+    /** Copies every record into the resident table, field by field (no Product/BigDecimal per record). */
+    synchronized void loadInto(InventoryTable table) {
+        for (int i = 0; i < count; i++) {
+            int base = offset(i);
+            table.add(skuAt(i),
+                    categories.get(map.getInt(base + OFF_CATEGORY)),
+                    map.get(base + OFF_BRANCH),
+                    map.getInt(base + OFF_QUANTITY),
+                    map.getLong(base + OFF_PRICE));
+        }
+    }
+
+    /** Record number of (branch, sku), or -1. */
+    public synchronized int find(Branch branch, String sku) {
+        Integer i = index.get(key(branch, sku));
+        return i == null ? -1 : i;
+    }
+
+    // ---------- writes ----------
+
+    /** In-place 4-byte write of the quantity field. */
+    public synchronized void setQuantity(int record, int quantity) {
+        map.putInt(offset(record) + OFF_QUANTITY, quantity);
+        written();
+    }
+
+    public synchronized int append(Product p) {
+        if (index.containsKey(key(p.branch(), p.sku())))
+            throw new IllegalArgumentException("Duplicate product: " + p.sku() + " at " + p.branch());
+        if (count == capacity) {
+            try { remap(capacity * 2); } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        int record = count;
+        writeRecord(record, p);
+        count++;
+        map.putInt(8, count);
+        index.put(key(p.branch(), p.sku()), record);
+        written();
+        return record;
+    }
+
+    /** Removes a record by moving the last record into its slot. */
+    public synchronized boolean remove(Branch branch, String sku) {
+        Integer record = index.remove(key(branch, sku));
+        if (record == null) return false;
+        int last = count - 1;
+        if (record != last) {
+            for (int b = 0; b < RECORD_SIZE; b++) map.put(offset(record) + b, map.get(offset(last) + b));
+            index.put(key(branchAt(record), skuAt(record)), record);
+        }
+        count--;
+        map.putInt(8, count);
+        written();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    // ---------- CSV import / export ----------
+
+    /** Converts products.txt (sku,category,branch,quantity,price) to a fresh binary file. */
+    public static int importCsv(Path csv, Path bin) throws IOException {
+        Files.deleteIfExists(bin);
+        Files.deleteIfExists(categoriesPath(bin));
+        int n = 0;
+        try (MappedInventoryFile out = new MappedInventoryFile(bin, ForcePolicy.OS)) {
+            for (String s : new FileDatabase(csv).readAllLines()) {
+                if (s.isBlank() || s.startsWith("#")) continue;
+                String[] t = s.split(",", -1);
+                out.append(new Product(t[0], t[1], Branch.valueOf(t[2]), Integer.parseInt(t[3]), new BigDecimal(t[4])));
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** Writes the binary file back as products.txt, in record order. */
+    public static int exportCsv(Path bin, Path csv) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# id,category,branch,quantity,price");
+        try (MappedInventoryFile in = new MappedInventoryFile(bin, ForcePolicy.OS)) {
+            for (Product p : in.readAll()) {
+                lines.add(String.join(",", p.sku(), p.category(), p.branch().name(),
+                        String.valueOf(p.quantity()), p.price().toPlainString()));
+            }
+        }
+        new FileDatabase(csv).writeAllLines(lines);
+        return lines.size() - 1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !("import".equals(args[0]) || "export".equals(args[0]))) {
+            System.out.println("Usage: MappedInventoryFile import <products.txt> <products.bin>");
+            System.out.println("       MappedInventoryFile export <products.bin> <products.txt>");
+            return;
+        }
+        Path from = Path.of(args[1]), to = Path.of(args[2]);
+        int n = "import".equals(args[0]) ? importCsv(from, to) : exportCsv(from, to);
+        System.out.println(args[0] + "ed " + n + " products: " + from + " -> " + to);
+    }
+
+    // ---------- helpers ----------
+
+    private void writeRecord(int record, Product p) {
+        byte[] sku = p.sku().getBytes(StandardCharsets.UTF_8);
+        if (sku.length > SKU_BYTES) throw new IllegalArgumentException("SKU longer than " + SKU_BYTES + " bytes: " + p.sku());
+        BigDecimal price = p.price().setScale(2); // throws if more than 2 decimals (would lose data)
+        int base = offset(record);
+        for (int b = 0; b < SKU_BYTES; b++) map.put(base + OFF_SKU + b, b < sku.length ? sku[b] : 0);
+        map.putInt(base + OFF_CATEGORY, categoryId(p.category()));
+        map.put(base + OFF_BRANCH, (byte) p.branch().ordinal());
+        map.putInt(base + OFF_QUANTITY, p.quantity());
+        map.putLong(base + OFF_PRICE, price.unscaledValue().longValueExact());
+    }
+
+    private int categoryId(String category) {
+        Integer id = categoryIds.get(category);
+        if (id != null) return id;
+        if (category.contains("\n")) throw new IllegalArgumentException("Bad category: " + category);
+        categoriesDb.appendLine(category);
+        categoryIds.put(category, categories.size());
+        categories.add(category);
+        return categories.size() - 1;
+    }
+
+    private String skuAt(int record) {
+        int base = offset(record) + OFF_SKU;
+        byte[] b = new byte[SKU_BYTES];
+        int len = 0;
+        while (len < SKU_BYTES && (b[len] = map.get(base + len)) != 0) len++;
+        return new String(b, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private Branch branchAt(int record) {
+        return Branch.values()[map.get(offset(record) + OFF_BRANCH)];
+    }
+
+    private void written() {
+        long now = System.currentTimeMillis();
+        if (forcePolicy == ForcePolicy.ALWAYS
+                || (forcePolicy == ForcePolicy.PERIODIC && now - lastForce >= 1000)) {
+            map.force();
+            lastForce = now;
+        }
+    }
+
+    private void remap(int newCapacity) throws IOException {
+        if (map != null) map.force();
+        capacity = newCapacity;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    }
+
+    private static int offset(int record) { return HEADER_SIZE + record * RECORD_SIZE; }
+
+    private static String key(Branch branch, String sku) { return branch.name() + ":" + sku; }
+}
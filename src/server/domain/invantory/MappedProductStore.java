@@ -0,0 +1,59 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.ChangeLog;
+import server.util.Loggers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * ProductStore over the memory-mapped binary file; imports products.txt on
+ * first use. The file belongs to one process, so the shard's lock orders its
+ * writes, and the changes are logged right after each one.
+ */
+class MappedProductStore implements ProductStore {
+    private final MappedInventoryFile file;
+
+    MappedProductStore(Path bin, Path csvSeed, MappedInventoryFile.ForcePolicy force) {
+        try {
+            if (Files.notExists(bin) && Files.exists(csvSeed)) {
+                int n = MappedInventoryFile.importCsv(csvSeed, bin);
+                Loggers.system().info("Imported " + n + " products from " + csvSeed + " into " + bin);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.file = MappedInventoryFile.open(bin, force);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { file.close(); } catch (IOException ignored) {}
+        }));
+    }
+
+    @Override
+    public void loadInto(InventoryTable table) { file.loadInto(table); }
+
+    @Override
+    public void quantityChanged(InventoryTable table, int row, List<StockChange> changes) {
+        int record = file.find(table.branch(row), table.sku(row));
+        if (record < 0)
+            throw new IllegalStateException("SKU not found for update: " + table.sku(row) + " at " + table.branch(row));
+        file.setQuantity(record, table.quantity(row));
+        ChangeLog.append(StockChange.logged(changes));
+    }
+
+    @Override
+    public void added(InventoryTable table, int row, List<StockChange> changes) {
+        file.append(table.product(row));
+        ChangeLog.append(StockChange.logged(changes));
+    }
+
+    @Override
+    public void removed(InventoryTable table, Branch branch, String sku, List<StockChange> changes) {
+        file.remove(branch, sku);
+        ChangeLog.append(StockChange.logged(changes));
+    }
+}
@@ -0,0 +1,105 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.KeyValueStore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Persistence behind one InventoryShard (one branch).
+ *
+ * The shard keeps its inventory resident in an InventoryTable; a store fills
+ * it once at startup and is then told about each change, with the
+ * StockChanges it makes. The store records those in the ChangeLog as part of
+ * the write, before it releases the lock the write was made under, so the
+ * log has the changes of one branch in the order they were written, also
+ * when several processes share the file.
+ *
+ * Chosen with -Dinventory.format:
+ *   csv     (default) data/products/<BRANCH>.txt, rewritten from the table on every change
+ *   binary  data/products/<BRANCH>.bin via MappedInventoryFile, stock changes are in-place
+ *           (-Dinventory.force=ALWAYS|PERIODIC|OS, default ALWAYS)
+ * With -Dstorage.engine=lsm a csv store becomes data/products/<BRANCH>.kv
+ * (KvProductStore), which writes only the changed products.
+ *
+ * Only the csv store can be shared by several StoreServer processes; a
+ * binary file or kv store is locked by the process that opens it.
+ */
+interface ProductStore {
+    /** Fills an empty table with every stored product. */
+    void loadInto(InventoryTable table);
+
+    /** Persists the quantity of {@code row}, already changed in the table. */
+    void quantityChanged(InventoryTable table, int row, List<StockChange> changes);
+
+    /** Persists several quantity changes made together (one cart). */
+    default void quantitiesChanged(InventoryTable table, int[] rows, List<StockChange> changes) {
+        for (int i = 0; i < rows.length; i++) quantityChanged(table, rows[i], i == rows.length - 1 ? changes : List.of());
+    }
+
+    /** Persists {@code row}, just appended to the table. */
+    void added(InventoryTable table, int row, List<StockChange> changes);
+
+    /** Persists a removal; the row is already gone from the table. */
+    void removed(InventoryTable table, Branch branch, String sku, List<StockChange> changes);
+
+    /**
+     * True if another process changed the stored data since this store last
+     * loaded or wrote it; the shard then reloads before its next operation.
+     * Writes made while stale throw StaleDataException and change nothing.
+     */
+    default boolean changedElsewhere() { return false; }
+
+    /**
+     * Writes {@code table} for the snapshot image (see Snapshots) with what
+     * restoreSnapshot needs to tell whether it is still current; returns
+     * false if it cannot. Stores that are already a binary image do not.
+     */
+    default boolean saveSnapshot(InventoryTable table, DataOutputStream out) throws IOException { return false; }
+
+    /** Fills an empty table from saveSnapshot's output; false (table unusable) if the store changed since. */
+    default boolean restoreSnapshot(InventoryTable table, DataInputStream in) throws IOException { return false; }
+
+    /** The store of one branch's shard in {@code dir}: <BRANCH>.txt, or <BRANCH>.bin seeded from it. */
+    static ProductStore fromConfig(Path dir, Branch branch) {
+        Path csv = dir.resolve(branch.name() + ".txt");
+        if (binary()) {
+            MappedInventoryFile.ForcePolicy force = MappedInventoryFile.ForcePolicy.valueOf(
+                    System.getProperty("inventory.force", "ALWAYS").toUpperCase());
+            return new MappedProductStore(dir.resolve(branch.name() + ".bin"), csv, force);
+        }
+        if (KeyValueStore.lsm()) return new KvProductStore(KeyValueStore.open(csv));
+        return new CsvProductStore(csv);
+    }
+
+    static boolean binary() {
+        return "binary".equalsIgnoreCase(System.getProperty("inventory.format", "csv"));
+    }
+
+    /**
+     * One-time move from the single-file layout (data/products.txt, or
+     * data/products.bin in binary mode) to one file per branch in {@code dir}.
+     * The old file is renamed to *.migrated. Returns the number of products moved.
+     */
+    static int migrateLegacy(Path legacyCsv, Path legacyBin, Path dir) {
+        try {
+            if (Files.exists(dir) || (Files.notExists(legacyCsv) && Files.notExists(legacyBin))) return 0;
+            if (binary() && Files.exists(legacyBin)) {
+                MappedInventoryFile.exportCsv(legacyBin, legacyCsv); // the binary file was the live copy
+                Files.move(legacyBin, legacyBin.resolveSibling(legacyBin.getFileName() + ".migrated"));
+                Files.deleteIfExists(MappedInventoryFile.categoriesPath(legacyBin));
+            }
+            int n = CsvProductStore.splitByBranch(legacyCsv, dir);
+            Files.move(legacyCsv, legacyCsv.resolveSibling(legacyCsv.getFileName() + ".migrated"));
+            return n;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
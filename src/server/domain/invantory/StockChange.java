@@ -0,0 +1,38 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.ChangeLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One committed inventory mutation, as published by InventoryService to its
+ * stock-change listeners. {@code before} is 0 for ADDED and {@code after} is 0
+ * for REMOVED; {@code priceMinor} is the product's price in agorot. RELEASED
+ * puts back units a sale reserved but could not record.
+ */
+public record StockChange(long timeMillis, Kind kind, Branch branch, String sku, String category,
+                          int before, int after, long priceMinor) {
+
+    public enum Kind { SOLD, ORDERED, ADDED, REMOVED, TRANSFERRED_OUT, TRANSFERRED_IN, RELEASED }
+
+    /** Units that left the shelf by being sold (0 for every other kind). */
+    public int unitsSold() {
+        return kind == Kind.SOLD ? before - after : 0;
+    }
+
+    /** The change as a ChangeLog PRODUCT event: key "<BRANCH>/<sku>", data the row after it (category,branch,quantity,price). */
+    public ChangeLog.Change logged() {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(category).append(',').append(branch.name()).append(',').append(after).append(',');
+        InventoryTable.appendMinor(sb, priceMinor);
+        return new ChangeLog.Change(0, timeMillis, "PRODUCT", kind.name(), branch.name() + "/" + sku, sb.toString());
+    }
+
+    static List<ChangeLog.Change> logged(List<StockChange> changes) {
+        List<ChangeLog.Change> out = new ArrayList<>(changes.size());
+        for (StockChange c : changes) out.add(c.logged());
+        return out;
+    }
+}
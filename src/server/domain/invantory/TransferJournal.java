@@ -0,0 +1,109 @@
+package server.domain.invantory;
+
+import server.shared.Branch;
+import server.util.FileDatabase;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Redo log for transfers, which touch two shard files.
+ *
+ * File: data/products/transfers.log
+ *   BEGIN,<id>,<sku>,<from>,<to>,<fromAfter>,<toAfter>,<category>,<priceMinor>,<quantity>
+ *
+ * BEGIN is appended before either shard changes and records the final
+ * quantities; when the transfer is over its line is taken out again, so the
+ * file only holds transfers in flight. Ids are "<pid>-<startMillis>-<n>",
+ * unique per process and telling which process a transfer belongs to:
+ * StoreServer processes share the file, and at startup only the transfers of
+ * processes that are gone are completed (see InventoryService), in the same
+ * locked step that takes them out.
+ *
+ * Files written before ids had an owner (numeric ids, 9-field BEGIN lines,
+ * DONE,<id> lines) are still read; their open transfers count as orphaned.
+ */
+final class TransferJournal {
+    /** {@code quantity} is -1 for a BEGIN line that did not record it. */
+    record Entry(String id, String sku, Branch from, Branch to, int fromAfter, int toAfter,
+                 String category, long priceMinor, int quantity) {}
+
+    private static final String OWNER = owner(ProcessHandle.current());
+
+    private final FileDatabase db;
+    private long nextId = 1;
+
+    TransferJournal(Path file) { this.db = new FileDatabase(file); }
+
+    /** Called with both shard locks held. */
+    synchronized String begin(String sku, Branch from, Branch to, int fromAfter, int toAfter, String category,
+                              long priceMinor, int quantity) {
+        if (category.indexOf(',') >= 0) throw new IllegalArgumentException("Bad category: " + category);
+        String id = OWNER + "-" + nextId++;
+        db.appendLine("BEGIN," + id + "," + sku + "," + from.name() + "," + to.name() + ","
+                + fromAfter + "," + toAfter + "," + category + "," + priceMinor + "," + quantity);
+        return id;
+    }
+
+    /** Takes the transfer's BEGIN out of the file: it finished, or it changed nothing. */
+    synchronized void done(String id) {
+        String prefix = "BEGIN," + id + ",";
+        db.update(lines -> lines.removeIf(s -> s.startsWith(prefix)) ? lines : null);
+    }
+
+    /**
+     * Hands every transfer whose process is gone to {@code redo}, in log
+     * order, and takes them out of the file in the same step, so no other
+     * process starting at the same time redoes them too.
+     * In daemon mode the step is retried if another process wrote in between,
+     * so {@code redo} must be safe to repeat.
+     */
+    synchronized void recover(Consumer<Entry> redo) {
+        db.update(lines -> {
+            Set<String> finished = new HashSet<>();
+            for (String s : lines) if (s.startsWith("DONE,")) finished.add(s.substring(5));
+            List<String> keep = new ArrayList<>(lines.size());
+            for (String s : lines) {
+                if (s.startsWith("DONE,")) continue;
+                Entry e = parse(s);
+                if (e == null || finished.contains(e.id())) continue;
+                if (!ownerGone(e.id())) { keep.add(s); continue; }
+                redo.accept(e);
+            }
+            return keep.size() == lines.size() ? null : keep;
+        });
+    }
+
+    private static Entry parse(String s) {
+        String[] t = s.split(",", -1);
+        if ((t.length != 9 && t.length != 10) || !"BEGIN".equals(t[0])) return null;
+        return new Entry(t[1], t[2], Branch.valueOf(t[3]), Branch.valueOf(t[4]), Integer.parseInt(t[5]),
+                Integer.parseInt(t[6]), t[7], Long.parseLong(t[8]), t.length == 10 ? Integer.parseInt(t[9]) : -1);
+    }
+
+    // "<pid>-<startMillis>"; the start time tells a reused pid from the process that wrote the id
+    private static String owner(ProcessHandle p) {
+        return p.pid() + "-" + p.info().startInstant().map(Instant::toEpochMilli).orElse(0L);
+    }
+
+    // true if the process that began {@code id} has exited; ids without an owner are from older servers
+    private static boolean ownerGone(String id) {
+        String[] t = id.split("-");
+        if (t.length != 3) return true;
+        long pid, started;
+        try {
+            pid = Long.parseLong(t[0]);
+            started = Long.parseLong(t[1]);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        return ProcessHandle.of(pid).filter(ProcessHandle::isAlive)
+                .map(p -> started != 0 && p.info().startInstant().map(s -> s.toEpochMilli() != started).orElse(false))
+                .orElse(true);
+    }
+}
@@ -0,0 +1,80 @@
+package server.domain.sales;
+
+import server.domain.customers.CustomerType;
+
+import java.math.BigDecimal;
+import java.util.SplittableRandom;
+
+/**
+ * Differential check of the fixed-point pricing path against the BigDecimal
+ * reference: CustomerType.applyDiscount for the tier rates, and price x rate
+ * for arbitrary promotion rates. Exits with status 1 on the first mismatch.
+ *
+ *   java -cp out server.domain.sales.PricingCheck [iterations] [seed]
+ */
+public class PricingCheck {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        SplittableRandom rnd = new SplittableRandom(seed);
+        SalesService sales = new SalesService();
+        CustomerType[] types = {
+                CustomerType.fromCode("NEW"), CustomerType.fromCode("RETURNING"), CustomerType.fromCode("VIP")
+        };
+
+        // edge values first, then random prices/quantities
+        long[] prices = {0, 1, 5, 99, 100, 14990, 3990, 24900, 1990, Long.MAX_VALUE / 100};
+        int[] quantities = {0, 1, 2, 7, 100, Integer.MAX_VALUE};
+        int checked = 0;
+        for (long price : prices)
+            for (int qty : quantities)
+                for (CustomerType t : types) { compare(sales, price, qty, t, seed); checked++; }
+
+        for (int i = 0; i < iterations; i++) {
+            long price = rnd.nextInt(8) == 0 ? rnd.nextLong(0, Long.MAX_VALUE / 1000) : rnd.nextLong(0, 10_000_000);
+            int qty = rnd.nextInt(16) == 0 ? rnd.nextInt(0, Integer.MAX_VALUE) : rnd.nextInt(1, 1000);
+            compare(sales, price, qty, types[rnd.nextInt(types.length)], seed);
+            int bp = rnd.nextInt(4) == 0 ? 100 * rnd.nextInt(0, 101) : rnd.nextInt(0, 10_001);
+            compare(sales.sell(price, qty, bp, "NEW"), SalesService.sellExact(BigDecimal.valueOf(price, 2), qty, bp, "NEW"),
+                    "price=" + price + " qty=" + qty + " bp=" + bp, seed);
+            checked += 2;
+        }
+        System.out.println("OK " + checked + " sales match (seed " + seed + ")");
+    }
+
+    private static void compare(SalesService sales, long priceMinor, int qty, CustomerType type, long seed) {
+        SalesService.SaleSummary fast = sales.sell(priceMinor, qty, type);
+        SalesService.SaleSummary ref = SalesService.sellExact(BigDecimal.valueOf(priceMinor, 2), qty, type);
+        compare(fast, ref, "price=" + priceMinor + " qty=" + qty + " type=" + type.code(), seed);
+        // the basis-point reference must agree with the tier's own applyDiscount
+        compare(ref, SalesService.sellExact(BigDecimal.valueOf(priceMinor, 2), qty, type.discountBasisPoints(), type.code()),
+                "reference price=" + priceMinor + " qty=" + qty + " type=" + type.code(), seed);
+    }
+
+    private static void compare(SalesService.SaleSummary fast, SalesService.SaleSummary ref, String what, long seed) {
+        String a = fast.appendTo(new StringBuilder()).toString();
+        String b = ref.appendTo(new StringBuilder()).toString();
+        boolean same = a.equals(b)
+                && fast.basePrice().equals(ref.basePrice())
+                && fast.discountValue().equals(ref.discountValue())
+                && fast.finalPrice().equals(ref.finalPrice())
+                && sameMinor(fast, ref);
+        if (!same) {
+            System.out.println("MISMATCH seed=" + seed + " " + what);
+            System.out.println("  fixed:      " + a);
+            System.out.println("  BigDecimal: " + b);
+            System.exit(1);
+        }
+    }
+
+    private static boolean sameMinor(SalesService.SaleSummary fast, SalesService.SaleSummary ref) {
+        long expected;
+        try {
+            expected = ref.finalMinor();
+        } catch (ArithmeticException tooLarge) {
+            return true; // not representable in agorot as a long on either path
+        }
+        return fast.finalMinor() == expected;
+    }
+}
@@ -0,0 +1,212 @@
+package server.domain.sales;
+
+import server.domain.customers.CustomerType;
+import server.shared.Branch;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discount rules, compiled into a lookup table.
+ *
+ * File: data/promotions.txt (percentages may have up to 2 decimals, "*" = any)
+ *   tier,<NEW|RETURNING|VIP>,<percent>
+ *   threshold,<RETURNING|VIP>,<purchases>
+ *   promo,<name>,<branch|*>,<category|*>,<tier|*>,<percent>,<minQty>,<from|*>,<until|*>
+ *     from/until: yyyy-MM-dd (whole day, inclusive) or yyyy-MM-ddTHH:mm
+ *
+ * Discount for a sale = tier percent + the best promo that matches
+ * (branch, category, tier), is active now and has minQty <= quantity; capped at 100%.
+ *
+ * compile() resolves all of that once: every (branch, category, tier) cell gets
+ * an array of basis points indexed by quantity, so a sale is a hash lookup of
+ * the category plus two array reads. Only promos active at compile time are
+ * included; validUntil() says when a window opens or closes and the table must
+ * be compiled again.
+ */
+public final class PricingRules {
+    static final String[] TIERS = {"NEW", "RETURNING", "VIP"};
+    private static final int MAX_MIN_QTY = 10_000;
+
+    private final Map<String, Integer> categoryIds; // categories named by promos; anything else is id 0
+    private final int categoryCount;
+    private final int[][] cells;                    // [(branch * categoryCount + category) * TIERS + tier] -> bp by quantity
+    private final int returningAt;
+    private final int vipAt;
+    private final long validUntil;
+    private final int ruleCount;
+
+    private PricingRules(Map<String, Integer> categoryIds, int[][] cells, int returningAt, int vipAt,
+                         long validUntil, int ruleCount) {
+        this.categoryIds = categoryIds;
+        this.categoryCount = categoryIds.size() + 1;
+        this.cells = cells;
+        this.returningAt = returningAt;
+        this.vipAt = vipAt;
+        this.validUntil = validUntil;
+        this.ruleCount = ruleCount;
+    }
+
+    /** Discount in basis points for one sale line. */
+    public int discountBasisPoints(Branch branch, String category, String tierCode, int quantity) {
+        Integer c = categoryIds.get(category);
+        int[] byQty = cells[(branch.ordinal() * categoryCount + (c == null ? 0 : c)) * TIERS.length + tierIndex(tierCode)];
+        return byQty[Math.max(0, Math.min(quantity, byQty.length - 1))];
+    }
+
+    /** Purchases needed for RETURNING / VIP. */
+    public int returningThreshold() { return returningAt; }
+    public int vipThreshold() { return vipAt; }
+
+    /** Epoch millis after which a promo window has opened or closed (Long.MAX_VALUE if never). */
+    public long validUntil() { return validUntil; }
+
+    public int ruleCount() { return ruleCount; }
+
+    // ---------- compilation ----------
+
+    private record Promo(String name, int branch, String category, int tier, int bp, int minQty, long from, long until) {
+        boolean activeAt(long now) { return from <= now && now < until; }
+    }
+
+    /** Rules with the built-in tier rates and thresholds only (no file). */
+    public static PricingRules defaults() {
+        return compile(List.of(), System.currentTimeMillis());
+    }
+
+    /** Parses and compiles the rule lines; IllegalArgumentException names the first bad line. */
+    public static PricingRules compile(List<String> lines, long now) {
+        int[] tierBp = new int[TIERS.length];
+        for (int t = 0; t < TIERS.length; t++) tierBp[t] = CustomerType.fromCode(TIERS[t]).discountBasisPoints();
+        int returningAt = 2, vipAt = 10;
+        List<Promo> promos = new ArrayList<>();
+
+        int lineNo = 0;
+        for (String raw : lines) {
+            lineNo++;
+            String line = raw == null ? "" : raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] t = line.split(",", -1);
+            for (int i = 0; i < t.length; i++) t[i] = t[i].trim();
+            try {
+                switch (t[0].toLowerCase()) {
+                    case "tier":
+                        expect(t, 3);
+                        tierBp[tierIndexStrict(t[1])] = basisPoints(t[2]);
+                        break;
+                    case "threshold":
+                        expect(t, 3);
+                        int n = Integer.parseInt(t[2]);
+                        if (n < 0) throw new IllegalArgumentException("threshold must be non-negative");
+                        if ("RETURNING".equalsIgnoreCase(t[1])) returningAt = n;
+                        else if ("VIP".equalsIgnoreCase(t[1])) vipAt = n;
+                        else throw new IllegalArgumentException("threshold tier must be RETURNING or VIP");
+                        break;
+                    case "promo":
+                        expect(t, 9);
+                        int minQty = Integer.parseInt(t[6]);
+                        if (minQty < 1 || minQty > MAX_MIN_QTY)
+                            throw new IllegalArgumentException("minQty must be 1.." + MAX_MIN_QTY);
+                        long from = "*".equals(t[7]) ? Long.MIN_VALUE : instant(t[7], false);
+                        long until = "*".equals(t[8]) ? Long.MAX_VALUE : instant(t[8], true);
+                        promos.add(new Promo(t[1],
+                                "*".equals(t[2]) ? -1 : Branch.valueOf(t[2].toUpperCase()).ordinal(),
+                                "*".equals(t[3]) ? null : t[3],
+                                "*".equals(t[4]) ? -1 : tierIndexStrict(t[4]),
+                                basisPoints(t[5]), minQty, from, until));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown rule kind '" + t[0] + "'");
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("promotions line " + lineNo + ": " + e.getMessage(), e);
+            }
+        }
+        if (vipAt < returningAt) throw new IllegalArgumentException("VIP threshold below RETURNING threshold");
+
+        // only promos active now go into the table; the next window edge ends its validity
+        long validUntil = Long.MAX_VALUE;
+        List<Promo> active = new ArrayList<>();
+        for (Promo p : promos) {
+            if (p.activeAt(now)) active.add(p);
+            if (p.from > now) validUntil = Math.min(validUntil, p.from);
+            if (p.until > now && p.until != Long.MAX_VALUE) validUntil = Math.min(validUntil, p.until);
+        }
+
+        Map<String, Integer> categoryIds = new HashMap<>();
+        for (Promo p : active) {
+            if (p.category != null && !categoryIds.containsKey(p.category)) categoryIds.put(p.category, categoryIds.size() + 1);
+        }
+        int categoryCount = categoryIds.size() + 1;
+        int branches = Branch.values().length;
+        int[][] cells = new int[branches * categoryCount * TIERS.length][];
+        Map<String, int[]> shared = new HashMap<>(); // identical cells share one array
+        for (int b = 0; b < branches; b++) {
+            for (int c = 0; c < categoryCount; c++) {
+                for (int tier = 0; tier < TIERS.length; tier++) {
+                    int[] byQty = cell(active, categoryIds, b, c, tier, tierBp[tier]);
+                    cells[(b * categoryCount + c) * TIERS.length + tier] =
+                            shared.computeIfAbsent(Arrays.toString(byQty), k -> byQty);
+                }
+            }
+        }
+        return new PricingRules(categoryIds, cells, returningAt, vipAt, validUntil, promos.size());
+    }
+
+    private static int[] cell(List<Promo> active, Map<String, Integer> categoryIds, int branch, int category, int tier, int base) {
+        int maxQty = 1;
+        List<Promo> matching = new ArrayList<>();
+        for (Promo p : active) {
+            if (p.branch >= 0 && p.branch != branch) continue;
+            if (p.tier >= 0 && p.tier != tier) continue;
+            if (p.category != null && categoryIds.get(p.category) != category) continue;
+            matching.add(p);
+            maxQty = Math.max(maxQty, p.minQty);
+        }
+        int[] byQty = new int[maxQty + 1]; // the last slot covers every larger quantity
+        for (int q = 0; q <= maxQty; q++) {
+            int best = 0;
+            for (Promo p : matching) if (p.minQty <= q) best = Math.max(best, p.bp);
+            byQty[q] = Math.min(10_000, base + best);
+        }
+        return byQty;
+    }
+
+    private static void expect(String[] t, int fields) {
+        if (t.length != fields) throw new IllegalArgumentException("expected " + fields + " fields, got " + t.length);
+    }
+
+    /** "5" -> 500, "2.5" -> 250 */
+    private static int basisPoints(String percent) {
+        int bp = new BigDecimal(percent).movePointRight(2).intValueExact();
+        if (bp < 0 || bp > 10_000) throw new IllegalArgumentException("percent must be 0..100");
+        return bp;
+    }
+
+    private static long instant(String s, boolean endOfRange) {
+        LocalDateTime t = s.contains("T")
+                ? LocalDateTime.parse(s)
+                : LocalDate.parse(s).atStartOfDay().plusDays(endOfRange ? 1 : 0);
+        return t.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    static int tierIndex(String code) {
+        switch (code) {
+            case "VIP":       return 2;
+            case "RETURNING": return 1;
+            default:          return 0;
+        }
+    }
+
+    private static int tierIndexStrict(String code) {
+        for (int i = 0; i < TIERS.length; i++) if (TIERS[i].equalsIgnoreCase(code)) return i;
+        throw new IllegalArgumentException("unknown tier '" + code + "'");
+    }
+}
@@ -0,0 +1,20 @@
+package server.domain.sales;
+
+/**
+ * A sale's ledger line could not be written, so the sale did not happen:
+ * nothing of it was counted. For a cart, the lines before {@link #recorded()}
+ * were recorded and the rest were not; the caller puts their stock back.
+ */
+public class SaleNotRecordedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int recorded;
+
+    public SaleNotRecordedException(int recorded, RuntimeException cause) {
+        super("Sale not written to the ledger: " + cause.getMessage(), cause);
+        this.recorded = recorded;
+    }
+
+    /** Lines of the cart recorded before the failure (0 for a single sale). */
+    public int recorded() { return recorded; }
+}
@@ -0,0 +1,199 @@
+package server.domain.sales;
+
+import server.shared.Branch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running sales totals, kept as a small cube of primitive counters:
+ *   category id x branch ordinal x tier x hour of day
+ * with sales count, units, revenue and discount (micro-units) per cell.
+ *
+ * Every sale adds to one cell; a report sums cells by one dimension, so it
+ * costs the same however long the history is (a few thousand cells for
+ * dozens of categories). The cube is rebuilt from the sales ledger on
+ * REPORT REBUILD, and at startup unless the snapshot image has it (then only
+ * the ledger lines added since are read).
+ */
+public final class SalesAnalytics {
+    public enum Dimension { TOTAL, BRANCH, CATEGORY, TIER, HOUR }
+
+    private static final int HOURS = 24;
+    private static final int TIERS = PricingRules.TIERS.length;
+    private static final int BRANCHES = Branch.values().length;
+    private static final int CELLS_PER_CATEGORY = BRANCHES * TIERS * HOURS;
+
+    private final Map<String, Integer> categoryIds = new HashMap<>();
+    private final List<String> categories = new ArrayList<>();
+    private long[] count = new long[16 * CELLS_PER_CATEGORY];
+    private long[] units = new long[16 * CELLS_PER_CATEGORY];
+    private long[] revenue = new long[16 * CELLS_PER_CATEGORY];
+    private long[] discount = new long[16 * CELLS_PER_CATEGORY];
+
+    /** Adds one sale line. */
+    public synchronized void record(Branch branch, String category, String tierCode, int hour,
+                                    int quantity, long discountMicros, long finalMicros) {
+        int cell = cell(categoryId(category), branch.ordinal(), PricingRules.tierIndex(tierCode), hour);
+        count[cell]++;
+        units[cell] += quantity;
+        revenue[cell] += finalMicros;
+        discount[cell] += discountMicros;
+    }
+
+    public synchronized void clear() {
+        categoryIds.clear();
+        categories.clear();
+        Arrays.fill(count, 0);
+        Arrays.fill(units, 0);
+        Arrays.fill(revenue, 0);
+        Arrays.fill(discount, 0);
+    }
+
+    /**
+     * One line per non-empty group: "<key> count=N units=N revenue=X discount=Y".
+     * {@code branch} limits the report to one branch (null = all).
+     */
+    public synchronized List<String> report(Dimension by, Branch branch) {
+        int groups;
+        switch (by) {
+            case BRANCH:   groups = BRANCHES; break;
+            case CATEGORY: groups = categories.size(); break;
+            case TIER:     groups = TIERS; break;
+            case HOUR:     groups = HOURS; break;
+            default:       groups = 1;
+        }
+        long[] c = new long[groups], u = new long[groups], r = new long[groups], d = new long[groups];
+        for (int cat = 0; cat < categories.size(); cat++) {
+            for (int b = 0; b < BRANCHES; b++) {
+                if (branch != null && branch.ordinal() != b) continue;
+                for (int tier = 0; tier < TIERS; tier++) {
+                    for (int h = 0; h < HOURS; h++) {
+                        int cell = cell(cat, b, tier, h);
+                        if (count[cell] == 0) continue;
+                        int g = by == Dimension.BRANCH ? b : by == Dimension.CATEGORY ? cat
+                              : by == Dimension.TIER ? tier : by == Dimension.HOUR ? h : 0;
+                        c[g] += count[cell];
+                        u[g] += units[cell];
+                        r[g] += revenue[cell];
+                        d[g] += discount[cell];
+                    }
+                }
+            }
+        }
+
+        List<String> out = new ArrayList<>();
+        StringBuilder sb = new StringBuilder(96);
+        for (int g = 0; g < groups; g++) {
+            if (c[g] == 0 && by != Dimension.TOTAL) continue;
+            sb.setLength(0);
+            switch (by) {
+                case BRANCH:   sb.append(Branch.values()[g].name()); break;
+                case CATEGORY: sb.append(categories.get(g)); break;
+                case TIER:     sb.append(PricingRules.TIERS[g]); break;
+                case HOUR:     sb.append(g < 10 ? "0" : "").append(g).append(":00"); break;
+                default:       sb.append("ALL");
+            }
+            sb.append(" count=").append(c[g]).append(" units=").append(u[g]).append(" revenue=");
+            SalesService.appendScaled(sb, r[g], 2).append(" discount=");
+            SalesService.appendScaled(sb, d[g], 2);
+            out.add(sb.toString());
+        }
+        return out;
+    }
+
+    // ---------- ledger ----------
+
+    /**
+     * Rebuilds the cube from data/sales.txt lines:
+     * timestamp,branch,id,quantity,customerId,customerType,unitPrice,discountValue,finalPrice,category
+     * Returns the number of sales read; malformed lines are skipped.
+     */
+    public synchronized int rebuild(List<String> ledger) {
+        clear();
+        return add(ledger);
+    }
+
+    /** Adds ledger lines to the cube as it is; returns the number of sales read. */
+    public synchronized int add(List<String> ledger) {
+        int n = 0;
+        for (String s : ledger) {
+            if (s.isBlank() || s.startsWith("#")) continue;
+            String[] t = s.split(",", -1);
+            if (t.length < 9 || t[0].length() < 13) continue;
+            try {
+                int hour = Integer.parseInt(t[0], 11, 13, 10);
+                String category = t.length > 9 ? t[9] : "UNKNOWN";
+                record(Branch.valueOf(t[1]), category, t[5], hour, Integer.parseInt(t[3]),
+                        parseMicros(t[7]), parseMicros(t[8]));
+                n++;
+            } catch (RuntimeException ignored) {
+                // not a sale row
+            }
+        }
+        return n;
+    }
+
+    // ---------- snapshot ----------
+
+    /** Category names, then the four counter arrays up to the last category in use. */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(categories.size());
+        for (String c : categories) out.writeUTF(c);
+        int cells = categories.size() * CELLS_PER_CATEGORY;
+        for (long[] a : new long[][] {count, units, revenue, discount}) {
+            for (int i = 0; i < cells; i++) out.writeLong(a[i]);
+        }
+    }
+
+    /** Replaces the cube with what writeTo wrote. */
+    public synchronized void readFrom(DataInput in) throws IOException {
+        clear();
+        for (int n = in.readInt(); n > 0; n--) categoryId(in.readUTF());
+        int cells = categories.size() * CELLS_PER_CATEGORY;
+        for (long[] a : new long[][] {count, units, revenue, discount}) {
+            for (int i = 0; i < cells; i++) a[i] = in.readLong();
+        }
+    }
+
+    /** "17.9880" -> 17988000 (up to 6 decimals). */
+    static long parseMicros(String s) {
+        int dot = s.indexOf('.');
+        String whole = dot < 0 ? s : s.substring(0, dot);
+        String frac = dot < 0 ? "" : s.substring(dot + 1);
+        if (frac.length() > SalesService.SCALE) throw new NumberFormatException("too many decimals: " + s);
+        boolean neg = whole.startsWith("-");
+        long v = Math.multiplyExact(Math.abs(Long.parseLong(whole.isEmpty() || "-".equals(whole) ? "0" : whole)), 1_000_000L);
+        long f = 0;
+        for (int i = 0; i < SalesService.SCALE; i++) f = f * 10 + (i < frac.length() ? frac.charAt(i) - '0' : 0);
+        return neg ? -(v + f) : v + f;
+    }
+
+    // ---------- helpers ----------
+
+    private int categoryId(String category) {
+        Integer id = categoryIds.get(category);
+        if (id != null) return id;
+        int next = categories.size();
+        if ((next + 1) * CELLS_PER_CATEGORY > count.length) {
+            int n = count.length * 2;
+            count = Arrays.copyOf(count, n);
+            units = Arrays.copyOf(units, n);
+            revenue = Arrays.copyOf(revenue, n);
+            discount = Arrays.copyOf(discount, n);
+        }
+        categoryIds.put(category, next);
+        categories.add(category);
+        return next;
+    }
+
+    private static int cell(int category, int branch, int tier, int hour) {
+        return ((category * BRANCHES + branch) * TIERS + tier) * HOURS + hour;
+    }
+}
@@ -0,0 +1,380 @@
+package server.domain.sales;
+
+import server.shared.Branch;
+import server.util.FileDatabase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar copy of the sales ledger (data/sales.txt) for ad-hoc queries.
+ *
+ * Directory: data/sales.col/
+ *   ts.col        long   epoch seconds
+ *   branch.col    byte   Branch ordinal
+ *   sku.col       int    id into sku.dict
+ *   qty.col       int
+ *   customer.col  int    id into customer.dict
+ *   tier.col      byte   0=NEW 1=RETURNING 2=VIP
+ *   price.col     long   unit price, micro-units
+ *   discount.col  long   micro-units
+ *   final.col     long   micro-units
+ *   category.col  int    id into category.dict
+ *   blocks.col    per block of BLOCK_ROWS rows: minTs, maxTs (long), branch bitmask, rows (int)
+ *   meta.txt      rows, byte offset of the ledger already converted
+ *
+ * The ledger is append-only, so update() converts only the lines added since
+ * the last run (a full rebuild happens if the ledger got shorter). Lines are
+ * streamed straight into column buffers; no per-row objects are kept.
+ *
+ * meta.txt is written last, so after a crash the files may hold rows it does
+ * not count; they are cut back to its row count before appending (a column
+ * shorter than that means a full rebuild). Dictionary values added by such a
+ * run stay, unused.
+ */
+public final class SalesColumns implements Closeable {
+    static final int BLOCK_ROWS = 1 << 16;
+    private static final int BLOCK_ENTRY = 24;
+    private static final int VERSION = 1;
+
+    private enum Col {
+        TS("ts", 8), BRANCH("branch", 1), SKU("sku", 4), QTY("qty", 4), CUSTOMER("customer", 4), TIER("tier", 1),
+        PRICE("price", 8), DISCOUNT("discount", 8), FINAL("final", 8), CATEGORY("category", 4);
+
+        final String file;
+        final int width;
+        Col(String file, int width) { this.file = file + ".col"; this.width = width; }
+    }
+
+    // ---------- read side (memory-mapped) ----------
+
+    final int rows;
+    final int blocks;
+    final LongBuffer ts;
+    final ByteBuffer branch;
+    final IntBuffer sku;
+    final IntBuffer qty;
+    final IntBuffer customer;
+    final ByteBuffer tier;
+    final LongBuffer discount;
+    final LongBuffer fin;
+    final IntBuffer category;
+    final long[] blockMinTs;
+    final long[] blockMaxTs;
+    final int[] blockBranches;
+    final List<String> skus;
+    final List<String> customers;
+    final List<String> categories;
+    private final List<FileChannel> channels = new ArrayList<>();
+
+    private SalesColumns(Path dir) throws IOException {
+        Map<String, String> meta = readMeta(dir);
+        this.rows = Integer.parseInt(meta.getOrDefault("rows", "0"));
+        this.blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        this.ts = map(dir, Col.TS).asLongBuffer();
+        this.branch = map(dir, Col.BRANCH);
+        this.sku = map(dir, Col.SKU).asIntBuffer();
+        this.qty = map(dir, Col.QTY).asIntBuffer();
+        this.customer = map(dir, Col.CUSTOMER).asIntBuffer();
+        this.tier = map(dir, Col.TIER);
+        this.discount = map(dir, Col.DISCOUNT).asLongBuffer();
+        this.fin = map(dir, Col.FINAL).asLongBuffer();
+        this.category = map(dir, Col.CATEGORY).asIntBuffer();
+
+        blockMinTs = new long[blocks];
+        blockMaxTs = new long[blocks];
+        blockBranches = new int[blocks];
+        ByteBuffer b = ByteBuffer.wrap(readBytes(dir.resolve("blocks.col"))).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < blocks; i++) {
+            blockMinTs[i] = b.getLong(i * BLOCK_ENTRY);
+            blockMaxTs[i] = b.getLong(i * BLOCK_ENTRY + 8);
+            blockBranches[i] = b.getInt(i * BLOCK_ENTRY + 16);
+        }
+        this.skus = new FileDatabase(dir.resolve("sku.dict")).readAllLines();
+        this.customers = new FileDatabase(dir.resolve("customer.dict")).readAllLines();
+        this.categories = new FileDatabase(dir.resolve("category.dict")).readAllLines();
+    }
+
+    /** Maps the converted columns (run update() first). */
+    public static SalesColumns open(Path dir) throws IOException {
+        return new SalesColumns(dir);
+    }
+
+    private ByteBuffer map(Path dir, Col col) throws IOException {
+        if (rows == 0) return ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+        FileChannel ch = FileChannel.open(dir.resolve(col.file), StandardOpenOption.READ);
+        channels.add(ch);
+        long bytes = (long) rows * col.width;
+        MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+        return m.order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileChannel ch : channels) ch.close();
+    }
+
+    // ---------- write side ----------
+
+    /**
+     * Brings the columns in {@code dir} up to date with the ledger.
+     * Returns the number of rows appended.
+     */
+    public static int update(Path ledger, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, String> meta = readMeta(dir);
+        long offset = Long.parseLong(meta.getOrDefault("sourceOffset", "0"));
+        int rows = Integer.parseInt(meta.getOrDefault("rows", "0"));
+        long size = Files.exists(ledger) ? Files.size(ledger) : 0;
+        if (size < offset || !String.valueOf(VERSION).equals(meta.getOrDefault("version", String.valueOf(VERSION)))
+                || !complete(dir, rows)) {
+            offset = 0; // ledger was replaced, or columns were lost: start over
+            rows = 0;
+        }
+        if (rows == 0) {
+            for (Col c : Col.values()) Files.deleteIfExists(dir.resolve(c.file));
+            for (String d : new String[] {"sku.dict", "customer.dict", "category.dict", "blocks.col"}) Files.deleteIfExists(dir.resolve(d));
+        }
+        if (size == offset) return 0;
+
+        try (Writer w = new Writer(dir, rows); FileChannel in = FileChannel.open(ledger, StandardOpenOption.READ)) {
+            in.position(offset);
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+            ByteArrayOutputStream carry = new ByteArrayOutputStream(256); // line split across chunks
+            long consumed = offset;
+            while (in.read(chunk) > 0) {
+                chunk.flip();
+                byte[] a = chunk.array();
+                int start = 0, end = chunk.limit();
+                for (int i = 0; i < end; i++) {
+                    if (a[i] != '\n') continue;
+                    String line;
+                    if (carry.size() > 0) {
+                        carry.write(a, start, i - start);
+                        line = carry.toString(StandardCharsets.UTF_8);
+                        carry.reset();
+                    } else {
+                        line = new String(a, start, i - start, StandardCharsets.UTF_8);
+                    }
+                    consumed = in.position() - end + i + 1;
+                    start = i + 1;
+                    if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                    if (!line.isBlank() && !line.startsWith("#")) w.addLine(line);
+                }
+                carry.write(a, start, end - start);
+                chunk.clear();
+            }
+            // a trailing line without '\n' is still being written; pick it up next time
+            w.finish(consumed);
+            return w.added;
+        }
+    }
+
+    // every column holds at least the rows meta.txt counts
+    private static boolean complete(Path dir, int rows) throws IOException {
+        if (rows == 0) return true;
+        for (Col c : Col.values()) {
+            Path f = dir.resolve(c.file);
+            if (!Files.exists(f) || Files.size(f) < (long) rows * c.width) return false;
+        }
+        Path b = dir.resolve("blocks.col");
+        return Files.exists(b) && Files.size(b) >= (long) (rows + BLOCK_ROWS - 1) / BLOCK_ROWS * BLOCK_ENTRY;
+    }
+
+    private static final class Writer implements Closeable {
+        private final Path dir;
+        private final FileChannel[] out = new FileChannel[Col.values().length];
+        private final ByteBuffer[] buf = new ByteBuffer[Col.values().length];
+        private final Dict skus, customers, categories;
+        private final FileChannel blocksOut;
+        private final ZoneId zone = ZoneId.systemDefault();
+        private final int[] commas = new int[10];
+        private int rows;
+        int added;
+
+        // stats of the block being filled
+        private long minTs, maxTs;
+        private int branchMask;
+
+        // "yyyy-MM-dd HH" -> epoch second of that hour
+        private String cachedHour = "";
+        private long cachedHourEpoch;
+
+        Writer(Path dir, int rows) throws IOException {
+            this.dir = dir;
+            this.rows = rows;
+            for (Col c : Col.values()) {
+                FileChannel ch = FileChannel.open(dir.resolve(c.file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                out[c.ordinal()] = ch;
+                ch.truncate((long) rows * c.width); // drop rows of a run that did not get to write meta.txt
+                ch.position((long) rows * c.width);
+                buf[c.ordinal()] = ByteBuffer.allocate(c.width * 8192).order(ByteOrder.nativeOrder());
+            }
+            skus = new Dict(dir.resolve("sku.dict"));
+            customers = new Dict(dir.resolve("customer.dict"));
+            categories = new Dict(dir.resolve("category.dict"));
+            blocksOut = FileChannel.open(dir.resolve("blocks.col"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            blocksOut.truncate((long) (rows + BLOCK_ROWS - 1) / BLOCK_ROWS * BLOCK_ENTRY);
+            resetBlock();
+            if (rows % BLOCK_ROWS != 0) { // continue the partial last block; stats of dropped rows only widen it
+                ByteBuffer e = ByteBuffer.allocate(BLOCK_ENTRY).order(ByteOrder.nativeOrder());
+                blocksOut.read(e, (long) (rows / BLOCK_ROWS) * BLOCK_ENTRY);
+                minTs = e.getLong(0);
+                maxTs = e.getLong(8);
+                branchMask = e.getInt(16);
+            }
+        }
+
+        /** timestamp,branch,id,quantity,customerId,customerType,unitPrice,discountValue,finalPrice[,category] */
+        void addLine(String s) throws IOException {
+            int[] at = commas;
+            int n = 0;
+            for (int i = s.indexOf(','); i >= 0 && n < at.length; i = s.indexOf(',', i + 1)) at[n++] = i;
+            if (n < 8 || s.length() < 19) return; // not a sale row
+            long epoch;
+            int b, q, tierId;
+            long price, disc, fin;
+            try {
+                epoch = epochSecond(s);
+                b = Branch.valueOf(s.substring(at[0] + 1, at[1])).ordinal();
+                q = Integer.parseInt(s, at[2] + 1, at[3], 10);
+                tierId = PricingRules.tierIndex(s.substring(at[4] + 1, at[5]));
+                price = SalesAnalytics.parseMicros(s.substring(at[5] + 1, at[6]));
+                disc = SalesAnalytics.parseMicros(s.substring(at[6] + 1, at[7]));
+                fin = SalesAnalytics.parseMicros(s.substring(at[7] + 1, n > 8 ? at[8] : s.length()));
+            } catch (RuntimeException e) {
+                return;
+            }
+            String cat = n > 8 ? s.substring(at[8] + 1, n > 9 ? at[9] : s.length()) : "UNKNOWN";
+
+            put(Col.TS).putLong(epoch);
+            put(Col.BRANCH).put((byte) b);
+            put(Col.SKU).putInt(skus.id(s.substring(at[1] + 1, at[2])));
+            put(Col.QTY).putInt(q);
+            put(Col.CUSTOMER).putInt(customers.id(s.substring(at[3] + 1, at[4])));
+            put(Col.TIER).put((byte) tierId);
+            put(Col.PRICE).putLong(price);
+            put(Col.DISCOUNT).putLong(disc);
+            put(Col.FINAL).putLong(fin);
+            put(Col.CATEGORY).putInt(categories.id(cat));
+
+            minTs = Math.min(minTs, epoch);
+            maxTs = Math.max(maxTs, epoch);
+            branchMask |= 1 << b;
+            rows++;
+            added++;
+            if (rows % BLOCK_ROWS == 0) { writeBlockEntry(rows - 1); resetBlock(); }
+        }
+
+        void finish(long sourceOffset) throws IOException {
+            for (Col c : Col.values()) flush(c);
+            if (rows % BLOCK_ROWS != 0) writeBlockEntry(rows - 1);
+            skus.flush();
+            customers.flush();
+            categories.flush();
+            List<String> meta = List.of("version=" + VERSION, "rows=" + rows, "sourceOffset=" + sourceOffset,
+                    "blockRows=" + BLOCK_ROWS);
+            new FileDatabase(dir.resolve("meta.txt")).writeAllLines(meta); // written last: columns are complete
+        }
+
+        private ByteBuffer put(Col c) throws IOException {
+            ByteBuffer b = buf[c.ordinal()];
+            if (b.remaining() < c.width) flush(c);
+            return b;
+        }
+
+        private void flush(Col c) throws IOException {
+            ByteBuffer b = buf[c.ordinal()];
+            b.flip();
+            while (b.hasRemaining()) out[c.ordinal()].write(b);
+            b.clear();
+        }
+
+        private void writeBlockEntry(int lastRow) throws IOException {
+            ByteBuffer e = ByteBuffer.allocate(BLOCK_ENTRY).order(ByteOrder.nativeOrder());
+            e.putLong(0, minTs).putLong(8, maxTs).putInt(16, branchMask).putInt(20, lastRow % BLOCK_ROWS + 1);
+            blocksOut.write(e, (long) (lastRow / BLOCK_ROWS) * BLOCK_ENTRY);
+        }
+
+        private void resetBlock() {
+            minTs = Long.MAX_VALUE;
+            maxTs = Long.MIN_VALUE;
+            branchMask = 0;
+        }
+
+        private long epochSecond(String s) {
+            if (!s.regionMatches(0, cachedHour, 0, 13)) {
+                cachedHour = s.substring(0, 13);
+                LocalDateTime hour = LocalDateTime.of(
+                        Integer.parseInt(s, 0, 4, 10), Integer.parseInt(s, 5, 7, 10), Integer.parseInt(s, 8, 10, 10),
+                        Integer.parseInt(s, 11, 13, 10), 0);
+                cachedHourEpoch = hour.atZone(zone).toEpochSecond();
+            }
+            return cachedHourEpoch + Integer.parseInt(s, 14, 16, 10) * 60L + Integer.parseInt(s, 17, 19, 10);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel ch : out) if (ch != null) ch.close();
+            blocksOut.close();
+        }
+    }
+
+    /** Append-only string dictionary backed by one value per line. */
+    private static final class Dict {
+        private final FileDatabase db;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> pending = new ArrayList<>();
+
+        Dict(Path file) {
+            this.db = new FileDatabase(file);
+            for (String s : db.readAllLines()) ids.put(s, ids.size());
+        }
+
+        int id(String value) {
+            Integer id = ids.get(value);
+            if (id != null) return id;
+            ids.put(value, ids.size());
+            pending.add(value);
+            return ids.size() - 1;
+        }
+
+        void flush() {
+            for (String s : pending) db.appendLine(s);
+            pending.clear();
+        }
+    }
+
+    // ---------- helpers ----------
+
+    private static Map<String, String> readMeta(Path dir) {
+        Map<String, String> m = new HashMap<>();
+        for (String s : new FileDatabase(dir.resolve("meta.txt")).readAllLines()) {
+            int eq = s.indexOf('=');
+            if (eq > 0) m.put(s.substring(0, eq).trim(), s.substring(eq + 1).trim());
+        }
+        return m;
+    }
+
+    private static byte[] readBytes(Path p) throws IOException {
+        return Files.exists(p) ? Files.readAllBytes(p) : new byte[0];
+    }
+}
@@ -0,0 +1,251 @@
+package server.domain.sales;
+
+import server.shared.Branch;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Ad-hoc aggregate over SalesColumns, run as a parallel fork-join scan.
+ *
+ *   group=<none|sku|category|branch|tier|customer>[,<second>]
+ *   from=yyyy-MM-dd  to=yyyy-MM-dd (inclusive)  branch=HOLON[,RISHON]  tier=VIP[,RETURNING]  top=N
+ *
+ * e.g. "group=sku from=2026-07-01 to=2026-09-30 top=10"   top SKUs last quarter
+ *      "group=branch,tier"                                VIP share per branch
+ *
+ * Predicates on time and branch are pushed down to the block stats: a block
+ * whose min/max timestamp or branch set cannot match is skipped without
+ * touching its rows, and a block that matches entirely skips the per-row
+ * checks. Each worker thread aggregates into its own arrays, merged at the end.
+ *
+ * Tool (converts new ledger lines, then queries):
+ *   java -cp out server.domain.sales.SalesQuery data/sales.txt data/sales.col group=sku top=10
+ */
+public final class SalesQuery {
+    public enum Group { NONE, SKU, CATEGORY, BRANCH, TIER, CUSTOMER }
+
+    private static final int MAX_GROUPS = 4_000_000;
+    private static final int ALL_BRANCHES = -1 >>> (32 - Branch.count()); // Branch.MAX is 32
+    private static final int ALL_TIERS = (1 << PricingRules.TIERS.length) - 1;
+
+    private final Group first;
+    private final Group second;
+    private final long fromTs;
+    private final long toTs;
+    private final int branchMask;
+    private final int tierMask;
+    private final int top;
+
+    private SalesQuery(Group first, Group second, long fromTs, long toTs, int branchMask, int tierMask, int top) {
+        this.first = first;
+        this.second = second;
+        this.fromTs = fromTs;
+        this.toTs = toTs;
+        this.branchMask = branchMask;
+        this.tierMask = tierMask;
+        this.top = top;
+    }
+
+    /** Parses "key=value" arguments; IllegalArgumentException on anything unknown. */
+    public static SalesQuery parse(List<String> args) {
+        Group first = Group.NONE, second = Group.NONE;
+        long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        int branches = ALL_BRANCHES, tiers = ALL_TIERS, top = Integer.MAX_VALUE;
+        ZoneId zone = ZoneId.systemDefault();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("expected key=value: " + a);
+            String k = a.substring(0, eq).toLowerCase(), v = a.substring(eq + 1);
+            switch (k) {
+                case "group":
+                    String[] g = v.toUpperCase().split(",");
+                    if (g.length > 2) throw new IllegalArgumentException("at most two group dimensions");
+                    first = Group.valueOf(g[0]);
+                    second = g.length > 1 ? Group.valueOf(g[1]) : Group.NONE;
+                    break;
+                case "from": from = LocalDate.parse(v).atStartOfDay(zone).toEpochSecond(); break;
+                case "to":   to = LocalDate.parse(v).plusDays(1).atStartOfDay(zone).toEpochSecond() - 1; break;
+                case "branch":
+                    branches = 0;
+                    for (String b : v.toUpperCase().split(",")) branches |= 1 << Branch.valueOf(b).ordinal();
+                    break;
+                case "tier":
+                    tiers = 0;
+                    for (String t : v.toUpperCase().split(",")) {
+                        int i = PricingRules.tierIndex(t);
+                        if (!PricingRules.TIERS[i].equals(t)) throw new IllegalArgumentException("unknown tier " + t);
+                        tiers |= 1 << i;
+                    }
+                    break;
+                case "top":
+                    top = Integer.parseInt(v);
+                    if (top <= 0) throw new IllegalArgumentException("top must be positive");
+                    break;
+                default: throw new IllegalArgumentException("unknown key " + k);
+            }
+        }
+        return new SalesQuery(first, second, from, to, branches, tiers, top);
+    }
+
+    /** "<key> count=N units=N revenue=X discount=Y", largest revenue first. */
+    public List<String> run(SalesColumns cols, ForkJoinPool pool) {
+        int n1 = size(cols, first), n2 = size(cols, second);
+        if ((long) n1 * n2 > MAX_GROUPS) throw new IllegalArgumentException("too many groups");
+        int groups = n1 * n2;
+
+        Map<Thread, Agg> partials = new ConcurrentHashMap<>(); // one per worker thread
+        pool.invoke(new Scan(cols, 0, cols.blocks, n2, () -> partials.computeIfAbsent(Thread.currentThread(), t -> new Agg(groups))));
+
+        Agg total = new Agg(groups);
+        for (Agg a : partials.values()) total.merge(a);
+
+        List<Integer> hit = new ArrayList<>();
+        for (int g = 0; g < groups; g++) if (total.count[g] > 0) hit.add(g);
+        hit.sort(Comparator.comparingLong((Integer g) -> total.revenue[g]).reversed());
+
+        List<String> out = new ArrayList<>();
+        StringBuilder sb = new StringBuilder(96);
+        for (int i = 0; i < hit.size() && i < top; i++) {
+            int g = hit.get(i);
+            sb.setLength(0);
+            sb.append(label(cols, first, g / n2));
+            if (second != Group.NONE) sb.append('/').append(label(cols, second, g % n2));
+            sb.append(" count=").append(total.count[g]).append(" units=").append(total.units[g]).append(" revenue=");
+            SalesService.appendScaled(sb, total.revenue[g], 2).append(" discount=");
+            SalesService.appendScaled(sb, total.discount[g], 2);
+            out.add(sb.toString());
+        }
+        return out;
+    }
+
+    private final class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SalesColumns cols;
+        private final int fromBlock, toBlock, n2;
+        private final Supplier<Agg> local;
+
+        Scan(SalesColumns cols, int fromBlock, int toBlock, int n2, Supplier<Agg> local) {
+            this.cols = cols;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+            this.n2 = n2;
+            this.local = local;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlock - fromBlock > 1) {
+                int mid = (fromBlock + toBlock) >>> 1;
+                invokeAll(new Scan(cols, fromBlock, mid, n2, local), new Scan(cols, mid, toBlock, n2, local));
+                return;
+            }
+            for (int b = fromBlock; b < toBlock; b++) scanBlock(b);
+        }
+
+        private void scanBlock(int b) {
+            // predicate pushdown on the block stats
+            if (cols.blockMaxTs[b] < fromTs || cols.blockMinTs[b] > toTs) return;
+            if ((cols.blockBranches[b] & branchMask) == 0) return;
+            boolean allMatch = cols.blockMinTs[b] >= fromTs && cols.blockMaxTs[b] <= toTs
+                    && (cols.blockBranches[b] & ~branchMask) == 0 && tierMask == ALL_TIERS;
+
+            Agg agg = local.get();
+            int start = b * SalesColumns.BLOCK_ROWS, end = Math.min(cols.rows, start + SalesColumns.BLOCK_ROWS);
+            for (int r = start; r < end; r++) {
+                if (!allMatch) {
+                    long ts = cols.ts.get(r);
+                    if (ts < fromTs || ts > toTs) continue;
+                    if ((branchMask & (1 << cols.branch.get(r))) == 0) continue;
+                    if ((tierMask & (1 << cols.tier.get(r))) == 0) continue;
+                }
+                int g = key(cols, first, r) * n2 + key(cols, second, r);
+                agg.count[g]++;
+                agg.units[g] += cols.qty.get(r);
+                agg.revenue[g] += cols.fin.get(r);
+                agg.discount[g] += cols.discount.get(r);
+            }
+        }
+    }
+
+    private static final class Agg {
+        final long[] count, units, revenue, discount;
+
+        Agg(int groups) {
+            count = new long[groups];
+            units = new long[groups];
+            revenue = new long[groups];
+            discount = new long[groups];
+        }
+
+        void merge(Agg o) {
+            for (int g = 0; g < count.length; g++) {
+                count[g] += o.count[g];
+                units[g] += o.units[g];
+                revenue[g] += o.revenue[g];
+                discount[g] += o.discount[g];
+            }
+        }
+    }
+
+    private static int size(SalesColumns cols, Group g) {
+        switch (g) {
+            case SKU:      return Math.max(1, cols.skus.size());
+            case CATEGORY: return Math.max(1, cols.categories.size());
+            case CUSTOMER: return Math.max(1, cols.customers.size());
+            case BRANCH:   return Branch.values().length;
+            case TIER:     return PricingRules.TIERS.length;
+            default:       return 1;
+        }
+    }
+
+    private static int key(SalesColumns cols, Group g, int row) {
+        switch (g) {
+            case SKU:      return cols.sku.get(row);
+            case CATEGORY: return cols.category.get(row);
+            case CUSTOMER: return cols.customer.get(row);
+            case BRANCH:   return cols.branch.get(row);
+            case TIER:     return cols.tier.get(row);
+            default:       return 0;
+        }
+    }
+
+    private static String label(SalesColumns cols, Group g, int id) {
+        switch (g) {
+            case SKU:      return cols.skus.get(id);
+            case CATEGORY: return cols.categories.get(id);
+            case CUSTOMER: return cols.customers.get(id);
+            case BRANCH:   return Branch.values()[id].name();
+            case TIER:     return PricingRules.TIERS[id];
+            default:       return "ALL";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: SalesQuery <sales.txt> <columns dir> [group=..] [from=..] [to=..] [branch=..] [tier=..] [top=..]");
+            return;
+        }
+        long t0 = System.nanoTime();
+        int added = SalesColumns.update(Path.of(args[0]), Path.of(args[1]));
+        long t1 = System.nanoTime();
+        SalesQuery q = parse(List.of(args).subList(2, args.length));
+        try (SalesColumns cols = SalesColumns.open(Path.of(args[1]))) {
+            List<String> rows = q.run(cols, ForkJoinPool.commonPool());
+            long t2 = System.nanoTime();
+            rows.forEach(System.out::println);
+            System.out.printf("converted %d new rows in %d ms; scanned %d rows in %d ms%n",
+                    added, (t1 - t0) / 1_000_000, cols.rows, (t2 - t1) / 1_000_000);
+        }
+    }
+}
@@ -1,45 +1,440 @@
 package server.domain.sales;
 
 import server.domain.customers.Customer;
+import server.domain.customers.CustomerType;
 import server.domain.invantory.Product;
+import server.util.ChangeLog;
+import server.util.FileDatabase;
+import server.util.Loggers;
+import server.util.Snapshots;
+import server.util.Timestamps;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Handles sales logic: calculates total, discount, etc.
+ *
+ * Amounts are computed in fixed point: longs in micro-units (scale 6), which
+ * holds price (scale 2) x rate (basis points, scale 4) exactly. The printed
+ * scales follow what BigDecimal would give for price.multiply(rate), so the
+ * output is identical to the CustomerType.applyDiscount reference path
+ * (checked by PricingCheck). Sales too large for a long fall back to it.
+ *
+ * The discount rate comes from the compiled PricingRules (data/promotions.txt).
+ * A background thread recompiles them when the file changes or a promo window
+ * opens/closes (checked every -Dpricing.reload.seconds, default 5) and swaps
+ * the volatile reference, so sales never wait for a reload.
+ *
+ * Every sale line is appended to the ledger (data/sales.txt) and added to the
+ * SalesAnalytics cube, which is rebuilt from the ledger at startup (or taken
+ * from the snapshot image and brought up to date with the lines appended
+ * since; see Snapshots), and goes to the ChangeLog as a SALE RECORDED event
+ * keyed "<BRANCH>/<sku>" with the ledger line as its data. Ad-hoc
+ * queries run over a columnar copy of the ledger (SalesColumns/SalesQuery).
  */
 public class SalesService {
 
+    static final int SCALE = 6;
+    private static final long[] POW10 = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    /** Used whenever an amount is reduced to fewer decimals (e.g. to agorot). */
+    static final RoundingMode ROUNDING = RoundingMode.HALF_EVEN;
+
+    private final Path rulesFile;
+    private final FileDatabase rulesDb;
+    private volatile PricingRules rules = PricingRules.defaults();
+    private volatile FileTime rulesModified;
+    private final List<Consumer<PricingRules>> rulesListeners = new CopyOnWriteArrayList<>();
+
+    private final Path ledgerFile;
+    private final FileDatabase ledgerDb;
+    private final SalesAnalytics analytics = new SalesAnalytics();
+    private final Object columnsLock = new Object();
+
+    public SalesService() {
+        this(Path.of("data/promotions.txt"), Path.of("data/sales.txt"));
+    }
+
+    public SalesService(Path rulesFile, Path ledgerFile) {
+        this.rulesFile = rulesFile;
+        this.rulesDb = new FileDatabase(rulesFile);
+        this.ledgerFile = ledgerFile;
+        this.ledgerDb = new FileDatabase(ledgerFile);
+        reloadRules();
+        if (!Snapshots.restore("sales.analytics", this::restoreAnalytics)) rebuildAnalytics();
+        Snapshots.register("sales.analytics", this::saveAnalytics);
+        long every = Math.max(1, Long.getLong("pricing.reload.seconds", 5));
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pricing-rules");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::reloadIfStale, every, every, TimeUnit.SECONDS);
+    }
+
     /** Summary object for a single sale */
     public static class SaleSummary {
-        private final BigDecimal basePrice;
-        private final BigDecimal discountValue;
-        private final BigDecimal finalPrice;
+        private final long baseMicros;
+        private final long discountMicros;
+        private final long finalMicros;
+        private final int discountScale;      // scale BigDecimal would print the discount with
+        private final BigDecimal[] exact;     // only set on the BigDecimal fallback path
         private final String customerType;
 
+        SaleSummary(long baseMicros, long discountMicros, int discountScale, String customerType) {
+            this.baseMicros = baseMicros;
+            this.discountMicros = discountMicros;
+            this.finalMicros = baseMicros - discountMicros;
+            this.discountScale = discountScale;
+            this.exact = null;
+            this.customerType = customerType;
+        }
+
         public SaleSummary(BigDecimal basePrice, BigDecimal discountValue, BigDecimal finalPrice, String customerType) {
-            this.basePrice = basePrice;
-            this.discountValue = discountValue;
-            this.finalPrice = finalPrice;
+            this.baseMicros = this.discountMicros = this.finalMicros = 0;
+            this.discountScale = 0;
+            this.exact = new BigDecimal[] {basePrice, discountValue, finalPrice};
             this.customerType = customerType;
         }
 
-        public BigDecimal basePrice() { return basePrice; }
-        public BigDecimal discountValue() { return discountValue; }
-        public BigDecimal finalPrice() { return finalPrice; }
+        public BigDecimal basePrice() { return exact != null ? exact[0] : decimal(baseMicros, 2); }
+        public BigDecimal discountValue() { return exact != null ? exact[1] : decimal(discountMicros, discountScale); }
+        public BigDecimal finalPrice() { return exact != null ? exact[2] : decimal(finalMicros, finalScale()); }
         public String customerType() { return customerType; }
+
+        long discountMicros() { return exact != null ? micros(exact[1]) : discountMicros; }
+        long finalMicros() { return exact != null ? micros(exact[2]) : finalMicros; }
+
+        /** Final price rounded to agorot with the engine's rounding mode; ArithmeticException if beyond a long. */
+        public long finalMinor() {
+            return exact != null ? exact[2].setScale(2, ROUNDING).unscaledValue().longValueExact() : rescale(finalMicros, 2);
+        }
+
+        /** Appends "base discount final type" as the SELL reply prints it, without building BigDecimals. */
+        public StringBuilder appendTo(StringBuilder sb) {
+            if (exact != null) {
+                return sb.append(exact[0]).append(' ').append(exact[1]).append(' ').append(exact[2])
+                         .append(' ').append(customerType);
+            }
+            appendScaled(sb, baseMicros, 2).append(' ');
+            appendScaled(sb, discountMicros, discountScale).append(' ');
+            return appendScaled(sb, finalMicros, finalScale()).append(' ').append(customerType);
+        }
+
+        private int finalScale() { return Math.max(2, discountScale); } // BigDecimal.subtract keeps the larger scale
+
+        /** Sum of several lines, printed with the scales BigDecimal.add would give. */
+        static SaleSummary total(List<SaleSummary> lines, String customerType) {
+            long base = 0, discount = 0;
+            int scale = 0;
+            boolean exactSum = false;
+            try {
+                for (SaleSummary l : lines) {
+                    if (l.exact != null) { exactSum = true; break; }
+                    base = Math.addExact(base, l.baseMicros);
+                    discount = Math.addExact(discount, l.discountMicros);
+                    scale = Math.max(scale, l.discountScale);
+                }
+            } catch (ArithmeticException overflow) {
+                exactSum = true;
+            }
+            if (!exactSum) return new SaleSummary(base, discount, scale, customerType);
+
+            BigDecimal b = BigDecimal.ZERO.setScale(2), d = BigDecimal.ZERO, f = BigDecimal.ZERO.setScale(2);
+            for (SaleSummary l : lines) {
+                b = b.add(l.basePrice());
+                d = d.add(l.discountValue());
+                f = f.add(l.finalPrice());
+            }
+            return new SaleSummary(b, d, f, customerType);
+        }
+    }
+
+    /** A priced cart: one summary per line plus the total. */
+    public static class CartSummary {
+        private final List<SaleSummary> lines;
+        private final SaleSummary total;
+
+        CartSummary(List<SaleSummary> lines, SaleSummary total) {
+            this.lines = lines;
+            this.total = total;
+        }
+
+        public List<SaleSummary> lines() { return lines; }
+        public SaleSummary total() { return total; }
     }
 
     /**
      * Execute a sale and return summary.
+     * Throws SaleNotRecordedException if the ledger could not be written.
      */
     public SaleSummary sell(Product product, int quantity, Customer customer) {
-        BigDecimal basePrice = product.price().multiply(BigDecimal.valueOf(quantity));
+        SaleSummary summary = sell(product.price(), quantity, discountBasisPoints(product, quantity, customer), customer.type().code());
+        try {
+            recordSale(product, quantity, customer, summary);
+        } catch (UncheckedIOException e) {
+            throw new SaleNotRecordedException(0, e);
+        }
+        return summary;
+    }
+
+    private SaleSummary sell(BigDecimal price, int quantity, int bp, String customerType) {
+        long priceMinor;
+        try {
+            priceMinor = price.setScale(2).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            return sellExact(price, quantity, bp, customerType);
+        }
+        return sell(priceMinor, quantity, bp, customerType);
+    }
+
+    /**
+     * Prices a whole cart against one rules snapshot; each line gets its own promotions.
+     * Throws SaleNotRecordedException, with the lines recorded so far, if the ledger could not be written.
+     */
+    public CartSummary checkout(List<Product> products, int[] quantities, Customer customer) {
+        PricingRules r = rules;
+        String tier = customer.type().code();
+        List<SaleSummary> lines = new ArrayList<>(products.size());
+        for (int i = 0; i < products.size(); i++) {
+            Product p = products.get(i);
+            int bp = r.discountBasisPoints(p.branch(), p.category(), tier, quantities[i]);
+            SaleSummary line = sell(p.price(), quantities[i], bp, tier);
+            try {
+                recordSale(p, quantities[i], customer, line);
+            } catch (UncheckedIOException e) {
+                throw new SaleNotRecordedException(i, e);
+            }
+            lines.add(line);
+        }
+        return new CartSummary(lines, SaleSummary.total(lines, tier));
+    }
+
+    /** Tier rate only, without promotions. */
+    public SaleSummary sell(long priceMinor, int quantity, CustomerType type) {
+        return sell(priceMinor, quantity, type.discountBasisPoints(), type.code());
+    }
+
+    /** Fixed-point path: price in agorot, discount in basis points, no BigDecimal. */
+    public SaleSummary sell(long priceMinor, int quantity, int bp, String customerType) {
+        try {
+            long baseMinor = Math.multiplyExact(priceMinor, quantity);
+            long baseMicros = Math.multiplyExact(baseMinor, POW10[SCALE - 2]);
+            long discountMicros = Math.multiplyExact(baseMinor, bp); // scale 2 x scale 4 = scale 6, exact
+            return new SaleSummary(baseMicros, discountMicros, discountScale(bp), customerType);
+        } catch (ArithmeticException overflow) {
+            return sellExact(BigDecimal.valueOf(priceMinor, 2), quantity, bp, customerType);
+        }
+    }
+
+    /** Discount for one line under the current rules. */
+    public int discountBasisPoints(Product product, int quantity, Customer customer) {
+        return rules.discountBasisPoints(product.branch(), product.category(), customer.type().code(), quantity);
+    }
+
+    /** Reference path: the original BigDecimal computation, with the rate as a decimal (500 -> 0.05). */
+    static SaleSummary sellExact(BigDecimal price, int quantity, int bp, String customerType) {
+        BigDecimal basePrice = price.multiply(BigDecimal.valueOf(quantity));
+
+        BigDecimal rate = bp == 0 ? BigDecimal.ZERO : BigDecimal.valueOf(bp, 4).stripTrailingZeros();
+        BigDecimal discountValue = bp == 0 ? BigDecimal.ZERO : basePrice.multiply(rate);
+        BigDecimal finalPrice = basePrice.subtract(discountValue);
+
+        return new SaleSummary(basePrice, discountValue, finalPrice, customerType);
+    }
+
+    /** Original tier-only computation via CustomerType.applyDiscount. */
+    static SaleSummary sellExact(BigDecimal price, int quantity, CustomerType type) {
+        BigDecimal basePrice = price.multiply(BigDecimal.valueOf(quantity));
 
         // let the customer type calculate discount
-        BigDecimal discountValue = customer.type().applyDiscount(basePrice);
+        BigDecimal discountValue = type.applyDiscount(basePrice);
         BigDecimal finalPrice = basePrice.subtract(discountValue);
 
-        return new SaleSummary(basePrice, discountValue, finalPrice, customer.type().code());
+        return new SaleSummary(basePrice, discountValue, finalPrice, type.code());
+    }
+
+    // ---------- ledger + analytics ----------
+
+    /** The cube, rebuilt first if another StoreServer process appended to the ledger since we last read or wrote it. */
+    public SalesAnalytics analytics() {
+        if (ledgerDb.changedElsewhere()) rebuildAnalytics();
+        return analytics;
+    }
+
+    /** Rebuilds the analytics cube from the ledger; returns the number of sales read. */
+    public int rebuildAnalytics() {
+        int n = analytics.rebuild(ledgerDb.readAllLines());
+        Loggers.system().info("Sales analytics rebuilt from ledger: " + n + " sales");
+        return n;
+    }
+
+    // the cube with the ledger stamp it matches; recordSale keeps the two in step under the same lock
+    private boolean saveAnalytics(DataOutputStream out) throws IOException {
+        synchronized (analytics) {
+            FileDatabase.Stamp stamp = ledgerDb.stampIfUnchanged();
+            if (stamp == null) return false;
+            stamp.writeTo(out);
+            analytics.writeTo(out);
+            return true;
+        }
+    }
+
+    private boolean restoreAnalytics(DataInputStream in) throws IOException {
+        FileDatabase.Stamp stamp = FileDatabase.Stamp.readFrom(in);
+        analytics.readFrom(in);
+        List<String> since = ledgerDb.linesSince(stamp); // null unless the ledger only grew
+        if (since == null) return false;
+        int n = analytics.add(since);
+        Loggers.system().info("Sales analytics restored from snapshot, " + n + " newer sales replayed");
+        return true;
+    }
+
+    /**
+     * Ad-hoc query over the columnar copy of the ledger (see SalesQuery for the arguments).
+     * Lines added to the ledger since the last query are converted first.
+     */
+    public List<String> query(List<String> args) throws IOException {
+        SalesQuery q = SalesQuery.parse(args);
+        synchronized (columnsLock) {
+            Path dir = ledgerFile.resolveSibling("sales.col");
+            Files.createDirectories(dir);
+            // other StoreServer processes convert into the same directory
+            try (FileChannel lockFile = FileChannel.open(dir.resolve(".columns.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = FileDatabase.lock(lockFile, false);
+                try {
+                    SalesColumns.update(ledgerFile, dir);
+                    try (SalesColumns cols = SalesColumns.open(dir)) {
+                        return q.run(cols, ForkJoinPool.commonPool());
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void recordSale(Product p, int quantity, Customer customer, SaleSummary s) {
+        String ts = Timestamps.now();
+        int hour = (ts.charAt(11) - '0') * 10 + (ts.charAt(12) - '0');
+
+        // timestamp,branch,id,quantity,customerId,customerType,unitPrice,discountValue,finalPrice,category
+        StringBuilder row = new StringBuilder(128).append(ts).append(',').append(p.branch().name()).append(',')
+                .append(p.sku()).append(',').append(quantity).append(',').append(customer.id()).append(',')
+                .append(s.customerType()).append(',').append(p.price().toPlainString()).append(',');
+        if (s.exact != null) row.append(s.exact[1].toPlainString()).append(',').append(s.exact[2].toPlainString());
+        else {
+            appendScaled(row, s.discountMicros, s.discountScale).append(',');
+            appendScaled(row, s.finalMicros, s.finalScale());
+        }
+        row.append(',').append(p.category());
+        synchronized (analytics) { // a snapshot sees the cube and the ledger with the same sales
+            // the ledger first: the cube and the log count only sales a rebuild from the ledger finds
+            try {
+                ledgerDb.appendLine(row.toString());
+            } catch (UncheckedIOException e) {
+                Loggers.sales().severe("Sale not written to ledger: " + row + " (" + e.getMessage() + ")");
+                throw e;
+            }
+            analytics.record(p.branch(), p.category(), s.customerType(), hour, quantity, s.discountMicros(), s.finalMicros());
+            ChangeLog.append("SALE", "RECORDED", p.branch().name() + "/" + p.sku(), row.toString());
+        }
+    }
+
+    // ---------- pricing rules ----------
+
+    public PricingRules rules() { return rules; }
+
+    /** Called now with the current rules and again after every reload. */
+    public void onRulesChanged(Consumer<PricingRules> listener) {
+        rulesListeners.add(listener);
+        listener.accept(rules);
+    }
+
+    /** Recompiles data/promotions.txt; on a bad file the previous rules stay in force. */
+    public synchronized boolean reloadRules() {
+        try {
+            rulesModified = Files.exists(rulesFile) ? Files.getLastModifiedTime(rulesFile) : null; // a bad file is reported once
+            PricingRules next = PricingRules.compile(rulesDb.readAllLines(), System.currentTimeMillis());
+            rules = next;
+            Loggers.system().info("Pricing rules loaded: " + next.ruleCount() + " promos, thresholds "
+                    + next.returningThreshold() + "/" + next.vipThreshold());
+            for (Consumer<PricingRules> l : rulesListeners) l.accept(next);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Loggers.system().warning("Pricing rules not reloaded, keeping previous: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void reloadIfStale() {
+        try {
+            FileTime modified = Files.exists(rulesFile) ? Files.getLastModifiedTime(rulesFile) : null;
+            boolean changed = modified == null ? rulesModified != null : !modified.equals(rulesModified);
+            if (changed || System.currentTimeMillis() >= rules.validUntil()) reloadRules();
+        } catch (IOException e) {
+            Loggers.system().warning("Pricing rules check failed: " + e.getMessage());
+        }
+    }
+
+    // ---------- fixed-point helpers ----------
+
+    /** Scale of price.multiply(rate) for a scale-2 price: 2 + decimals of bp/10000, or 0 for no discount. */
+    static int discountScale(int bp) {
+        if (bp == 0) return 0;
+        int rateScale = 4;
+        while (rateScale > 0 && bp % 10 == 0) { bp /= 10; rateScale--; }
+        return 2 + rateScale;
+    }
+
+    /** Micro-units reduced to {@code scale} decimals with ROUNDING. */
+    static long rescale(long micros, int scale) {
+        long div = POW10[SCALE - scale];
+        long q = Math.floorDiv(micros, div), r = Math.floorMod(micros, div);
+        long twice = 2 * r;
+        if (twice > div || (twice == div && (ROUNDING == RoundingMode.HALF_UP || (q & 1) != 0))) q++;
+        return q;
+    }
+
+    /** Plain-string form at {@code scale}, like BigDecimal.toPlainString. */
+    static StringBuilder appendScaled(StringBuilder sb, long micros, int scale) {
+        long v = rescale(micros, scale); // exact for sale amounts; report totals round with ROUNDING
+        if (v < 0) { sb.append('-'); v = -v; }
+        if (scale == 0) return sb.append(v);
+        long div = POW10[scale];
+        sb.append(v / div).append('.');
+        long frac = v % div;
+        for (long p = div / 10; p > 0; p /= 10) sb.append((char) ('0' + (frac / p) % 10));
+        return sb;
+    }
+
+    private static long micros(BigDecimal v) {
+        try {
+            return v.movePointRight(SCALE).setScale(0, ROUNDING).longValueExact();
+        } catch (ArithmeticException tooLarge) {
+            return v.signum() < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    private static BigDecimal decimal(long micros, int scale) {
+        return BigDecimal.valueOf(rescale(micros, scale), scale);
     }
 }
@@ -0,0 +1,87 @@
+package server.net;
+
+import server.domain.invantory.LowStockMonitor;
+import server.util.Loggers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Delivers low-stock alerts to the ChatServer's alert feed, which pushes them
+ * to the branch's Shift Managers:
+ *   ALERT_FEED                     (once per connection)
+ *   ALERT <branch> <text...>
+ *
+ * Runs on the monitor thread. The connection is opened on the first alert and
+ * reopened after a failure, at most every RETRY_MILLIS; alerts that cannot be
+ * sent are only logged (the LowStockMonitor has already written them to the
+ * system log). -Dalerts.chat.port=0 disables delivery.
+ */
+public class ChatAlertSink implements Consumer<LowStockMonitor.Alert> {
+    private static final long RETRY_MILLIS = 30_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2_000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private PrintWriter out;
+    private long nextAttempt;
+
+    public ChatAlertSink(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static ChatAlertSink fromConfig() {
+        return new ChatAlertSink(System.getProperty("alerts.chat.host", "127.0.0.1"),
+                Integer.getInteger("alerts.chat.port", 6060));
+    }
+
+    @Override
+    public synchronized void accept(LowStockMonitor.Alert alert) {
+        if (port <= 0 || !connected()) return;
+        out.println("ALERT " + alert.branch().name() + " " + alert.describe());
+        if (out.checkError()) {
+            Loggers.system().warning("Chat alert feed lost; alert not delivered: " + alert.describe());
+            close();
+        }
+    }
+
+    private boolean connected() {
+        if (out != null) return true;
+        long now = System.currentTimeMillis();
+        if (now < nextAttempt) return false;
+        nextAttempt = now + RETRY_MILLIS;
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            s.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            PrintWriter w = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            w.println("ALERT_FEED");
+            String reply = r.readLine();
+            if (!"OK ALERT_FEED".equals(reply)) throw new IOException("chat server replied " + reply);
+            socket = s;
+            out = w;
+            Loggers.system().info("Chat alert feed connected to " + host + ":" + port);
+            return true;
+        } catch (IOException e) {
+            try { s.close(); } catch (IOException ignored) {}
+            Loggers.system().warning("Chat alert feed unavailable at " + host + ":" + port + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void close() {
+        try { if (socket != null) socket.close(); } catch (IOException ignored) {}
+        socket = null;
+        out = null;
+    }
+}
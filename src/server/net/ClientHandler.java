@@ -1,36 +1,76 @@
 package server.net;
 
 import server.domain.employees.AuthService;
+import server.domain.employees.EmployeeDirectory;
+import server.domain.employees.PasswordPolicy;
 import server.domain.invantory.InventoryService;
 import server.domain.customers.CustomerService;
+import server.domain.sales.SalesAnalytics;
+import server.domain.sales.SaleNotRecordedException;
 import server.domain.sales.SalesService;
 
 import server.shared.Branch;
 import server.domain.invantory.Product;
 import server.domain.customers.Customer;
 
+import server.util.ChangeLog;
+import server.util.LatencyHistogram;
 import server.util.Loggers;
+import server.util.Metrics;
 
 import java.io.BufferedReader;
+import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ClientHandler implements Runnable {
+    // commands with their own latency histogram (store.cmd.<CMD>); anything else is store.cmd.OTHER
+    private static final Map<String, LatencyHistogram> CMD_TIME = Metrics.histograms("store.cmd.", List.of("LOGIN",
+            "LOGOUT", "LIST", "BUY", "SELL", "CUSTOMER_ADD", "CUSTOMER_LIST", "ADD_PRODUCT", "REMOVE_PRODUCT", "STATS",
+            "CHECKOUT", "REPORT", "QUERY", "STOCK_WHERE", "TRANSFER", "BRANCHES", "EMPLOYEE_LIST", "EMPLOYEE_ADD",
+            "EMPLOYEE_DELETE", "POLICY_GET", "POLICY_SET", "SUBSCRIBE"));
+    private static final LatencyHistogram OTHER_TIME = Metrics.histogram("store.cmd.OTHER");
+    private static final int MAX_CART_LINES = Integer.getInteger("checkout.maxLines", 100);
+    private static final int MAX_SUBSCRIBE_BATCH = 5_000;
+    // commands that change something: sent as REQ <id> <command>, a retry is answered from the cache
+    private static final Set<String> MUTATING = Set.of("BUY", "SELL", "CHECKOUT", "TRANSFER", "CUSTOMER_ADD",
+            "ADD_PRODUCT", "REMOVE_PRODUCT", "EMPLOYEE_ADD", "EMPLOYEE_DELETE", "POLICY_SET");
+    private static final int MAX_REQUEST_ID = 64;
+    private static final long IN_PROGRESS_WAIT_MILLIS = 10_000;
+    private static final IdempotencyCache idempotency = new IdempotencyCache();
+    private static final LongAdder eventsSent = Metrics.counter("changes.sent");
+    private static final LongAdder connectionsTotal = Metrics.counter("store.connections.total");
+    private static final LongAdder connectionsOpen = new LongAdder();
+    private static final LongAdder errors = Metrics.counter("store.errors");
+
+    static { Metrics.gauge("store.connections.open", connectionsOpen::sum); }
+
     private final Socket socket;
     private final AuthService auth;
+    private final EmployeeDirectory employees;
     private final InventoryService inventory;
     private final CustomerService customers;
     private final SalesService sales;
 
     private String loggedUsername = null;
+    private boolean loggedAsAdmin = false;
 
-    public ClientHandler(Socket socket, AuthService auth, InventoryService inventory,
+    public ClientHandler(Socket socket, AuthService auth, EmployeeDirectory employees, InventoryService inventory,
                          CustomerService customers, SalesService sales) {
         this.socket = socket;
         this.auth = auth;
+        this.employees = employees;
         this.inventory = inventory;
         this.customers = customers;
         this.sales = sales;
@@ -38,137 +78,442 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
+        connectionsTotal.increment();
+        connectionsOpen.increment();
         try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
+             Recorder replies = new Recorder(new OutputStreamWriter(socket.getOutputStream()));
+             PrintWriter out = new PrintWriter(replies, true)) {
 
+            socket.setKeepAlive(true); // a terminal that vanished without closing is found, and its thread freed
             out.println("OK WELCOME");
             String line;
 
             while ((line = in.readLine()) != null) {
                 String[] t = line.trim().split(" ");
                 if (t.length == 0) continue;
+                IdempotencyCache.Claim claim = null;
+                if (t.length >= 3 && "REQ".equalsIgnoreCase(t[0])) { // REQ <id> <command...>
+                    String id = t[1];
+                    t = Arrays.copyOfRange(t, 2, t.length);
+                    if (id.length() > MAX_REQUEST_ID) { out.println("ERR BAD_ARGS"); continue; }
+                    if (MUTATING.contains(t[0].toUpperCase())) { // anything else is simply run
+                        claim = idempotency.claim(loggedUsername, id, String.join(" ", t), IN_PROGRESS_WAIT_MILLIS);
+                        if (claim.reply() != null) { // a retry: the first reply again
+                            out.print(claim.reply());
+                            out.flush();
+                            continue;
+                        }
+                        replies.record();
+                    }
+                }
                 String cmd = t[0].toUpperCase();
+                long started = System.nanoTime();
+                boolean failed = false;
+                try {
+                    // LOGIN <username> <password> <role: employee|admin> [RESUME] -> OK LOGIN [<ROLE> <BRANCH>]
+                    // RESUME takes over the user's session from a connection that dropped
+                    if ("LOGIN".equals(cmd)) {
+                        if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
+                        boolean resume = t.length > 4 && "RESUME".equalsIgnoreCase(t[4]);
+                        AuthService.LoginResult result = "admin".equalsIgnoreCase(t[3])
+                                ? auth.loginAdmin(t[1], t[2], socket, resume)
+                                : auth.loginEmployee(t[1], t[2], socket, resume);
+                        
+                        if (result == AuthService.LoginResult.SUCCESS) { 
+                            loggedUsername = t[1]; 
+                            loggedAsAdmin = "admin".equalsIgnoreCase(t[3]);
+                            // employees get their role and branch, so the client needs no employee file
+                            out.println(loggedAsAdmin ? "OK LOGIN" : employees.findByUsername(t[1])
+                                    .map(r -> "OK LOGIN " + r.role() + " " + r.branch().name()).orElse("OK LOGIN"));
+                        } else if (result == AuthService.LoginResult.ALREADY_CONNECTED) {
+                            out.println("ERR LOGIN ALREADY_CONNECTED");
+                        } else {
+                            out.println("ERR LOGIN INVALID_CREDENTIALS");
+                        }
+                    }
+                    else if ("LOGOUT".equals(cmd)) {
+                        if (loggedUsername != null) auth.logout(loggedUsername, socket);
+                        out.println("OK BYE");
+                        return;
+                    }
+                    else if ("LIST".equals(cmd)) { // LIST <branch>
+                        if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        for (Product p : inventory.listByBranch(branch)) {
+                            out.println("ITEM " + p.sku() + "," + p.category() + ","
+                                    + p.branch() + "," + p.quantity() + "," + p.price());
+                        }
+                        out.println("OK END");
+                    }
+                    else if ("BUY".equals(cmd)) { // BUY <branch> <sku> <quantity>
+                        if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        String sku = t[2];
+                        int quantity = Integer.parseInt(t[3]);
+                        inventory.updateQuantity(branch, sku, +quantity);
+                        out.println("OK BUY");
+                    }
+                    else if ("SELL".equals(cmd)) { // SELL <branch> <sku> <quantity> <customerId>
+                        if (t.length < 5) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        String sku = t[2];
+                        int quantity = Integer.parseInt(t[3]);
+                        String customerId = t[4];
+                        if (quantity <= 0) { out.println("ERR BAD_ARGS"); continue; }
+
+                        Customer customer = customers.findById(customerId)
+                                .orElseThrow(() -> new IllegalStateException("Customer not found"));
+
+                        // check and take the stock in one step under the branch's lock, like CHECKOUT; the sale is recorded only then
+                        Product product;
+                        try {
+                            product = inventory.reserveAll(branch, List.of(sku), new int[] {quantity}).get(0);
+                        } catch (IllegalStateException ex) {
+                            out.println("ERR " + ex.getMessage().split(" ")[0]); // SKU_NOT_FOUND | NOT_ENOUGH_STOCK
+                            continue;
+                        }
+
+                        // Discount based on current type (before promotion)
+                        SalesService.SaleSummary summary;
+                        try {
+                            summary = sales.sell(product, quantity, customer);
+                        } catch (SaleNotRecordedException ex) {
+                            inventory.releaseAll(branch, List.of(sku), new int[] {quantity});
+                            out.println("ERR SALE_NOT_RECORDED");
+                            continue;
+                        }
 
-                if ("LOGIN".equals(cmd)) { // LOGIN <username> <password> <role: employee|admin>
-                    if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
-                    AuthService.LoginResult result = "admin".equalsIgnoreCase(t[3])
-                            ? auth.loginAdmin(t[1], t[2])
-                            : auth.loginEmployee(t[1], t[2]);
-                    
-                    if (result == AuthService.LoginResult.SUCCESS) { 
-                        loggedUsername = t[1]; 
-                        out.println("OK LOGIN"); 
-                    } else if (result == AuthService.LoginResult.ALREADY_CONNECTED) {
-                        out.println("ERR LOGIN ALREADY_CONNECTED");
-                    } else {
-                        out.println("ERR LOGIN INVALID_CREDENTIALS");
+                        // Record purchase and auto-promote for next time
+                        customers.recordPurchase(customerId);
+
+                        out.println(summary.appendTo(new StringBuilder("OK SALE ")));
                     }
-                }
-                else if ("LOGOUT".equals(cmd)) {
-                    if (loggedUsername != null) auth.logout(loggedUsername);
-                    out.println("OK BYE");
-                    return;
-                }
-                else if ("LIST".equals(cmd)) { // LIST <branch>
-                    if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
-                    Branch branch = Branch.valueOf(t[1].toUpperCase());
-                    for (Product p : inventory.listByBranch(branch)) {
-                        out.println("ITEM " + p.sku() + "," + p.category() + ","
-                                + p.branch() + "," + p.quantity() + "," + p.price());
-                    }
-                    out.println("OK END");
-                }
-                else if ("BUY".equals(cmd)) { // BUY <branch> <sku> <quantity>
-                    if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
-                    Branch branch = Branch.valueOf(t[1].toUpperCase());
-                    String sku = t[2];
-                    int quantity = Integer.parseInt(t[3]);
-                    inventory.updateQuantity(branch, sku, +quantity);
-                    out.println("OK BUY");
-                }
-                else if ("SELL".equals(cmd)) { // SELL <branch> <sku> <quantity> <customerId>
-                    if (t.length < 5) { out.println("ERR BAD_ARGS"); continue; }
-                    Branch branch = Branch.valueOf(t[1].toUpperCase());
-                    String sku = t[2];
-                    int quantity = Integer.parseInt(t[3]);
-                    String customerId = t[4];
-
-                    Product product = inventory.findProduct(branch, sku)
-                            .orElseThrow(() -> new IllegalStateException("SKU not found in branch"));
-                    Customer customer = customers.findById(customerId)
-                            .orElseThrow(() -> new IllegalStateException("Customer not found"));
-
-                    if (product.quantity() < quantity) {
-                        out.println("ERR NOT_ENOUGH_STOCK");
-                        continue;
-                    }
-
-                    // Discount based on current type (before promotion)
-                    SalesService.SaleSummary summary = sales.sell(product, quantity, customer);
-                    inventory.updateQuantity(branch, sku, -quantity);
-
-                    // Record purchase and auto-promote for next time
-                    customers.recordPurchase(customerId);
-
-                    out.println("OK SALE " +
-                            summary.basePrice() + " " +
-                            summary.discountValue() + " " +
-                            summary.finalPrice() + " " +
-                            summary.customerType());
-                }
-                else if ("CUSTOMER_ADD".equals(cmd)) { // CUSTOMER_ADD <id> <fullName_underscored> <phone> [type]
-                    if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
-                    String id = t[1];
-                    String fullName = t[2].replace('_', ' ');
-                    String phone = t[3];
-                    String type = (t.length >= 5) ? t[4].toUpperCase() : "NEW";
-                    try {
-                        customers.addCustomer(id, fullName, phone, type);
-                        out.println("OK CUSTOMER_ADDED");
-                    } catch (Exception ex) {
-                        out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                    else if ("CHECKOUT".equals(cmd)) { // CHECKOUT <branch> <customerId> <sku>:<qty> [<sku>:<qty> ...]
+                        if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
+                        if (t.length - 3 > MAX_CART_LINES) { out.println("ERR CART_TOO_LARGE"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        String customerId = t[2];
+                        List<String> skus = new ArrayList<>(t.length - 3);
+                        int[] quantities = new int[t.length - 3];
+                        boolean badLine = false;
+                        for (int i = 3; i < t.length; i++) {
+                            int colon = t[i].indexOf(':');
+                            if (colon <= 0) { badLine = true; break; }
+                            skus.add(t[i].substring(0, colon));
+                            try {
+                                quantities[i - 3] = Integer.parseInt(t[i].substring(colon + 1));
+                            } catch (NumberFormatException ex) { badLine = true; break; }
+                            if (quantities[i - 3] <= 0) { badLine = true; break; }
+                        }
+                        if (badLine) { out.println("ERR BAD_ARGS"); continue; }
+
+                        Customer customer = customers.findById(customerId).orElse(null);
+                        if (customer == null) { out.println("ERR CUSTOMER_NOT_FOUND"); continue; }
+
+                        // all lines leave stock together or not at all
+                        List<Product> products;
+                        try {
+                            products = inventory.reserveAll(branch, skus, quantities);
+                        } catch (IllegalStateException ex) {
+                            out.println("ERR " + ex.getMessage());
+                            continue;
+                        }
+                        SalesService.CartSummary cart;
+                        try {
+                            cart = sales.checkout(products, quantities, customer);
+                        } catch (SaleNotRecordedException ex) { // lines already recorded stay sold
+                            int from = ex.recorded();
+                            inventory.releaseAll(branch, skus.subList(from, skus.size()),
+                                    Arrays.copyOfRange(quantities, from, quantities.length));
+                            if (from > 0) customers.recordPurchase(customerId);
+                            out.println("ERR SALE_NOT_RECORDED");
+                            continue;
+                        }
+                        customers.recordPurchase(customerId); // one cart = one purchase
+
+                        StringBuilder sb = new StringBuilder(64);
+                        for (int i = 0; i < skus.size(); i++) {
+                            sb.setLength(0);
+                            sb.append("LINE ").append(skus.get(i)).append(' ').append(quantities[i]).append(' ');
+                            out.println(cart.lines().get(i).appendTo(sb));
+                        }
+                        out.println(cart.total().appendTo(new StringBuilder("OK CHECKOUT ")));
                     }
-                }
-                else if ("CUSTOMER_LIST".equals(cmd)) { // returns CUST lines
-                    for (Customer c : customers.listAll()) {
-                        out.println("CUST " + c.id() + "," + c.fullName() + "," + c.phone() + "," + c.type().code());
+                    else if ("STOCK_WHERE".equals(cmd)) { // STOCK_WHERE <sku> -> STOCK <branch> <quantity> <price> lines
+                        if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
+                        List<InventoryService.StockInfo> where = inventory.stockWhere(t[1]);
+                        if (where.isEmpty()) { out.println("ERR SKU_NOT_FOUND"); continue; }
+                        for (InventoryService.StockInfo s : where) {
+                            out.println("STOCK " + s.branch() + " " + s.quantity() + " " + s.price());
+                        }
+                        out.println("OK END");
                     }
-                    out.println("OK END");
-                }
-                else if ("ADD_PRODUCT".equals(cmd)) { // ADD_PRODUCT <branch> <category> <quantity> <price>
-                    if (t.length < 5) { out.println("ERR BAD_ARGS"); continue; }
-                    Branch branch = Branch.valueOf(t[1].toUpperCase());
-                    String category = t[2].replace('_', ' ');
-                    int quantity = Integer.parseInt(t[3]);
-                    java.math.BigDecimal price = new java.math.BigDecimal(t[4]);
-                    try {
-                        String newSku = inventory.addNewProduct(branch, category, quantity, price);
-                        out.println("OK PRODUCT_ADDED " + newSku + " " + category.replace(' ', '_'));
-                    } catch (Exception ex) {
-                        out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                    else if ("TRANSFER".equals(cmd)) { // TRANSFER <sku> <fromBranch> <toBranch> <quantity>
+                        if (t.length < 5) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch from, to;
+                        int quantity;
+                        try {
+                            from = Branch.valueOf(t[2].toUpperCase());
+                            to = Branch.valueOf(t[3].toUpperCase());
+                            quantity = Integer.parseInt(t[4]);
+                        } catch (IllegalArgumentException ex) { out.println("ERR BAD_ARGS"); continue; }
+                        if (quantity <= 0) { out.println("ERR BAD_ARGS"); continue; }
+                        try {
+                            int[] now = inventory.transfer(t[1], from, to, quantity);
+                            out.println("OK TRANSFER " + now[0] + " " + now[1]);
+                        } catch (IllegalStateException ex) {
+                            out.println("ERR " + ex.getMessage());
+                        }
                     }
-                }
-                else if ("REMOVE_PRODUCT".equals(cmd)) { // REMOVE_PRODUCT <branch> <sku>
-                    if (t.length < 3) { out.println("ERR BAD_ARGS"); continue; }
-                    Branch branch = Branch.valueOf(t[1].toUpperCase());
-                    String sku = t[2];
-                    try {
-                        boolean removed = inventory.removeProduct(branch, sku);
-                        if (removed) out.println("OK REMOVED");
-                        else out.println("ERR SKU_NOT_FOUND");
-                    } catch (Exception ex) {
-                        out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                    else if ("CUSTOMER_ADD".equals(cmd)) { // CUSTOMER_ADD <id> <fullName_underscored> <phone> [type]
+                        if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
+                        String id = t[1];
+                        String fullName = t[2].replace('_', ' ');
+                        String phone = t[3];
+                        String type = (t.length >= 5) ? t[4].toUpperCase() : "NEW";
+                        try {
+                            customers.addCustomer(id, fullName, phone, type);
+                            out.println("OK CUSTOMER_ADDED");
+                        } catch (Exception ex) {
+                            out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                        }
                     }
-                }
-                else {
-                    out.println("ERR UNKNOWN_CMD");
+                    else if ("CUSTOMER_LIST".equals(cmd)) { // returns CUST lines
+                        for (Customer c : customers.listAll()) {
+                            out.println("CUST " + c.id() + "," + c.fullName() + "," + c.phone() + "," + c.type().code());
+                        }
+                        out.println("OK END");
+                    }
+                    else if ("ADD_PRODUCT".equals(cmd)) { // ADD_PRODUCT <branch> <category> <quantity> <price>
+                        if (t.length < 5) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        String category = t[2].replace('_', ' ');
+                        int quantity = Integer.parseInt(t[3]);
+                        java.math.BigDecimal price = new java.math.BigDecimal(t[4]);
+                        try {
+                            String newSku = inventory.addNewProduct(branch, category, quantity, price);
+                            out.println("OK PRODUCT_ADDED " + newSku + " " + category.replace(' ', '_'));
+                        } catch (Exception ex) {
+                            out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                        }
+                    }
+                    else if ("REMOVE_PRODUCT".equals(cmd)) { // REMOVE_PRODUCT <branch> <sku>
+                        if (t.length < 3) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        String sku = t[2];
+                        try {
+                            boolean removed = inventory.removeProduct(branch, sku);
+                            if (removed) out.println("OK REMOVED");
+                            else out.println("ERR SKU_NOT_FOUND");
+                        } catch (Exception ex) {
+                            out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                        }
+                    }
+                    else if ("STATS".equals(cmd)) { // admin only: one STAT line per metric
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        for (String m : Metrics.render()) out.println("STAT " + m);
+                        out.println("OK END");
+                    }
+                    else if ("REPORT".equals(cmd)) { // admin only: REPORT <TOTAL|BRANCH|CATEGORY|TIER|HOUR> [branch] | REPORT REBUILD
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
+                        if ("REBUILD".equalsIgnoreCase(t[1])) {
+                            out.println("OK REBUILT " + sales.rebuildAnalytics());
+                            continue;
+                        }
+                        SalesAnalytics.Dimension by;
+                        Branch only;
+                        try {
+                            by = SalesAnalytics.Dimension.valueOf(t[1].toUpperCase());
+                            only = t.length >= 3 ? Branch.valueOf(t[2].toUpperCase()) : null;
+                        } catch (IllegalArgumentException ex) { out.println("ERR BAD_ARGS"); continue; }
+                        for (String r : sales.analytics().report(by, only)) out.println("REPORT " + r);
+                        out.println("OK END");
+                    }
+                    else if ("QUERY".equals(cmd)) { // admin only: QUERY [group=..] [from=..] [to=..] [branch=..] [tier=..] [top=..]
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        List<String> rows;
+                        try {
+                            rows = sales.query(List.of(t).subList(1, t.length));
+                        } catch (IllegalArgumentException | java.time.DateTimeException ex) {
+                            out.println("ERR BAD_ARGS");
+                            continue;
+                        }
+                        for (String r : rows) out.println("ROW " + r);
+                        out.println("OK END");
+                    }
+                    else if ("BRANCHES".equals(cmd)) { // BRANCHES -> OK BRANCHES <name>...
+                        StringBuilder sb = new StringBuilder("OK BRANCHES");
+                        for (Branch b : Branch.values()) sb.append(' ').append(b.name());
+                        out.println(sb);
+                    }
+                    else if ("EMPLOYEE_LIST".equals(cmd)) { // admin only: EMP <id>,<username>,<role>,<branch>,<account>,<phone> lines
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        for (EmployeeDirectory.EmployeeRecord r : employees.listAll()) {
+                            out.println("EMP " + r.employeeId() + "," + r.username() + "," + r.role() + ","
+                                    + r.branch().name() + "," + r.accountNumber() + "," + r.phone());
+                        }
+                        out.println("OK END");
+                    }
+                    else if ("EMPLOYEE_ADD".equals(cmd)) { // admin only: EMPLOYEE_ADD <username> <password> <role> <branch> [account|-] [phone|-]
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        if (t.length < 5) { out.println("ERR BAD_ARGS"); continue; }
+                        try {
+                            Branch branch = Branch.valueOf(t[4].toUpperCase());
+                            String account = t.length > 5 && !"-".equals(t[5]) ? t[5] : "";
+                            String phone = t.length > 6 && !"-".equals(t[6]) ? t[6] : "";
+                            EmployeeDirectory.EmployeeRecord r = employees.addEmployee(t[1], t[2], t[3], branch, account, phone);
+                            out.println("OK EMPLOYEE_ADDED " + r.employeeId());
+                        } catch (IllegalArgumentException ex) {
+                            out.println("ERR " + ex.getMessage().replace(' ', '_'));
+                        }
+                    }
+                    else if ("EMPLOYEE_DELETE".equals(cmd)) { // admin only: EMPLOYEE_DELETE <id>
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
+                        out.println(employees.deleteById(t[1]) ? "OK EMPLOYEE_DELETED" : "ERR NOT_FOUND");
+                    }
+                    else if ("POLICY_GET".equals(cmd)) { // admin only: -> OK POLICY <minLength> <requireDigit> <requireLetter>
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        out.println("OK POLICY " + PasswordPolicy.minimumLength() + " "
+                                + PasswordPolicy.requireDigit() + " " + PasswordPolicy.requireLetter());
+                    }
+                    else if ("POLICY_SET".equals(cmd)) { // admin only: POLICY_SET <minLength> <requireDigit> <requireLetter>
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
+                        int minLength;
+                        try { minLength = Integer.parseInt(t[1]); } catch (NumberFormatException ex) { out.println("ERR BAD_ARGS"); continue; }
+                        Boolean requireDigit = flag(t[2]), requireLetter = flag(t[3]);
+                        if (requireDigit == null || requireLetter == null) { out.println("ERR BAD_ARGS"); continue; }
+                        PasswordPolicy.configure(minLength, requireDigit, requireLetter);
+                        out.println("OK POLICY_SET");
+                    }
+                    else if ("SUBSCRIBE".equals(cmd)) { // admin only: SUBSCRIBE <fromSeq> [batchSize] -> EVT lines until STOP
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        long from;
+                        int batch;
+                        try {
+                            from = t.length >= 2 ? Long.parseLong(t[1]) : ChangeLog.lastSeq() + 1;
+                            batch = t.length >= 3 ? Integer.parseInt(t[2]) : 500;
+                        } catch (NumberFormatException ex) { out.println("ERR BAD_ARGS"); continue; }
+                        if (from < 1 || batch < 1 || batch > MAX_SUBSCRIBE_BATCH) { out.println("ERR BAD_ARGS"); continue; }
+                        if (!subscribe(in, out, from, batch)) return; // the subscriber went away
+                    }
+                    else {
+                        out.println("ERR UNKNOWN_CMD");
+                    }
+                } catch (Exception e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    if (claim != null) {
+                        String reply = replies.stop();
+                        // a command that failed may have changed something first: a retry must not run it again
+                        idempotency.complete(claim, failed ? "ERR FAILED" + System.lineSeparator() : reply);
+                    }
+                    CMD_TIME.getOrDefault(cmd, OTHER_TIME).recordSince(started);
                 }
             }
         } catch (Exception e) {
-            Loggers.system().severe("Client error: " + e);
+            if (socket.isClosed()) { // closed here: a LOGIN ... RESUME took the session over
+                Loggers.system().info("Session of " + loggedUsername + " resumed on another connection");
+            } else {
+                errors.increment();
+                Loggers.system().severe("Client error: " + e);
+            }
         } finally {
+            connectionsOpen.decrement();
             try { socket.close(); } catch (IOException ignored) {}
-            if (loggedUsername != null) auth.logout(loggedUsername);
+            if (loggedUsername != null) auth.logout(loggedUsername, socket);
+        }
+    }
+
+    // "true" or "false" in any case, else null (Boolean.parseBoolean would read a typo as false)
+    private static Boolean flag(String s) {
+        if ("true".equalsIgnoreCase(s)) return Boolean.TRUE;
+        if ("false".equalsIgnoreCase(s)) return Boolean.FALSE;
+        return null;
+    }
+
+    // between the PrintWriter and the socket: keeps a copy of what is written while recording (a REQ command's reply)
+    private static final class Recorder extends FilterWriter {
+        private StringBuilder copy;
+
+        Recorder(Writer out) { super(out); }
+
+        void record() { copy = new StringBuilder(); }
+
+        String stop() {
+            String s = copy == null ? "" : copy.toString();
+            copy = null;
+            return s;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (copy != null) copy.append((char) c);
+            out.write(c);
+        }
+
+        @Override
+        public void write(char[] b, int off, int len) throws IOException {
+            if (copy != null) copy.append(b, off, len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(String s, int off, int len) throws IOException {
+            if (copy != null) copy.append(s, off, off + len);
+            out.write(s, off, len);
+        }
+    }
+
+    /**
+     * Streams the change log from {@code from}: "OK SUBSCRIBED <lastSeq>", then
+     * per batch up to {@code batch} "EVT <seq>,<time>,<ENTITY>,<OP>,<key>,<data>"
+     * lines and "OK BATCH <seq of the last one>" (or "OK IDLE <seq>" every few
+     * quiet seconds). The client sends STOP to get "OK END" and its session back.
+     *
+     * A batch is written only after the previous one went out, so a slow
+     * client is held back by its own socket and the server keeps one batch for
+     * it. Returns false if the client disconnected.
+     */
+    private boolean subscribe(BufferedReader in, PrintWriter out, long from, int batch)
+            throws IOException, InterruptedException {
+        try (ChangeLog.Cursor cursor = ChangeLog.from(from)) {
+            out.println("OK SUBSCRIBED " + ChangeLog.lastSeq());
+            StringBuilder sb = new StringBuilder(8192);
+            String nl = System.lineSeparator();
+            long idleSince = System.nanoTime();
+            while (true) {
+                while (in.ready()) { // commands between batches
+                    String line = in.readLine();
+                    if (line == null) return false;
+                    String c = line.trim().toUpperCase();
+                    if ("STOP".equals(c) || "UNSUBSCRIBE".equals(c)) {
+                        out.println("OK END");
+                        return true;
+                    }
+                    if (!c.isEmpty()) out.println("ERR SUBSCRIBED");
+                }
+                List<ChangeLog.Change> changes = cursor.next(batch);
+                if (changes.isEmpty()) {
+                    if (System.nanoTime() - idleSince > TimeUnit.SECONDS.toNanos(5)) {
+                        out.println("OK IDLE " + (cursor.position() - 1)); // also finds a client that is gone
+                        idleSince = System.nanoTime();
+                    }
+                    ChangeLog.awaitBeyond(cursor.position() - 1, 200); // polls: other processes do not wake us
+                } else {
+                    sb.setLength(0);
+                    for (ChangeLog.Change c : changes) sb.append("EVT ").append(c.toLine()).append(nl);
+                    sb.append("OK BATCH ").append(changes.get(changes.size() - 1).seq()).append(nl);
+                    out.print(sb);
+                    out.flush(); // blocks while the client is not reading
+                    eventsSent.add(changes.size());
+                    idleSince = System.nanoTime();
+                }
+                if (out.checkError()) return false;
+            }
         }
     }
 }
@@ -0,0 +1,104 @@
+package server.net;
+
+import server.util.Metrics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replies to "REQ <id> <command>" requests, so a client that lost its
+ * connection before the reply can send the same request again and get the
+ * first reply back instead of the command running twice.
+ *
+ * Keyed by user and request id. At most -Didempotency.max.entries (default
+ * 10000) replies, least recently used first out; a reply not used for
+ * -Didempotency.ttl.seconds (default 600) is dropped. Requests still running
+ * are kept apart until they complete and are never dropped, so a retry can
+ * not start a second run. In memory only: a restarted server has forgotten
+ * every id.
+ */
+final class IdempotencyCache {
+    /** The caller runs the command and calls complete() if {@code reply} is null; otherwise it sends {@code reply}. */
+    record Claim(String key, String reply) {}
+
+    private static final class Entry {
+        final String command;
+        String reply; // null while the first request still runs
+        long usedAt;  // nanoTime; replies are in this order (access order)
+
+        Entry(String command, long now) {
+            this.command = command;
+            this.usedAt = now;
+        }
+    }
+
+    private final int maxEntries = Math.max(16, Integer.getInteger("idempotency.max.entries", 10_000));
+    private final long ttlNanos = TimeUnit.SECONDS.toNanos(Long.getLong("idempotency.ttl.seconds", 600));
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true) { // completed
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final Map<String, Entry> running = new HashMap<>(); // claimed, not yet completed; one per busy connection at most
+    private final LongAdder replayed = Metrics.counter("idempotency.replayed");
+
+    IdempotencyCache() {
+        Metrics.gauge("idempotency.entries", this::size);
+    }
+
+    /**
+     * Claims request {@code id} of {@code user} for {@code command}. If the
+     * same request is still running on another connection (the client gave
+     * up on it and reconnected), waits up to {@code waitMillis} for its reply.
+     */
+    synchronized Claim claim(String user, String id, String command, long waitMillis) throws InterruptedException {
+        String key = (user == null ? "-" : user) + " " + id;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (true) {
+            long now = System.nanoTime();
+            expire(now);
+            Entry e = running.get(key);
+            if (e == null) e = entries.get(key);
+            if (e == null) {
+                running.put(key, new Entry(command, now));
+                return new Claim(key, null);
+            }
+            e.usedAt = now;
+            if (!e.command.equals(command)) return new Claim(key, "ERR REQUEST_ID_REUSED" + System.lineSeparator());
+            if (e.reply != null) {
+                replayed.increment();
+                return new Claim(key, e.reply);
+            }
+            long left = deadline - now;
+            if (left <= 0) return new Claim(key, "ERR IN_PROGRESS" + System.lineSeparator());
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /** Stores the reply of a claimed request. */
+    synchronized void complete(Claim claim, String reply) {
+        Entry e = running.remove(claim.key());
+        if (e != null) {
+            e.reply = reply;
+            e.usedAt = System.nanoTime();
+            entries.put(claim.key(), e);
+        }
+        notifyAll();
+    }
+
+    synchronized int size() { return entries.size() + running.size(); }
+
+    // the least recently used entries come first, so stop at the first one still fresh
+    private void expire(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (now - e.usedAt < ttlNanos) return;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package server.net;
+
+import server.domain.customers.Customer;
+import server.domain.employees.AuthService;
+import server.domain.employees.EmployeeDirectory;
+import server.domain.invantory.Product;
+import server.shared.Branch;
+import server.util.ChangeLog;
+import server.util.LatencyHistogram;
+import server.util.Loggers;
+import server.util.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One client of a ReplicaServer. LIST, CUSTOMER_LIST, STOCK_WHERE and
+ * BRANCHES are answered from the ReplicaState, with the same lines as
+ * ClientHandler; LOGIN is checked here against data/employees.txt.
+ *
+ * Every other command goes to the primary StoreServer (-Dreplica.primary)
+ * over a connection of this client's own, logged in with the client's LOGIN,
+ * and the primary's reply is passed back. Afterwards the client waits (up to
+ * -Dreplica.catchup.millis, default 1000) until this replica has applied the
+ * change, so it reads its own writes. Without a primary they get ERR READ_ONLY.
+ * A "REQ <id>" prefix goes to the primary with the command, which keeps the
+ * request ids (see IdempotencyCache).
+ */
+public class ReplicaHandler implements Runnable {
+    private static final Map<String, LatencyHistogram> CMD_TIME = Metrics.histograms("replica.cmd.", List.of("LOGIN",
+            "LOGOUT", "LIST", "CUSTOMER_LIST", "STOCK_WHERE", "BRANCHES", "STATS", "FORWARD"));
+    private static final LatencyHistogram OTHER_TIME = Metrics.histogram("replica.cmd.OTHER");
+    private static final Set<String> LOCAL = Set.of("LIST", "CUSTOMER_LIST", "STOCK_WHERE", "BRANCHES");
+    private static final long CATCHUP_MILLIS = Long.getLong("replica.catchup.millis", 1000);
+    private static final LongAdder forwarded = Metrics.counter("replica.forwarded");
+    private static final LongAdder rejected = Metrics.counter("replica.rejected");
+    private static final LongAdder errors = Metrics.counter("store.errors");
+
+    private final Socket socket;
+    private final AuthService auth;
+    private final EmployeeDirectory employees;
+    private final ReplicaState state;
+    private final InetSocketAddress primary; // null: writes are rejected
+
+    private String loggedUsername = null;
+    private boolean loggedAsAdmin = false;
+    private String loginLine; // replayed on the primary connection
+
+    private Socket upstream;
+    private BufferedReader upIn;
+    private PrintWriter upOut;
+
+    public ReplicaHandler(Socket socket, AuthService auth, EmployeeDirectory employees, ReplicaState state,
+                          InetSocketAddress primary) {
+        this.socket = socket;
+        this.auth = auth;
+        this.employees = employees;
+        this.state = state;
+        this.primary = primary;
+    }
+
+    @Override
+    public void run() {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
+
+            socket.setKeepAlive(true); // a terminal that vanished without closing is found, and its thread freed
+            out.println("OK WELCOME");
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] t = line.trim().split(" ");
+                if (t.length >= 3 && "REQ".equalsIgnoreCase(t[0]) && LOCAL.contains(t[2].toUpperCase())) {
+                    t = Arrays.copyOfRange(t, 2, t.length); // a read needs no request id; writes keep it for the primary
+                }
+                String cmd = t[0].toUpperCase();
+                long started = System.nanoTime();
+                try {
+                    // LOGIN <username> <password> <role: employee|admin> [RESUME] -> OK LOGIN [<ROLE> <BRANCH>]
+                    // RESUME takes over the user's session from a connection that dropped
+                    if ("LOGIN".equals(cmd)) {
+                        if (t.length < 4) { out.println("ERR BAD_ARGS"); continue; }
+                        boolean resume = t.length > 4 && "RESUME".equalsIgnoreCase(t[4]);
+                        AuthService.LoginResult result = "admin".equalsIgnoreCase(t[3])
+                                ? auth.loginAdmin(t[1], t[2], socket, resume)
+                                : auth.loginEmployee(t[1], t[2], socket, resume);
+                        if (result == AuthService.LoginResult.SUCCESS) {
+                            loggedUsername = t[1];
+                            loggedAsAdmin = "admin".equalsIgnoreCase(t[3]);
+                            loginLine = line.trim();
+                            closeUpstream(); // the next forwarded command logs in as this user
+                            out.println(loggedAsAdmin ? "OK LOGIN" : employees.findByUsername(t[1])
+                                    .map(r -> "OK LOGIN " + r.role() + " " + r.branch().name()).orElse("OK LOGIN"));
+                        } else if (result == AuthService.LoginResult.ALREADY_CONNECTED) {
+                            out.println("ERR LOGIN ALREADY_CONNECTED");
+                        } else {
+                            out.println("ERR LOGIN INVALID_CREDENTIALS");
+                        }
+                    }
+                    else if ("LOGOUT".equals(cmd)) {
+                        out.println("OK BYE");
+                        return;
+                    }
+                    else if ("LIST".equals(cmd)) { // LIST <branch>
+                        if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
+                        Branch branch = Branch.valueOf(t[1].toUpperCase());
+                        StringBuilder sb = new StringBuilder(4096);
+                        for (Product p : state.products(branch)) {
+                            sb.append("ITEM ").append(p.sku()).append(',').append(p.category()).append(',')
+                                    .append(p.branch()).append(',').append(p.quantity()).append(',').append(p.price())
+                                    .append(System.lineSeparator());
+                        }
+                        out.print(sb);
+                        out.println("OK END");
+                    }
+                    else if ("CUSTOMER_LIST".equals(cmd)) { // returns CUST lines
+                        StringBuilder sb = new StringBuilder(4096);
+                        for (Customer c : state.customers()) {
+                            sb.append("CUST ").append(c.id()).append(',').append(c.fullName()).append(',')
+                                    .append(c.phone()).append(',').append(c.type().code()).append(System.lineSeparator());
+                        }
+                        out.print(sb);
+                        out.println("OK END");
+                    }
+                    else if ("STOCK_WHERE".equals(cmd)) { // STOCK_WHERE <sku> -> STOCK <branch> <quantity> <price> lines
+                        if (t.length < 2) { out.println("ERR BAD_ARGS"); continue; }
+                        List<Product> where = state.where(t[1]);
+                        if (where.isEmpty()) { out.println("ERR SKU_NOT_FOUND"); continue; }
+                        for (Product p : where) out.println("STOCK " + p.branch() + " " + p.quantity() + " " + p.price());
+                        out.println("OK END");
+                    }
+                    else if ("BRANCHES".equals(cmd)) { // BRANCHES -> OK BRANCHES <name>...
+                        StringBuilder sb = new StringBuilder("OK BRANCHES");
+                        for (Branch b : Branch.values()) sb.append(' ').append(b.name());
+                        out.println(sb);
+                    }
+                    else if ("STATS".equals(cmd)) { // admin only: this replica's metrics
+                        if (!loggedAsAdmin) { out.println("ERR NOT_ALLOWED"); continue; }
+                        for (String m : Metrics.render()) out.println("STAT " + m);
+                        out.println("OK END");
+                    }
+                    else if (primary == null || "SUBSCRIBE".equals(cmd)) { // a stream is not relayed; subscribe to the primary
+                        rejected.increment();
+                        out.println("ERR READ_ONLY");
+                    }
+                    else {
+                        cmd = "FORWARD";
+                        forward(line.trim(), out);
+                    }
+                } catch (IllegalArgumentException ex) { // unknown branch
+                    out.println("ERR BAD_ARGS");
+                } finally {
+                    CMD_TIME.getOrDefault(cmd, OTHER_TIME).recordSince(started);
+                }
+            }
+        } catch (Exception e) {
+            if (socket.isClosed()) { // closed here: a LOGIN ... RESUME took the session over
+                Loggers.system().info("Session of " + loggedUsername + " resumed on another connection");
+            } else {
+                errors.increment();
+                Loggers.system().severe("Replica client error: " + e);
+            }
+        } finally {
+            closeUpstream();
+            try { socket.close(); } catch (IOException ignored) {}
+            if (loggedUsername != null) auth.logout(loggedUsername, socket);
+        }
+    }
+
+    // sends one command to the primary and relays its reply, up to the first OK or ERR line
+    private void forward(String line, PrintWriter out) throws InterruptedException {
+        try {
+            if (upstream == null && !connect(out)) return;
+            upOut.println(line);
+            String r;
+            while ((r = upIn.readLine()) != null) {
+                out.println(r);
+                if (r.startsWith("OK") || r.startsWith("ERR")) break;
+            }
+            if (r == null) throw new IOException("primary closed the connection");
+            forwarded.increment();
+        } catch (IOException e) {
+            Loggers.system().warning("Replica could not forward to " + primary + ": " + e.getMessage());
+            closeUpstream();
+            out.println("ERR PRIMARY_UNAVAILABLE");
+            return;
+        }
+        // the primary logs a change before it replies, so the log already holds this write
+        state.awaitApplied(ChangeLog.lastSeq(), CATCHUP_MILLIS);
+    }
+
+    private boolean connect(PrintWriter out) throws IOException {
+        upstream = new Socket();
+        upstream.connect(primary, 2000);
+        upstream.setTcpNoDelay(true);
+        upIn = new BufferedReader(new InputStreamReader(upstream.getInputStream()));
+        upOut = new PrintWriter(new OutputStreamWriter(upstream.getOutputStream()), true);
+        upIn.readLine(); // OK WELCOME
+        if (loginLine == null) return true;
+        upOut.println(loginLine);
+        String r = upIn.readLine();
+        if (r != null && r.startsWith("OK")) return true;
+        closeUpstream();
+        out.println(r == null ? "ERR PRIMARY_UNAVAILABLE" : r); // e.g. ERR LOGIN ALREADY_CONNECTED on the primary
+        return false;
+    }
+
+    private void closeUpstream() {
+        if (upstream == null) return;
+        try { upstream.close(); } catch (IOException ignored) {}
+        upstream = null;
+        upIn = null;
+        upOut = null;
+    }
+}
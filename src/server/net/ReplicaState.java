@@ -0,0 +1,184 @@
+package server.net;
+
+import server.domain.customers.Customer;
+import server.domain.customers.CustomerService;
+import server.domain.customers.CustomerType;
+import server.domain.invantory.InventoryService;
+import server.domain.invantory.Product;
+import server.shared.Branch;
+import server.util.ChangeLog;
+import server.util.Loggers;
+import server.util.Metrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a ReplicaServer serves: the products of every branch and the
+ * customers, read from data/ once and then kept current by applying
+ * data/changes.log (see ChangeLog), whose events carry each entity's full
+ * state after the change.
+ *
+ * One thread applies the log; after each batch it publishes a new immutable
+ * View, so reads take no lock and always see the state as of one seq.
+ */
+public final class ReplicaState {
+    /** The published state, as of {@code seq}. */
+    private record View(long seq, List<List<Product>> products, List<Customer> customers) {}
+
+    private static final int BATCH = 1_000;
+    private static final long POLL_MILLIS = Long.getLong("replica.poll.millis", 50);
+
+    // only the tailer thread touches these
+    private final List<Map<String, Product>> products = new ArrayList<>(); // by branch ordinal: sku -> product, in file order
+    private final Map<String, Customer> customers = new TreeMap<>();        // by id, as CustomerService lists them
+    private long seq;
+    private final BitSet changedBranches = new BitSet();
+    private boolean customersChanged;
+
+    private volatile View view;
+    private final Object poll = new Object(); // the tailer sleeps on it between polls; a waiting reader wakes it
+    private final LongAdder applied = Metrics.counter("replica.applied");
+
+    private ReplicaState(long seq) { this.seq = seq; }
+
+    /**
+     * Reads products and customers from the data files. The log position is
+     * taken first, so changes made while the files are read are applied again
+     * afterwards; that is harmless, as each event carries the whole entity.
+     */
+    public static ReplicaState load(Path productsDir) {
+        ReplicaState s = new ReplicaState(ChangeLog.lastSeq());
+        for (Branch b : Branch.values()) {
+            Map<String, Product> bySku = new LinkedHashMap<>();
+            for (Product p : InventoryService.readBranch(productsDir, b)) bySku.put(p.sku(), p);
+            s.products.add(bySku);
+        }
+        for (Customer c : new CustomerService().listAll()) s.customers.put(c.id(), c);
+        s.changedBranches.set(0, s.products.size());
+        s.customersChanged = true;
+        s.publish();
+        Metrics.gauge("replica.applied_seq", s::appliedSeq);
+        Metrics.gauge("replica.lag", () -> Math.max(0, ChangeLog.lastSeq() - s.appliedSeq()));
+        Loggers.system().info("Replica loaded " + s.customers.size() + " customers and the products of "
+                + s.products.size() + " branches, following changes after seq " + s.seq);
+        return s;
+    }
+
+    /** Starts applying the change log on a daemon thread. */
+    public void follow() {
+        Thread t = new Thread(this::tail, "replica-tail");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public List<Product> products(Branch branch) { return view.products().get(branch.ordinal()); }
+
+    public List<Customer> customers() { return view.customers(); }
+
+    /** The SKU's row in every branch that has it, in branch order. */
+    public List<Product> where(String sku) {
+        List<Product> out = new ArrayList<>();
+        for (List<Product> branch : view.products()) {
+            for (Product p : branch) if (p.sku().equals(sku)) out.add(p);
+        }
+        return out;
+    }
+
+    public long appliedSeq() { return view.seq(); }
+
+    /** Waits up to {@code millis} until changes up to {@code seq} are visible; false on timeout. */
+    public boolean awaitApplied(long seq, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        if (view.seq() < seq) synchronized (poll) { poll.notifyAll(); } // read the log now, not at the next poll
+        synchronized (this) {
+            while (view.seq() < seq) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+        }
+        return true;
+    }
+
+    // ---------- applying the log ----------
+
+    private void tail() {
+        while (true) {
+            try (ChangeLog.Cursor cursor = ChangeLog.from(seq + 1)) {
+                while (true) {
+                    List<ChangeLog.Change> batch = cursor.next(BATCH);
+                    if (batch.isEmpty()) {
+                        synchronized (poll) { poll.wait(POLL_MILLIS); }
+                        continue;
+                    }
+                    for (ChangeLog.Change c : batch) {
+                        try {
+                            apply(c);
+                        } catch (IllegalArgumentException e) { // also NumberFormatException
+                            Loggers.system().warning("Replica skipped malformed change " + c.toLine());
+                        }
+                    }
+                    seq = batch.get(batch.size() - 1).seq();
+                    applied.add(batch.size());
+                    publish();
+                }
+            } catch (IOException | RuntimeException e) {
+                Loggers.system().warning("Replica stopped reading changes after seq " + seq + ": " + e.getMessage() + "; retrying");
+                try { Thread.sleep(1000); } catch (InterruptedException ie) { return; }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void apply(ChangeLog.Change c) {
+        switch (c.entity()) {
+            case "PRODUCT" -> { // key BRANCH/sku, data category,branch,quantity,price
+                int slash = c.key().indexOf('/');
+                String[] t = c.data().split(",", -1);
+                if (slash < 0 || t.length < 4) throw new IllegalArgumentException(c.key());
+                Branch branch = Branch.valueOf(c.key().substring(0, slash));
+                String sku = c.key().substring(slash + 1);
+                Map<String, Product> bySku = products.get(branch.ordinal());
+                if ("REMOVED".equals(c.op())) bySku.remove(sku);
+                else bySku.put(sku, new Product(sku, t[0], branch, Integer.parseInt(t[2]), new BigDecimal(t[3])));
+                changedBranches.set(branch.ordinal());
+            }
+            case "CUSTOMER" -> { // ADDED/UPDATED: data fullName,phone,type; PURCHASED only moves the count
+                if (!"ADDED".equals(c.op()) && !"UPDATED".equals(c.op())) return;
+                String[] t = c.data().split(",", -1);
+                if (t.length < 3) throw new IllegalArgumentException(c.key());
+                customers.put(c.key(), new Customer(c.key(), t[0], t[1], CustomerType.fromCode(t[2])));
+                customersChanged = true;
+            }
+            default -> { } // employees (read from their file by AuthService) and sales are not served here
+        }
+    }
+
+    // copies only what changed since the last view; the rest is shared with it
+    private void publish() {
+        View last = view;
+        List<List<Product>> p = new ArrayList<>(products.size());
+        for (int b = 0; b < products.size(); b++) {
+            p.add(last == null || changedBranches.get(b) ? List.copyOf(products.get(b).values()) : last.products().get(b));
+        }
+        View next = new View(seq, Collections.unmodifiableList(p),
+                last == null || customersChanged ? List.copyOf(customers.values()) : last.customers());
+        changedBranches.clear();
+        customersChanged = false;
+        synchronized (this) {
+            view = next;
+            notifyAll();
+        }
+    }
+}
@@ -1,5 +1,88 @@
 package server.shared;
 
-public enum Branch {
-    HOLON, TEL_AVIV, RISHON
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A store branch. The set of branches is data, not code:
+ *
+ * File: data/branches.txt (-Dbranches.file), one name per line, "#" comments.
+ * Without the file the built-in HOLON, TEL_AVIV, RISHON are used.
+ *
+ * Keeps the enum-like API (values, valueOf, name, ordinal). Ordinals are the
+ * line order and are stored in binary files (products.bin, sales columns), so
+ * new branches must be appended at the end and existing lines never reordered.
+ * At most MAX branches, because per-branch sets are kept as int bitmasks.
+ */
+public final class Branch implements Comparable<Branch> {
+    public static final int MAX = 32;
+    private static final List<String> BUILT_IN = Arrays.asList("HOLON", "TEL_AVIV", "RISHON");
+
+    private static final Branch[] ALL;
+    private static final Map<String, Branch> BY_NAME = new HashMap<>();
+
+    static {
+        List<String> names = load(Path.of(System.getProperty("branches.file", "data/branches.txt")));
+        ALL = new Branch[names.size()];
+        for (int i = 0; i < ALL.length; i++) {
+            ALL[i] = new Branch(names.get(i), i);
+            BY_NAME.put(ALL[i].name, ALL[i]);
+        }
+    }
+
+    private final String name;
+    private final int ordinal;
+
+    private Branch(String name, int ordinal) {
+        this.name = name;
+        this.ordinal = ordinal;
+    }
+
+    public String name() { return name; }
+    public int ordinal() { return ordinal; }
+
+    public static Branch[] values() { return ALL.clone(); }
+
+    public static int count() { return ALL.length; }
+
+    /** Same contract as Enum.valueOf: exact name, IllegalArgumentException if unknown. */
+    public static Branch valueOf(String name) {
+        if (name == null) throw new NullPointerException("Name is null");
+        Branch b = BY_NAME.get(name);
+        if (b == null) throw new IllegalArgumentException("No branch " + name);
+        return b;
+    }
+
+    @Override
+    public int compareTo(Branch o) { return Integer.compare(ordinal, o.ordinal); }
+
+    @Override
+    public String toString() { return name; }
+
+    private static List<String> load(Path file) {
+        if (Files.notExists(file)) return BUILT_IN;
+        List<String> names = new ArrayList<>();
+        try {
+            for (String raw : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String s = raw.trim().toUpperCase();
+                if (s.isEmpty() || s.startsWith("#")) continue;
+                if (!s.matches("[A-Z][A-Z0-9_]*")) throw new IllegalStateException("Bad branch name in " + file + ": " + raw);
+                if (names.contains(s)) throw new IllegalStateException("Duplicate branch in " + file + ": " + s);
+                names.add(s);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + file + ": " + e.getMessage(), e);
+        }
+        if (names.isEmpty()) throw new IllegalStateException("No branches in " + file);
+        if (names.size() > MAX) throw new IllegalStateException("More than " + MAX + " branches in " + file);
+        return Collections.unmodifiableList(names);
+    }
 }
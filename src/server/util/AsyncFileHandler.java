@@ -0,0 +1,141 @@
+package server.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * java.util.logging handler that hands records to one background writer thread.
+ *
+ * Callers only enqueue; formatting and file I/O happen on the writer, which
+ * drains the queue in batches. Each batch is written while holding an OS file
+ * lock on a fixed lock file (logs/.<name>.lock), so several processes
+ * (StoreServer, ChatServer, clients) can share one log safely. Rotation happens
+ * under the same lock: when the log exceeds maxBytes it is shifted to
+ * <name>.1 ... <name>.<generations>.
+ */
+public class AsyncFileHandler extends Handler {
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int BATCH = 512;
+
+    private final Path file;
+    private final long maxBytes;
+    private final int generations;
+    private final FileChannel lockChannel;
+    private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    public AsyncFileHandler(Path file, long maxBytes, int generations) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.generations = generations;
+        Files.createDirectories(file.getParent());
+        this.lockChannel = FileChannel.open(file.resolveSibling("." + file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        setFormatter(new SimpleFormatter());
+
+        writer = new Thread(this::drain, "log-writer-" + file.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) return;
+        // caller inference must happen on the logging thread, not the writer
+        record.getSourceClassName();
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush() {
+        // writer flushes every batch; nothing buffered on the caller side
+    }
+
+    /** Stops accepting records, drains what is queued and releases the lock file. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try { lockChannel.close(); } catch (IOException ignored) {}
+    }
+
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<>(BATCH);
+        StringBuilder text = new StringBuilder(16 * 1024);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                LogRecord first = queue.poll(500, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+
+                text.setLength(0);
+                for (LogRecord r : batch) {
+                    try {
+                        text.append(getFormatter().format(r));
+                    } catch (RuntimeException e) {
+                        reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                    }
+                }
+                write(text);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(CharSequence text) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+        FileLock lock = FileDatabase.lock(lockChannel, false);
+        try {
+            if (Files.exists(file) && Files.size(file) >= maxBytes) rotate();
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (bytes.hasRemaining()) out.write(bytes);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    // caller holds the file lock
+    private void rotate() throws IOException {
+        Files.deleteIfExists(generation(generations));
+        for (int i = generations - 1; i >= 1; i--) {
+            Path from = generation(i);
+            if (Files.exists(from)) Files.move(from, generation(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, generation(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path generation(int n) { return file.resolveSibling(file.getFileName() + "." + n); }
+}
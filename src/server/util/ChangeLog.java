@@ -0,0 +1,372 @@
+package server.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Change data capture: every committed mutation of products, customers,
+ * employees and sales as one line in data/changes.log (-Dchanges.file):
+ *
+ *   seq,timeMillis,ENTITY,OP,key,data
+ *
+ * seq numbers the whole log from 1 without gaps or repeats, also across
+ * StoreServer processes sharing data/ (it is taken under a lock file).
+ * data is the entity's state after the change in its own file's format, so
+ * it may contain commas; it is the rest of the line.
+ *
+ * A change is appended as part of the write it describes, before the lock of
+ * that write (the file lock of FileDatabase, which other processes and the
+ * StorageDaemon take too, or the store's own lock) is released, so the log
+ * has the changes to one key in the order they were written. Sales, which
+ * only ever add ledger lines, append right after theirs. append() returns
+ * once the line is on disk. Appends from several threads are written and
+ * fsynced together (group commit): one thread writes everything queued, the
+ * rest wait for it.
+ *
+ * Readers (SUBSCRIBE) open a Cursor at a sequence number and read forward;
+ * the log is never rewritten, so a cursor only needs its byte offset.
+ */
+public final class ChangeLog {
+    /** One change; seq is 0 until it is written. */
+    public static record Change(long seq, long timeMillis, String entity, String op, String key, String data) {
+        public String toLine() {
+            return seq + "," + timeMillis + "," + entity + "," + op + "," + key + "," + (data == null ? "" : data);
+        }
+
+        /** The change on a log line, or null if the line is not one. */
+        public static Change parse(String line) {
+            int c1 = line.indexOf(','), c2 = line.indexOf(',', c1 + 1), c3 = line.indexOf(',', c2 + 1),
+                c4 = line.indexOf(',', c3 + 1), c5 = line.indexOf(',', c4 + 1);
+            if (c1 <= 0 || c2 < 0 || c3 < 0 || c4 < 0 || c5 < 0) return null;
+            try {
+                return new Change(Long.parseLong(line, 0, c1, 10), Long.parseLong(line, c1 + 1, c2, 10),
+                        line.substring(c2 + 1, c3), line.substring(c3 + 1, c4), line.substring(c4 + 1, c5),
+                        line.substring(c5 + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final ChangeLog LOG = new ChangeLog(Path.of(System.getProperty("changes.file", "data/changes.log")));
+
+    private final Path path;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private List<Pending> queue = new ArrayList<>();
+    private boolean writing;
+    private volatile long lastSeq = -1; // highest seq written, as of our last write; -1 before the first look
+    private long knownSize = -1;        // file size after our last write; another size means another process wrote
+    private FileChannel channel;
+    private FileChannel lockFile; // a sidecar, as in FileDatabase: on Windows a lock on the log itself would block its readers
+    private final LongAdder appended = Metrics.counter("changes.appended");
+    private final LatencyHistogram commitTime = Metrics.histogram("changes.commit");
+
+    private static final class Pending {
+        final Change change;
+        long seq;
+        boolean done;
+
+        Pending(Change change) { this.change = change; }
+    }
+
+    private ChangeLog(Path path) {
+        this.path = path;
+        Metrics.gauge("changes.last_seq", this::head); // reads the file when another process wrote last
+    }
+
+    /** Records one change now; returns its seq, or -1 if it could not be written (logged). */
+    public static long append(String entity, String op, String key, String data) {
+        List<Long> seqs = LOG.write(List.of(new Change(0, System.currentTimeMillis(), entity, op, key, data)));
+        return seqs.get(0);
+    }
+
+    /** Records several changes as consecutive seqs in one write; returns their seqs. */
+    public static List<Long> append(List<Change> changes) {
+        return changes.isEmpty() ? List.of() : LOG.write(changes);
+    }
+
+    /** The change to append for {@code entity}; timestamped now. */
+    public static Change change(String entity, String op, String key, String data) {
+        return new Change(0, System.currentTimeMillis(), entity, op, key, data);
+    }
+
+    /** Highest seq in the log (0 if empty). */
+    public static long lastSeq() {
+        return LOG.head();
+    }
+
+    /**
+     * Waits up to {@code millis} for this process to write beyond {@code seq};
+     * other processes' writes are only seen by reading, so callers poll.
+     */
+    public static void awaitBeyond(long seq, long millis) throws InterruptedException {
+        LOG.await(seq, millis);
+    }
+
+    /** A reader positioned at the first change with seq >= {@code fromSeq}. */
+    public static Cursor from(long fromSeq) throws IOException {
+        return new Cursor(LOG.path, fromSeq);
+    }
+
+    // ---------- writing ----------
+
+    private List<Long> write(List<Change> changes) {
+        List<Pending> mine = new ArrayList<>(changes.size());
+        for (Change c : changes) mine.add(new Pending(c));
+        List<Pending> batch;
+        lock.lock();
+        try {
+            queue.addAll(mine);
+            Pending last = mine.get(mine.size() - 1);
+            while (writing && !last.done) written.awaitUninterruptibly();
+            if (last.done) return seqs(mine);
+            writing = true; // we write everything queued so far, ours included
+            batch = queue;
+            queue = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            commit(batch);
+        } finally {
+            lock.lock();
+            try {
+                for (Pending p : batch) p.done = true;
+                writing = false;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return seqs(mine);
+    }
+
+    private static List<Long> seqs(List<Pending> pending) {
+        List<Long> out = new ArrayList<>(pending.size());
+        for (Pending p : pending) out.add(p.seq);
+        return out;
+    }
+
+    // only the thread that set writing gets here
+    private void commit(List<Pending> batch) {
+        long t0 = System.nanoTime();
+        try {
+            FileChannel ch = channel();
+            FileLock held = FileDatabase.lock(lockFile, false); // polls: see there
+            try {
+                long size = ch.size();
+                if (size != knownSize) size = recover(ch, size); // first write, or another process appended
+                long seq = lastSeq;
+                StringBuilder sb = new StringBuilder(batch.size() * 96);
+                for (Pending p : batch) {
+                    p.seq = ++seq;
+                    Change c = p.change;
+                    sb.append(new Change(p.seq, c.timeMillis(), c.entity(), c.op(), c.key(), c.data()).toLine()).append('\n');
+                }
+                ByteBuffer b = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                long at = size;
+                while (b.hasRemaining()) at += ch.write(b, at);
+                if (FileDatabase.FSYNC) ch.force(false);
+                knownSize = at;
+                lastSeq = seq;
+            } finally {
+                held.release();
+            }
+            appended.add(batch.size());
+        } catch (IOException | RuntimeException e) {
+            for (Pending p : batch) p.seq = -1;
+            knownSize = -1;
+            Loggers.system().severe("Changes not written to " + path + " (" + batch.size() + "): " + e.getMessage());
+        } finally {
+            commitTime.recordSince(t0);
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            lockFile = FileChannel.open(path.toAbsolutePath().resolveSibling("." + path.getFileName() + ".lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    /** Reads lastSeq from the end of the file, cutting off a torn last line first; returns the size. */
+    private long recover(FileChannel ch, long size) throws IOException {
+        long end = lastLineEnd(ch, size);
+        if (end < size) {
+            Loggers.system().warning("Cut an incomplete last change off " + path);
+            ch.truncate(end);
+        }
+        lastSeq = lastSeqBefore(ch, end);
+        return end;
+    }
+
+    // ---------- reading ----------
+
+    private long head() {
+        long seq = lastSeq;
+        if (seq >= 0) {
+            lock.lock();
+            try {
+                if (knownSize >= 0 && Files.size(path) == knownSize) return seq;
+            } catch (IOException ignored) {
+                // fall through and read the file
+            } finally {
+                lock.unlock();
+            }
+        }
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return lastSeqBefore(ch, lastLineEnd(ch, ch.size()));
+        } catch (IOException e) {
+            return Math.max(0, seq);
+        }
+    }
+
+    private void await(long seq, long millis) throws InterruptedException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            while (lastSeq <= seq) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return;
+                written.awaitNanos(left);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // just after the last '\n' before size (0 if none)
+    private static long lastLineEnd(FileChannel ch, long size) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4096);
+        for (long to = size; to > 0; ) {
+            long from = Math.max(0, to - b.capacity());
+            b.clear().limit((int) (to - from));
+            while (b.hasRemaining() && ch.read(b, from + b.position()) > 0) { }
+            for (int i = b.position() - 1; i >= 0; i--) if (b.get(i) == '\n') return from + i + 1;
+            to = from;
+        }
+        return 0;
+    }
+
+    // seq of the last well-formed line ending at or before end (0 if none)
+    private static long lastSeqBefore(FileChannel ch, long end) throws IOException {
+        while (end > 0) {
+            long start = lastLineEnd(ch, end - 1);
+            Change c = Change.parse(readLine(ch, start, end));
+            if (c != null) return c.seq();
+            end = start;
+        }
+        return 0;
+    }
+
+    private static String readLine(FileChannel ch, long start, long end) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) (end - start));
+        while (b.hasRemaining() && ch.read(b, start + b.position()) > 0) { }
+        String s = new String(b.array(), 0, b.position(), StandardCharsets.UTF_8);
+        return s.endsWith("\r\n") ? s.substring(0, s.length() - 2) : s.endsWith("\n") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * Reads the log forward from a sequence number, a bounded batch at a time,
+     * so a slow subscriber holds nothing but its own position.
+     */
+    public static final class Cursor implements Closeable {
+        private final FileChannel ch;
+        private long offset; // start of the next line to read
+        private long next;   // lowest seq still wanted
+        private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+        private Cursor(Path path, long fromSeq) throws IOException {
+            if (Files.notExists(path)) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                try {
+                    Files.createFile(path);
+                } catch (FileAlreadyExistsException ignored) {
+                    // another process created it first
+                }
+            }
+            this.ch = FileChannel.open(path, StandardOpenOption.READ);
+            this.next = Math.max(1, fromSeq);
+            this.offset = seek(next);
+        }
+
+        /** Up to {@code max} changes after the last one returned; empty if there are none yet. */
+        public List<Change> next(int max) throws IOException {
+            List<Change> out = new ArrayList<>();
+            long size = ch.size();
+            if (offset > size) offset = seek(next); // cannot happen unless the file was replaced
+            while (out.size() < max && offset < size) {
+                buf.clear();
+                int n = ch.read(buf, offset);
+                if (n <= 0) break;
+                int lineStart = 0;
+                for (int i = 0; i < n && out.size() < max; i++) {
+                    if (buf.get(i) != '\n') continue;
+                    int end = i > lineStart && buf.get(i - 1) == '\r' ? i - 1 : i;
+                    Change c = Change.parse(new String(buf.array(), lineStart, end - lineStart, StandardCharsets.UTF_8));
+                    if (c != null && c.seq() >= next) {
+                        out.add(c);
+                        next = c.seq() + 1;
+                    }
+                    lineStart = i + 1;
+                }
+                if (lineStart == 0) {
+                    if (n == buf.capacity()) throw new IOException("Change longer than " + buf.capacity() + " bytes at " + offset);
+                    break; // only a line still being written
+                }
+                offset += lineStart;
+            }
+            return out;
+        }
+
+        /** Seq the next change returned will have at least. */
+        public long position() { return next; }
+
+        // offset of the first line with seq >= want: binary search, seqs grow with the offset
+        private long seek(long want) throws IOException {
+            long lo = 0, hi = lastLineEnd(ch, ch.size());
+            while (lo < hi) {
+                long mid = lo + (hi - lo) / 2;
+                long start = lastLineEnd(ch, mid); // start of the line holding byte mid
+                long end = lineEnd(start, hi);
+                Change c = Change.parse(readLine(ch, start, end));
+                if (c != null && c.seq() >= want) hi = start;
+                else lo = end;
+            }
+            return lo;
+        }
+
+        private long lineEnd(long start, long limit) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(256);
+            for (long p = start; p < limit; ) {
+                b.clear().limit((int) Math.min(b.capacity(), limit - p));
+                int n = ch.read(b, p);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) if (b.get(i) == '\n') return p + i + 1;
+                p += n;
+            }
+            return limit;
+        }
+
+        @Override
+        public void close() throws IOException { ch.close(); }
+    }
+}
@@ -0,0 +1,424 @@
+package server.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Indexed, searchable chat history.
+ *
+ * Messages are appended to segment files under logs/chat/history:
+ *   segment-000001.log   one record per line: epochMillis \t conversationId \t sender \t content
+ *   segment-000001.idx   index written when the segment is sealed
+ *
+ * Every segment keeps posting lists (byte offsets of records) by conversation id,
+ * by sender and by content term, its min/max timestamp and a sparse time index
+ * (every SPARSE_EVERY-th record). Queries only open the segments and offsets the
+ * indexes point to, so looking up one conversation never scans the whole history.
+ */
+public class ChatHistory {
+    private static final Logger logger = Loggers.chat();
+
+    private static final long SEGMENT_MAX_BYTES = 4L * 1024 * 1024;
+    private static final int SPARSE_EVERY = 128;
+    private static final int INDEX_MAGIC = 0x43484958; // "CHIX"
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** One stored chat message. */
+    public static record Entry(long timestamp, String conversationId, String sender, String content) {
+        public String formattedTime() {
+            return LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(timestamp), ZoneId.systemDefault())
+                    .format(TIMESTAMP_FORMAT);
+        }
+    }
+
+    /** Search filter: all non-null parts must match (terms are AND-ed). */
+    public static record Query(List<String> terms, String sender, long fromMillis, long toMillis) {
+        public static Query parse(String text) {
+            List<String> terms = new ArrayList<>();
+            String sender = null;
+            long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+            for (String tok : text.trim().split("\\s+")) {
+                if (tok.isEmpty()) continue;
+                String lower = tok.toLowerCase();
+                if (lower.startsWith("from:")) sender = tok.substring(5);
+                else if (lower.startsWith("since:")) from = startOfDay(tok.substring(6));
+                else if (lower.startsWith("until:")) to = startOfDay(tok.substring(6)) + 24L * 3600 * 1000 - 1;
+                else terms.addAll(tokenize(tok));
+            }
+            return new Query(terms, sender, from, to);
+        }
+
+        private static long startOfDay(String isoDate) {
+            return LocalDate.parse(isoDate).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    // ========= per-segment index =========
+    private static final class Segment {
+        final int id;
+        final Path logFile;
+        final Path indexFile;
+        long minTs = Long.MAX_VALUE, maxTs = Long.MIN_VALUE;
+        int records = 0;
+        final LongList sparseTs = new LongList();
+        final LongList sparseOffsets = new LongList();
+        final Map<String, LongList> byConversation = new HashMap<>();
+        final Map<String, LongList> bySender = new HashMap<>();
+        final Map<String, LongList> byTerm = new HashMap<>();
+
+        Segment(Path dir, int id) {
+            this.id = id;
+            this.logFile = dir.resolve(String.format("segment-%06d.log", id));
+            this.indexFile = dir.resolve(String.format("segment-%06d.idx", id));
+        }
+
+        void add(long offset, long ts, String conversationId, String sender, String content) {
+            if (records % SPARSE_EVERY == 0) { sparseTs.add(ts); sparseOffsets.add(offset); }
+            records++;
+            minTs = Math.min(minTs, ts);
+            maxTs = Math.max(maxTs, ts);
+            byConversation.computeIfAbsent(conversationId, k -> new LongList()).add(offset);
+            bySender.computeIfAbsent(sender, k -> new LongList()).add(offset);
+            for (String term : new LinkedHashSet<>(tokenize(content))) {
+                byTerm.computeIfAbsent(term, k -> new LongList()).add(offset);
+            }
+        }
+
+        boolean overlaps(long from, long to) { return records > 0 && maxTs >= from && minTs <= to; }
+
+        /** First offset that can hold a record with timestamp >= from (sparse time index). */
+        long seekTime(long from) {
+            int lo = 0, hi = sparseTs.size - 1, best = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sparseTs.data[mid] < from) { best = mid; lo = mid + 1; } else hi = mid - 1;
+            }
+            return sparseTs.size == 0 ? 0 : sparseOffsets.data[best];
+        }
+
+        void writeIndex() throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(records);
+                out.writeLong(minTs);
+                out.writeLong(maxTs);
+                writeList(out, sparseTs);
+                writeList(out, sparseOffsets);
+                writeMap(out, byConversation);
+                writeMap(out, bySender);
+                writeMap(out, byTerm);
+            }
+        }
+
+        boolean readIndex() {
+            if (!Files.exists(indexFile)) return false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                if (in.readInt() != INDEX_MAGIC) return false;
+                records = in.readInt();
+                minTs = in.readLong();
+                maxTs = in.readLong();
+                readList(in, sparseTs);
+                readList(in, sparseOffsets);
+                readMap(in, byConversation);
+                readMap(in, bySender);
+                readMap(in, byTerm);
+                return true;
+            } catch (IOException e) {
+                logger.warning("Chat history index unreadable, rebuilding " + indexFile.getFileName() + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        private static void writeList(DataOutputStream out, LongList list) throws IOException {
+            out.writeInt(list.size);
+            for (int i = 0; i < list.size; i++) out.writeLong(list.data[i]);
+        }
+
+        private static void readList(DataInputStream in, LongList list) throws IOException {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) list.add(in.readLong());
+        }
+
+        private static void writeMap(DataOutputStream out, Map<String, LongList> map) throws IOException {
+            out.writeInt(map.size());
+            for (Map.Entry<String, LongList> e : map.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeList(out, e.getValue());
+            }
+        }
+
+        private static void readMap(DataInputStream in, Map<String, LongList> map) throws IOException {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = in.readUTF();
+                LongList list = new LongList();
+                readList(in, list);
+                map.put(key, list);
+            }
+        }
+    }
+
+    /** Growable primitive list of offsets (avoids boxing millions of Longs). */
+    private static final class LongList {
+        long[] data = new long[4];
+        int size = 0;
+
+        void add(long v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+
+    private static final Query ALL = new Query(List.of(), null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    // ========= state =========
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private long activeSize;
+
+    private ChatHistory(Path dir) { this.dir = dir; }
+
+    /**
+     * Opens (or creates) the history store. Sealed segments load their .idx file;
+     * only the active segment is re-scanned. An empty store is seeded once from
+     * the legacy messages.txt so older conversations stay searchable.
+     */
+    public static ChatHistory open(Path dir, Path legacyMessagesCsv) {
+        ChatHistory h = new ChatHistory(dir);
+        try {
+            Files.createDirectories(dir);
+            h.load();
+            if (h.active == null) {
+                h.roll();
+                h.importLegacy(legacyMessagesCsv);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to open chat history at " + dir + ": " + e.getMessage());
+        }
+        return h;
+    }
+
+    private void load() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                 .filter(n -> n.startsWith("segment-") && n.endsWith(".log"))
+                 .forEach(n -> ids.add(Integer.parseInt(n.substring(8, n.length() - 4))));
+        }
+        Collections.sort(ids);
+        for (int i = 0; i < ids.size(); i++) {
+            Segment seg = new Segment(dir, ids.get(i));
+            boolean last = (i == ids.size() - 1);
+            if (last || !seg.readIndex()) {
+                seg = new Segment(dir, ids.get(i));
+                scan(seg);
+                if (!last) seg.writeIndex();
+            }
+            segments.add(seg);
+        }
+        if (!segments.isEmpty()) {
+            active = segments.get(segments.size() - 1);
+            activeSize = Files.size(active.logFile);
+        }
+    }
+
+    private void scan(Segment seg) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(seg.logFile))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = 0, lineStart = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b != '\n') { line.write(b); continue; }
+                Entry e = decode(line.toString(StandardCharsets.UTF_8));
+                if (e != null) seg.add(lineStart, e.timestamp(), e.conversationId(), e.sender(), e.content());
+                line.reset();
+                lineStart = offset;
+            }
+        }
+    }
+
+    private void importLegacy(Path csv) throws IOException {
+        if (csv == null || !Files.exists(csv)) return;
+        for (String line : Files.readAllLines(csv, StandardCharsets.UTF_8)) {
+            // timestamp,message_id,conversation_id,sender,receiver,message_type,content
+            String[] t = line.split(",", 7);
+            if (t.length < 7 || "timestamp".equals(t[0])) continue;
+            try {
+                long ts = LocalDateTime.parse(t[0], TIMESTAMP_FORMAT)
+                        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                append(ts, t[2], t[3], t[6].replace("\\,", ","));
+            } catch (RuntimeException ignored) {
+                // skip malformed legacy rows
+            }
+        }
+    }
+
+    // ========= writes =========
+    public synchronized void append(long timestamp, String conversationId, String sender, String content) {
+        try {
+            if (activeSize >= SEGMENT_MAX_BYTES) roll();
+            byte[] record = (timestamp + "\t" + clean(conversationId) + "\t" + clean(sender) + "\t"
+                    + clean(content) + "\n").getBytes(StandardCharsets.UTF_8);
+            Files.write(active.logFile, record, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            active.add(activeSize, timestamp, clean(conversationId), clean(sender), clean(content));
+            activeSize += record.length;
+        } catch (IOException e) {
+            logger.severe("Failed to append chat history: " + e.getMessage());
+        }
+    }
+
+    private void roll() throws IOException {
+        if (active != null) active.writeIndex();
+        int nextId = active == null ? 1 : active.id + 1;
+        active = new Segment(dir, nextId);
+        Files.write(active.logFile, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        activeSize = Files.size(active.logFile);
+        segments.add(active);
+    }
+
+    // ========= queries =========
+    /** All messages of one conversation, oldest first. */
+    public synchronized List<Entry> conversation(String conversationId) {
+        List<Entry> out = new ArrayList<>();
+        for (Segment seg : segments) {
+            LongList offsets = seg.byConversation.get(conversationId);
+            if (offsets != null) readAll(seg, offsets, ALL, out);
+        }
+        return out;
+    }
+
+    /** Messages matching the query, newest first, at most {@code limit}. */
+    public synchronized List<Entry> search(Query q, int limit) {
+        List<Entry> out = new ArrayList<>();
+        for (int i = segments.size() - 1; i >= 0 && out.size() < limit; i--) {
+            Segment seg = segments.get(i);
+            if (!seg.overlaps(q.fromMillis(), q.toMillis())) continue;
+
+            LongList candidates = candidates(seg, q);
+            if (candidates == null) continue;
+            List<Entry> found = new ArrayList<>();
+            readAll(seg, candidates, q, found);
+            Collections.reverse(found);
+            for (Entry e : found) {
+                if (out.size() >= limit) break;
+                out.add(e);
+            }
+        }
+        return out;
+    }
+
+    /** Intersects the posting lists the query touches; null when nothing can match. */
+    private LongList candidates(Segment seg, Query q) {
+        List<LongList> lists = new ArrayList<>();
+        if (q.sender() != null) lists.add(seg.bySender.get(q.sender()));
+        for (String term : q.terms()) lists.add(seg.byTerm.get(term));
+        if (lists.contains(null)) return null;
+
+        if (lists.isEmpty()) {
+            // time range only: walk from the sparse time index to the end of the segment
+            return offsetsFrom(seg, seg.seekTime(q.fromMillis()));
+        }
+        lists.sort(Comparator.comparingInt(l -> l.size));
+        LongList result = lists.get(0);
+        for (int i = 1; i < lists.size(); i++) result = intersect(result, lists.get(i));
+        return result.size == 0 ? null : result;
+    }
+
+    private LongList offsetsFrom(Segment seg, long start) {
+        LongList all = new LongList();
+        for (LongList l : seg.byConversation.values()) {
+            for (int i = 0; i < l.size; i++) if (l.data[i] >= start) all.add(l.data[i]);
+        }
+        Arrays.sort(all.data, 0, all.size);
+        return all;
+    }
+
+    private static LongList intersect(LongList a, LongList b) {
+        LongList out = new LongList();
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.data[i] == b.data[j]) { out.add(a.data[i]); i++; j++; }
+            else if (a.data[i] < b.data[j]) i++;
+            else j++;
+        }
+        return out;
+    }
+
+    private void readAll(Segment seg, LongList offsets, Query q, List<Entry> out) {
+        try (FileChannel ch = FileChannel.open(seg.logFile, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            for (int i = 0; i < offsets.size; i++) {
+                Entry e = decode(readLineAt(ch, offsets.data[i], buf));
+                if (e == null) continue;
+                if (e.timestamp() < q.fromMillis() || e.timestamp() > q.toMillis()) continue;
+                out.add(e);
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to read chat history segment " + seg.logFile.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private static String readLineAt(FileChannel ch, long offset, ByteBuffer buf) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        long pos = offset;
+        while (true) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n <= 0) break;
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n') return line.toString(StandardCharsets.UTF_8);
+                line.write(b);
+            }
+            pos += n;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // ========= helpers =========
+    private static Entry decode(String line) {
+        String[] t = line.split("\t", 4);
+        if (t.length < 4) return null;
+        try {
+            return new Entry(Long.parseLong(t[0]), t[1], t[2], t[3]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String clean(String s) {
+        if (s == null) return "";
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /** Lower-cased letter/digit runs; works for Hebrew as well as Latin text. */
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return out;
+    }
+}
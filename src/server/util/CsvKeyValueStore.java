@@ -0,0 +1,167 @@
+package server.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * KeyValueStore over a text file of "key,value" lines (the key is the first
+ * field), the format the data files already have. Blank and "#" lines are
+ * kept but are not entries; the first line wins if a key appears twice.
+ *
+ * Reads come from a sorted copy of the file, reloaded (parsed in parallel
+ * chunks, see CsvScanner) when another process wrote it. A batch is one FileDatabase.update(): changed lines are replaced
+ * where they are and new ones appended, so the file stays readable and diffable.
+ * The sorted copy also goes into the snapshot image, so an unchanged file is
+ * not parsed again at startup.
+ */
+final class CsvKeyValueStore implements KeyValueStore {
+    private final FileDatabase db;
+    private volatile SortedMap<String, String> cache; // null = load on next read
+
+    CsvKeyValueStore(Path file) {
+        this.db = new FileDatabase(file);
+        String part = "kv." + file.toString().replace('\\', '/');
+        if (!Snapshots.restore(part, this::restore)) entries(); // parse now rather than on the first request
+        Snapshots.register(part, this::save);
+    }
+
+    // snapshot: the file's stamp, then the entries as read from it
+    private synchronized boolean save(DataOutputStream out) throws IOException {
+        SortedMap<String, String> c = cache;
+        FileDatabase.Stamp stamp = db.stampIfUnchanged();
+        if (c == null || stamp == null) return false;
+        stamp.writeTo(out);
+        out.writeInt(c.size());
+        for (Map.Entry<String, String> e : c.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+        return true;
+    }
+
+    private synchronized boolean restore(DataInputStream in) throws IOException {
+        List<String> since = db.linesSince(FileDatabase.Stamp.readFrom(in));
+        if (since == null || !since.isEmpty()) return false;
+        TreeMap<String, String> m = new TreeMap<>();
+        for (int n = in.readInt(); n > 0; n--) m.put(in.readUTF(), in.readUTF());
+        cache = Collections.unmodifiableSortedMap(m);
+        return true;
+    }
+
+    @Override
+    public Optional<String> get(String key) {
+        return Optional.ofNullable(entries().get(key));
+    }
+
+    @Override
+    public SortedMap<String, String> scan(String from, String to) {
+        return range(entries(), from, to);
+    }
+
+    @Override
+    public boolean changedElsewhere() { return db.changedElsewhere(); }
+
+    private SortedMap<String, String> entries() {
+        SortedMap<String, String> c = cache;
+        if (c != null && !db.changedElsewhere()) return c;
+        synchronized (this) {
+            if (cache == null || db.changedElsewhere()) cache = Collections.unmodifiableSortedMap(load());
+            return cache;
+        }
+    }
+
+    @Override
+    public synchronized <T> T atomically(Function<Batch, T> work) {
+        Run<T> run = new Run<>();
+        db.update(lines -> {
+            TreeMap<String, String> entries = parse(lines);
+            Map<String, String> writes = new HashMap<>(); // null value = delete
+            List<ChangeLog.Change> changes = new ArrayList<>();
+            run.result = work.apply(new Batch() {
+                @Override public Optional<String> get(String key) { return Optional.ofNullable(entries.get(key)); }
+                @Override public SortedMap<String, String> scan(String from, String to) { return range(entries, from, to); }
+                @Override public void put(String key, String value) {
+                    KeyValueStore.checkKey(key);
+                    KeyValueStore.checkValue(value);
+                    entries.put(key, value);
+                    writes.put(key, value);
+                }
+                @Override public boolean delete(String key) {
+                    writes.put(key, null);
+                    return entries.remove(key) != null;
+                }
+                @Override public void record(ChangeLog.Change change) { changes.add(change); }
+            });
+            run.entries = entries;
+            run.changes = changes;
+            return writes.isEmpty() ? null : apply(lines, writes);
+        }, () -> run.changes);
+        cache = Collections.unmodifiableSortedMap(run.entries);
+        return run.result;
+    }
+
+    private static final class Run<T> {
+        T result;
+        TreeMap<String, String> entries; // as of the batch's end
+        List<ChangeLog.Change> changes;  // recorded by the run that is written
+    }
+
+    private static TreeMap<String, String> parse(List<String> lines) {
+        TreeMap<String, String> out = new TreeMap<>();
+        for (String s : lines) {
+            int comma = s.indexOf(',');
+            if (comma <= 0 || s.startsWith("#")) continue;
+            out.putIfAbsent(s.substring(0, comma), s.substring(comma + 1));
+        }
+        return out;
+    }
+
+    // parse() of the file, with the lines split in parallel chunks (FileDatabase.scan)
+    private TreeMap<String, String> load() {
+        TreeMap<String, String> out = new TreeMap<>();
+        for (List<String> chunk : db.scan(ArrayList::new, CsvKeyValueStore::split)) {
+            for (int i = 0; i < chunk.size(); i += 2) out.putIfAbsent(chunk.get(i), chunk.get(i + 1));
+        }
+        return out;
+    }
+
+    // key then value, as parse() splits a line
+    private static void split(List<String> chunk, CsvScanner.Line l) {
+        if (l.fields() < 2 || l.end(0) == 0 || l.charAt(0) == '#') return;
+        chunk.add(l.field(0));
+        chunk.add(l.text(l.start(1), l.length()));
+    }
+
+    private static List<String> apply(List<String> lines, Map<String, String> writes) {
+        Map<String, String> pending = new HashMap<>(writes);
+        List<String> out = new ArrayList<>(lines.size() + pending.size());
+        for (String s : lines) {
+            int comma = s.indexOf(',');
+            String key = comma <= 0 || s.startsWith("#") ? null : s.substring(0, comma);
+            if (key == null || !writes.containsKey(key)) { out.add(s); continue; }
+            if (!pending.containsKey(key)) continue; // a later duplicate of a key written or deleted above
+            String value = pending.remove(key);
+            if (value != null) out.add(key + "," + value);
+        }
+        new TreeMap<>(pending).forEach((k, v) -> { if (v != null) out.add(k + "," + v); });
+        return out;
+    }
+
+    static SortedMap<String, String> range(SortedMap<String, String> m, String from, String to) {
+        if (from == null && to == null) return m;
+        if (from == null) return m.headMap(to);
+        if (to == null) return m.tailMap(from);
+        return m.subMap(from, to);
+    }
+}
@@ -0,0 +1,216 @@
+package server.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Parses comma-separated lines straight from bytes (a mapped file, see
+ * FileDatabase.scan), in parallel: the buffer is halved at line starts on the
+ * common fork-join pool until the pieces are CHUNK bytes, each piece gets its
+ * own chunk object from the caller, and the chunks come back in file order
+ * for the caller to merge.
+ *
+ * The current line is a Line: a CharSequence over its bytes (one byte, one
+ * char; fine for the ASCII fields a parser reads as numbers) with the comma
+ * positions found in the same pass that finds the line end. Numbers parse
+ * from it without a String (Integer.parseInt(line, from, to, 10)); field()
+ * decodes UTF-8 for the fields that are kept as text.
+ *
+ * "\r\n" and "\n" both end a line, a last line needs no line end, and empty
+ * lines are skipped.
+ */
+public final class CsvScanner {
+    /** Bytes one task parses on its own; larger ranges are split. */
+    static final int CHUNK = 1 << 20;
+
+    private CsvScanner() {}
+
+    /** Parses {@code buf} (position to limit); returns at least one chunk. */
+    public static <A> List<A> scan(ByteBuffer buf, Supplier<A> newChunk, BiConsumer<A, Line> line) {
+        ByteBuffer b = buf.slice();
+        Task<A> all = new Task<>(b, 0, b.limit(), newChunk, line);
+        return b.limit() <= CHUNK ? all.compute() : ForkJoinPool.commonPool().invoke(all);
+    }
+
+    /** The same for lines already in memory (daemon mode, recovery). */
+    public static <A> List<A> scan(List<String> lines, Supplier<A> newChunk, BiConsumer<A, Line> line) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : lines) sb.append(s).append('\n');
+        return scan(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)), newChunk, line);
+    }
+
+    private static final class Task<A> extends RecursiveTask<List<A>> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buf;
+        private final int from, to;
+        private final Supplier<A> newChunk;
+        private final BiConsumer<A, Line> line;
+
+        Task(ByteBuffer buf, int from, int to, Supplier<A> newChunk, BiConsumer<A, Line> line) {
+            this.buf = buf;
+            this.from = from;
+            this.to = to;
+            this.newChunk = newChunk;
+            this.line = line;
+        }
+
+        @Override
+        protected List<A> compute() {
+            int mid = to - from > CHUNK ? lineStart(buf, from + (to - from) / 2, to) : to;
+            if (mid >= to) { // small enough, or one line longer than a chunk
+                A chunk = newChunk.get();
+                byte[] bytes = new byte[to - from]; // one bulk copy: a byte[] scans much faster than buffer.get(i)
+                buf.get(from, bytes);
+                Line l = new Line(bytes);
+                for (int p = 0; (p = l.next(p, bytes.length)) >= 0; ) line.accept(chunk, l);
+                List<A> out = new ArrayList<>(1);
+                out.add(chunk);
+                return out;
+            }
+            Task<A> left = new Task<>(buf, from, mid, newChunk, line);
+            left.fork();
+            List<A> right = new Task<>(buf, mid, to, newChunk, line).compute();
+            List<A> out = left.join();
+            out.addAll(right);
+            return out;
+        }
+    }
+
+    // the first line start at or after p (p itself if a line ends just before it), or to
+    private static int lineStart(ByteBuffer b, int p, int to) {
+        for (int i = p - 1; i < to; i++) if (b.get(i) == '\n') return i + 1;
+        return to;
+    }
+
+    /** One line of the buffer; reused for every line of a chunk, so copy what you keep. */
+    public static final class Line implements CharSequence {
+        private final byte[] buf;
+        private int start, length;
+        private int fields;
+        private int[] commas = new int[16]; // relative positions of the commas, then length
+
+        Line(byte[] buf) { this.buf = buf; }
+
+        // moves to the first non-empty line at or after p; returns where the next one starts, or -1 at the end
+        int next(int p, int to) {
+            while (p < to) {
+                int n = 0, i = p;
+                for (; i < to; i++) {
+                    byte c = buf[i];
+                    if (c == '\n') break;
+                    if (c == ',') {
+                        if (n == commas.length - 1) commas = Arrays.copyOf(commas, commas.length * 2);
+                        commas[n++] = i - p;
+                    }
+                }
+                int end = i > p && buf[i - 1] == '\r' ? i - 1 : i;
+                if (end > p) {
+                    start = p;
+                    length = end - p;
+                    fields = n + 1;
+                    commas[n] = length;
+                    return i + 1;
+                }
+                p = i + 1;
+            }
+            return -1;
+        }
+
+        /** Number of comma-separated fields (one more than the commas). */
+        public int fields() { return fields; }
+
+        /** Position of field {@code f}'s first char. */
+        public int start(int f) { return f == 0 ? 0 : commas[f - 1] + 1; }
+
+        /** Position just after field {@code f}. */
+        public int end(int f) { return commas[f]; }
+
+        /** Field {@code f} decoded as UTF-8. */
+        public String field(int f) { return text(start(f), end(f)); }
+
+        /** Chars {@code from..to} decoded as UTF-8. */
+        public String text(int from, int to) {
+            return new String(buf, start + from, to - from, StandardCharsets.UTF_8);
+        }
+
+        /** True if field {@code f} is exactly {@code bytes}. */
+        public boolean fieldEquals(int f, byte[] bytes) {
+            int s = start(f);
+            if (end(f) - s != bytes.length) return false;
+            for (int i = 0; i < bytes.length; i++) if (buf[start + s + i] != bytes[i]) return false;
+            return true;
+        }
+
+        public boolean isBlank() {
+            for (int i = 0; i < length; i++) if (!Character.isWhitespace(charAt(i))) return false;
+            return true;
+        }
+
+        @Override public int length() { return length; }
+
+        @Override public char charAt(int i) { return (char) (buf[start + i] & 0xFF); }
+
+        @Override public CharSequence subSequence(int from, int to) { return text(from, to); }
+
+        @Override public String toString() { return text(0, length); }
+    }
+
+    /**
+     * Dense ids for the values of a low-cardinality field (categories), looked
+     * up from the line's bytes so a value already seen costs no String.
+     */
+    public static final class Dictionary {
+        private final List<String> values = new ArrayList<>();
+        private final List<byte[]> bytes = new ArrayList<>();
+        private int[] slots = new int[64]; // id + 1, 0 = empty; open addressing on the bytes' hash
+
+        /** Id of field {@code f} of {@code line}, added if new. */
+        public int id(Line line, int f) {
+            int mask = slots.length - 1;
+            for (int i = spread(hash(line, f)) & mask; ; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (id < 0) break;
+                if (line.fieldEquals(f, bytes.get(id))) return id;
+            }
+            String v = line.field(f);
+            int id = values.size();
+            values.add(v);
+            bytes.add(v.getBytes(StandardCharsets.UTF_8));
+            if (values.size() * 2 > slots.length) rehash();
+            else insert(slots, hash(line, f), id);
+            return id;
+        }
+
+        /** Values by id. */
+        public List<String> values() { return values; }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            for (int id = 0; id < bytes.size(); id++) insert(slots, Arrays.hashCode(bytes.get(id)), id);
+        }
+
+        private static void insert(int[] slots, int hash, int id) {
+            int mask = slots.length - 1;
+            int i = spread(hash) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+
+        private static int spread(int h) { return h ^ (h >>> 16); }
+
+        // Arrays.hashCode of the field's bytes
+        private static int hash(Line line, int f) {
+            int h = 1;
+            for (int i = line.start(f), end = line.end(f); i < end; i++) h = 31 * h + (byte) line.charAt(i);
+            return h;
+        }
+    }
+}
@@ -1,43 +1,626 @@
 package server.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32C;
 
+/**
+ * A text file read and written as whole lines, safe to share between the
+ * server processes running on one data/ directory.
+ *
+ * Two ways to the file:
+ *   local   (default) every call holds a FileChannel lock on a sidecar
+ *           ".<name>.lock" file: shared for reads, exclusive for writes;
+ *   daemon  (-Dstorage.port=N) every call goes to the StorageDaemon on that
+ *           loopback port, which owns the files and serializes access.
+ *
+ * A write can carry ChangeLog entries describing it: they are appended
+ * after the file is written and before its lock is released (in daemon
+ * mode by the daemon), so changes to one file are in the log in the order
+ * they were made, whichever process made them.
+ *
+ * Each write bumps a version counter kept in the lock file. The instance
+ * remembers the version of its last read or write, so a process that keeps a
+ * copy in memory can check changedElsewhere() and write with
+ * writeAllLinesIfUnchanged(); read-modify-write callers use update().
+ * Large files that are only parsed are better read with scan(), which hands
+ * the bytes to a CsvScanner instead of building a String per line first.
+ *
+ * Crash safety (local access; the daemon does the same on its side):
+ *   - a write goes to a sidecar ".<name>.tmp", is fsynced, renamed over the
+ *     file with ATOMIC_MOVE and the directory is fsynced, so after a crash the
+ *     file holds either the old or the new lines, never a truncated mix;
+ *   - the written lines end with a "#crc32c=<hex>" trailer line, checked on
+ *     every load and never returned to callers. Lines appended after it are
+ *     not covered, but a torn last append (no line end) is dropped;
+ *   - before the rename the old file is kept as ".<name>.prev", a hard link
+ *     (no copy). A file whose checksum fails is copied aside to
+ *     ".<name>.corrupt" and replaced by .prev if that one checks out.
+ * Files without a trailer (older data, hand edits) load unchecked; the next
+ * write adds one. -Dstorage.fsync=false skips the fsyncs (tests, tmpfs).
+ */
 public class FileDatabase {
+    /** A file's lines together with the version they were read at. */
+    public static record Contents(long version, List<String> lines) {}
+
+    private static final StorageClient DAEMON = StorageClient.fromConfig();
+    // FileLocks belong to the whole JVM (a second lock on the same file throws), so threads queue per path first
+    private static final Map<Path, Guard> GUARDS = new ConcurrentHashMap<>();
+    private static final int UPDATE_ATTEMPTS = 20;
+    static final boolean FSYNC = !"false".equalsIgnoreCase(System.getProperty("storage.fsync", "true"));
+    private static final String TRAILER = "#crc32c=";
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRAILER_BYTES = TRAILER.getBytes(StandardCharsets.UTF_8);
+    // a mapped file cannot be replaced on Windows until the mapping is collected, so read it there
+    private static final boolean MAP = !System.getProperty("os.name", "").startsWith("Windows");
+    private static final Path DATA = Path.of(System.getProperty("storage.root", "data")).toAbsolutePath().normalize();
+
     private final Path path;
+    private final LatencyHistogram readTime;
+    private final LatencyHistogram writeTime;
+    private long seenVersion = -1; // version of our last read or write; -1 before the first
 
-    public FileDatabase(Path path) { this.path = path; }
+    public FileDatabase(Path path) {
+        this.path = path;
+        String name = metricName(path);
+        this.readTime = Metrics.histogram("file.read." + name);
+        this.writeTime = Metrics.histogram("file.write." + name);
+    }
+
+    // the path under data/ (products/HOLON.txt), so files with the same name in different directories stay apart
+    private static String metricName(Path path) {
+        Path p = path.toAbsolutePath().normalize();
+        return (p.startsWith(DATA) ? DATA.relativize(p) : p).toString().replace('\\', '/');
+    }
+
+    /** True when this process reaches its files through the StorageDaemon. */
+    public static boolean viaDaemon() { return DAEMON != null; }
 
     public synchronized List<String> readAllLines() {
+        return read().lines();
+    }
+
+    /** The lines and the version they were read at. */
+    public synchronized Contents read() {
+        long t0 = System.nanoTime();
         try {
-            if (Files.notExists(path)) return new ArrayList<>();
-            return Files.readAllLines(path, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            Contents c = DAEMON != null ? DAEMON.read(path) : guarded(true, lock -> {
+                List<String> lines = load(path, true);
+                return lines == null ? null : new Contents(version(lock), lines);
+            });
+            if (c == null) c = guarded(false, lock -> { // checksum failed: recover under the exclusive lock
+                List<String> lines = loadOrRecover(lock);
+                return new Contents(version(lock), lines);
+            });
+            seenVersion = c.version();
+            return c;
+        } finally {
+            readTime.recordSince(t0);
+        }
+    }
+
+    /**
+     * The lines read() would return, parsed by a CsvScanner in parallel
+     * chunks: the file is memory-mapped, the checksum is computed while the
+     * chunks are parsed, and {@code line} sees each non-empty line of the chunk
+     * {@code newChunk} made for it. Returns the chunks in file order. Counts
+     * as a read for changedElsewhere().
+     */
+    public synchronized <A> List<A> scan(Supplier<A> newChunk, BiConsumer<A, CsvScanner.Line> line) {
+        List<A> chunks = null;
+        long t0 = System.nanoTime();
+        try {
+            if (DAEMON == null) chunks = guarded(true, lock -> {
+                List<A> c = scanLocal(newChunk, line);
+                if (c != null) seenVersion = version(lock);
+                return c;
+            });
+        } finally {
+            readTime.recordSince(t0);
         }
+        // daemon mode, a checksum mismatch (read() recovers the file) or a file too large to map
+        return chunks != null ? chunks : CsvScanner.scan(read().lines(), newChunk, line);
+    }
+
+    // null if the file cannot be scanned in place
+    private <A> List<A> scanLocal(Supplier<A> newChunk, BiConsumer<A, CsvScanner.Line> line) throws IOException {
+        if (Files.notExists(path)) return CsvScanner.scan(ByteBuffer.allocate(0), newChunk, line);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) return null;
+            ByteBuffer b;
+            if (MAP) {
+                b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                b = ByteBuffer.allocate((int) size);
+                while (b.hasRemaining() && ch.read(b, b.position()) > 0) { }
+                b.flip();
+            }
+            int trailer = trailerStart(b);
+            if (trailer < 0) return CsvScanner.scan(b, newChunk, line); // unchecked, as in load()
+            int after = trailer;
+            while (after < b.limit() && b.get(after) != '\n') after++;
+            int trailerEnd = after;
+            if (trailerEnd > trailer && b.get(trailerEnd - 1) == '\r') trailerEnd--;
+            int tail = b.limit();
+            while (tail > after && b.get(tail - 1) != '\n') tail--; // a torn append after the trailer is dropped
+
+            ForkJoinTask<Long> crc = ForkJoinPool.commonPool().submit(() -> {
+                CRC32C c = new CRC32C();
+                c.update(b.slice(0, trailer));
+                return c.getValue();
+            });
+            List<A> chunks = CsvScanner.scan(b.slice(0, trailer), newChunk, line);
+            if (after < tail) chunks.addAll(CsvScanner.scan(b.slice(after + 1, tail - after - 1), newChunk, line));
+            byte[] expected = (TRAILER + String.format("%08x", crc.join())).getBytes(StandardCharsets.UTF_8);
+            if (trailerEnd - trailer != expected.length) return null;
+            for (int i = 0; i < expected.length; i++) if (b.get(trailer + i) != expected[i]) return null;
+            return chunks;
+        }
+    }
+
+    // start of the last line that is a trailer, or -1; it is the last line unless lines were appended since
+    private static int trailerStart(ByteBuffer b) {
+        int end = b.limit();
+        while (end > 0) {
+            int start = end - 1;
+            while (start > 0 && b.get(start - 1) != '\n') start--;
+            if (end - start >= TRAILER_BYTES.length) {
+                int i = 0;
+                while (i < TRAILER_BYTES.length && b.get(start + i) == TRAILER_BYTES[i]) i++;
+                if (i == TRAILER_BYTES.length) return start;
+            }
+            end = start;
+        }
+        return -1;
     }
 
     public synchronized void writeAllLines(List<String> lines) {
+        writeAllLinesIfVersion(lines, -1);
+    }
+
+    /**
+     * Writes only if nobody else wrote since this instance last read or wrote
+     * the file; otherwise throws StaleDataException and changes nothing.
+     */
+    public synchronized void writeAllLinesIfUnchanged(List<String> lines) {
+        writeAllLinesIfUnchanged(lines, List.of());
+    }
+
+    /** writeAllLinesIfUnchanged(), recording {@code changes} in the ChangeLog with the write. */
+    public synchronized void writeAllLinesIfUnchanged(List<String> lines, List<ChangeLog.Change> changes) {
+        if (seenVersion < 0) throw new StaleDataException(path);
+        writeAllLinesIfVersion(lines, seenVersion, changes);
+    }
+
+    /**
+     * Writes if the file is still at {@code expectedVersion} (any version if
+     * negative), else throws StaleDataException. Returns the new version.
+     */
+    public synchronized long writeAllLinesIfVersion(List<String> lines, long expectedVersion) {
+        return writeAllLinesIfVersion(lines, expectedVersion, List.of());
+    }
+
+    /** writeAllLinesIfVersion(), recording {@code changes} in the ChangeLog with the write. */
+    public synchronized long writeAllLinesIfVersion(List<String> lines, long expectedVersion, List<ChangeLog.Change> changes) {
+        long t0 = System.nanoTime();
         try {
-            Files.createDirectories(path.getParent());
-            Files.write(path, lines, StandardCharsets.UTF_8,
-                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            seenVersion = DAEMON != null ? DAEMON.write(path, lines, expectedVersion, changes) : guarded(false, lock -> {
+                if (expectedVersion >= 0 && version(lock) != expectedVersion) throw new StaleDataException(path);
+                write(lines);
+                long v = bumpVersion(lock);
+                ChangeLog.append(changes); // still under the lock: ordered with the writes of other processes
+                return v;
+            });
+            return seenVersion;
+        } finally {
+            writeTime.recordSince(t0);
+        }
+    }
+
+    /** Appends one line; returns the new version. */
+    public synchronized long appendLine(String line) {
+        long t0 = System.nanoTime();
+        try {
+            long v = DAEMON != null ? DAEMON.append(path, line) : guarded(false, lock -> {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    String text = line + System.lineSeparator();
+                    if (!endsWithNewline(ch)) text = repairTail(ch) + text;
+                    writeFully(ch.position(ch.size()), ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+                    if (FSYNC) ch.force(false);
+                }
+                return bumpVersion(lock);
+            });
+            if (v == seenVersion + 1) seenVersion = v; // we were current, and ours is the only change since
+            return v;
+        } finally {
+            writeTime.recordSince(t0);
+        }
+    }
+
+    /**
+     * Read-modify-write as one step across processes. {@code change} gets a
+     * mutable copy of the lines and returns the lines to write, or null to
+     * leave the file alone. It may run more than once (daemon mode retries
+     * when another process wrote in between), so it must not have side
+     * effects beyond its result.
+     */
+    public synchronized void update(UnaryOperator<List<String>> change) {
+        update(change, List::of);
+    }
+
+    /**
+     * update(), recording the ChangeLog entries {@code changes} returns in
+     * the log with the write; it is asked after the run of {@code change}
+     * whose lines are written, and not at all if nothing is.
+     */
+    public synchronized void update(UnaryOperator<List<String>> change, Supplier<List<ChangeLog.Change>> changes) {
+        if (DAEMON == null) {
+            long t0 = System.nanoTime();
+            try {
+                guarded(false, lock -> {
+                    List<String> next = change.apply(loadOrRecover(lock));
+                    if (next == null) return seenVersion = version(lock);
+                    write(next);
+                    seenVersion = bumpVersion(lock);
+                    ChangeLog.append(changes.get());
+                    return seenVersion;
+                });
+            } finally {
+                writeTime.recordSince(t0);
+            }
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            Contents c = read();
+            List<String> next = change.apply(new ArrayList<>(c.lines()));
+            if (next == null) return;
+            try {
+                writeAllLinesIfVersion(next, c.version(), changes.get());
+                return;
+            } catch (StaleDataException e) {
+                if (attempt >= UPDATE_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+    /** The file's current version (0 if it was never written). */
+    public synchronized long version() {
+        return DAEMON != null ? DAEMON.version(path) : guarded(true, FileDatabase::version);
+    }
+
+    /** True if another process (or another FileDatabase on the same file) wrote since our last read or write. */
+    public synchronized boolean changedElsewhere() {
+        return version() != seenVersion;
+    }
+
+    // ---------- snapshots (see Snapshots) ----------
+
+    /**
+     * What a snapshot needs to tell later whether the file is still the same:
+     * version, size, modification time, and a CRC32C of its last STAMP_TAIL
+     * bytes, which shows whether a longer file only had lines appended.
+     */
+    public static record Stamp(long version, long size, long modified, int tailCrc) {
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeLong(version);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(tailCrc);
+        }
+
+        public static Stamp readFrom(DataInput in) throws IOException {
+            return new Stamp(in.readLong(), in.readLong(), in.readLong(), in.readInt());
         }
     }
 
-    public synchronized void appendLine(String line) {
+    private static final int STAMP_TAIL = 4096;
+
+    /**
+     * The file's stamp, if nobody wrote it since this instance's last read or
+     * write (so it describes what the caller has in memory); else null.
+     * Always null in daemon mode.
+     */
+    public synchronized Stamp stampIfUnchanged() {
+        if (DAEMON != null) return null;
+        return guarded(true, lock -> {
+            long v = version(lock);
+            if (v != seenVersion) return null;
+            long size = Files.exists(path) ? Files.size(path) : 0;
+            return new Stamp(v, size, modified(), tailCrc(size));
+        });
+    }
+
+    /**
+     * Lines written since {@code stamp} was taken: none if the file is
+     * unchanged, the new lines if it only grew by appends, or null if it was
+     * rewritten or edited (the caller then reads it whole). Unless null, the
+     * instance is now current, as after a read. Always null in daemon mode.
+     */
+    public synchronized List<String> linesSince(Stamp stamp) {
+        if (DAEMON != null) return null;
+        return guarded(true, lock -> {
+            long v = version(lock);
+            long size = Files.exists(path) ? Files.size(path) : 0;
+            List<String> added;
+            if (v == stamp.version() && size == stamp.size() && modified() == stamp.modified()) {
+                added = new ArrayList<>();
+            } else if (v > stamp.version() && size >= stamp.size() && tailCrc(stamp.size()) == stamp.tailCrc()) {
+                added = readLinesFrom(stamp.size());
+                if (added == null) return null;
+            } else {
+                return null;
+            }
+            seenVersion = v;
+            return added;
+        });
+    }
+
+    private long modified() throws IOException {
+        return Files.exists(path) ? Files.getLastModifiedTime(path).toMillis() : 0;
+    }
+
+    // CRC32C of the STAMP_TAIL bytes before {@code end}
+    private int tailCrc(long end) throws IOException {
+        if (end == 0) return 0;
+        long from = Math.max(0, end - STAMP_TAIL);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < end) return 0;
+            ByteBuffer b = ByteBuffer.allocate((int) (end - from));
+            while (b.hasRemaining() && ch.read(b, from + b.position()) > 0) { }
+            b.flip();
+            CRC32C crc = new CRC32C();
+            crc.update(b);
+            return (int) crc.getValue();
+        }
+    }
+
+    // lines from a line start to the end of the file; null if {@code from} is not a line start
+    private List<String> readLinesFrom(long from) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (from > 0) {
+                ByteBuffer prev = ByteBuffer.allocate(1);
+                ch.read(prev, from - 1);
+                if (prev.get(0) != '\n') return null;
+            }
+            ByteBuffer b = ByteBuffer.allocate((int) (ch.size() - from));
+            while (b.hasRemaining() && ch.read(b, from + b.position()) > 0) { }
+            List<String> lines = new ArrayList<>();
+            for (String s : new String(b.array(), 0, b.position(), StandardCharsets.UTF_8).split("\r?\n")) {
+                if (!s.isEmpty() && !s.startsWith(TRAILER)) lines.add(s);
+            }
+            return lines;
+        }
+    }
+
+    // ---------- local access ----------
+
+    private interface LockedIo<T> {
+        T run(FileChannel lockFile) throws IOException;
+    }
+
+    private static final class Guard {
+        final ReentrantLock threads = new ReentrantLock();
+        FileChannel lockFile; // opened on first use, kept open: closing it would drop every lock of this JVM on it
+    }
+
+    private <T> T guarded(boolean shared, LockedIo<T> io) {
+        Guard g = GUARDS.computeIfAbsent(path.toAbsolutePath().normalize(), p -> new Guard());
+        g.threads.lock();
         try {
-            Files.createDirectories(path.getParent());
-            Files.writeString(path, line + System.lineSeparator(), StandardCharsets.UTF_8,
-                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (g.lockFile == null) {
+                Path lockPath = path.toAbsolutePath().resolveSibling("." + path.getFileName() + ".lock");
+                Files.createDirectories(lockPath.getParent());
+                g.lockFile = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            FileLock lock = lock(g.lockFile, shared);
+            try {
+                return io.run(g.lockFile);
+            } finally {
+                lock.release();
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            g.threads.unlock();
         }
     }
+
+    /**
+     * Takes an OS lock on the whole of {@code ch} (shared needs a readable
+     * channel). Polls tryLock instead of blocking in lock(): Linux counts a
+     * blocked fcntl lock as a wait of the whole process, so two processes
+     * whose threads wait on different lock files can look deadlocked to it,
+     * and it fails one waiter with EDEADLK ("Resource deadlock avoided").
+     * Every lock file shared between processes is taken this way.
+     */
+    public static FileLock lock(FileChannel ch, boolean shared) throws IOException {
+        long backoff = 20_000;
+        while (true) {
+            FileLock l = ch.tryLock(0, Long.MAX_VALUE, shared);
+            if (l != null) return l;
+            if (Thread.currentThread().isInterrupted()) throw new FileLockInterruptionException(); // as lock() would
+            LockSupport.parkNanos(backoff);
+            backoff = Math.min(backoff * 2, 1_000_000);
+        }
+    }
+
+    private Path sidecar(String suffix) {
+        return path.toAbsolutePath().resolveSibling("." + path.getFileName() + suffix);
+    }
+
+    /** Replaces the file atomically: temp file, fsync, keep the old one as .prev, rename, fsync the directory. */
+    private void write(List<String> lines) throws IOException {
+        write(lines, true);
+    }
+
+    private void write(List<String> lines, boolean keepPrevious) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = sidecar(".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            for (String line : lines) {
+                byte[] b = line.getBytes(StandardCharsets.UTF_8);
+                crc.update(b);
+                crc.update(NEWLINE);
+                buf = put(ch, buf, b);
+                buf = put(ch, buf, NEWLINE);
+            }
+            buf = put(ch, buf, (TRAILER + String.format("%08x", crc.getValue())).getBytes(StandardCharsets.UTF_8));
+            buf = put(ch, buf, NEWLINE);
+            buf.flip();
+            writeFully(ch, buf);
+            if (FSYNC) ch.force(true);
+        }
+        Path prev = sidecar(".prev");
+        if (keepPrevious && Files.exists(path)) {
+            Files.deleteIfExists(prev);
+            try {
+                Files.createLink(prev, path);
+            } catch (IOException | UnsupportedOperationException e) {
+                // no hard links here: go without a previous generation rather than copying the file on every write
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (FSYNC) syncDirectory(dir);
+    }
+
+    private static ByteBuffer put(FileChannel ch, ByteBuffer buf, byte[] b) throws IOException {
+        if (buf.remaining() < b.length) {
+            buf.flip();
+            writeFully(ch, buf);
+            buf.clear();
+            if (buf.capacity() < b.length) buf = ByteBuffer.allocate(b.length);
+        }
+        return buf.put(b);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    // makes the rename itself durable; Windows cannot open a directory, and NTFS journals the rename anyway
+    static void syncDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static boolean endsWithNewline(FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (size == 0) return true;
+        ByteBuffer last = ByteBuffer.allocate(1);
+        ch.read(last, size - 1);
+        return last.get(0) == '\n';
+    }
+
+    /**
+     * The file does not end with a line end (rare, so this may be slow). With
+     * a trailer it is a torn append, which load() drops: cut it off. Without
+     * one it is a hand-edited last line: returns the line end to put after it.
+     */
+    private String repairTail(FileChannel ch) throws IOException {
+        byte[] b = Files.readAllBytes(path);
+        int lastNewline = b.length - 1;
+        while (lastNewline >= 0 && b[lastNewline] != '\n') lastNewline--;
+        String all = new String(b, StandardCharsets.UTF_8);
+        if (!all.startsWith(TRAILER) && !all.contains("\n" + TRAILER)) return System.lineSeparator();
+        Loggers.system().warning("Cut an incomplete last line off " + path);
+        ch.truncate(lastNewline + 1);
+        return "";
+    }
+
+    /**
+     * The file's lines without the trailer, or null if {@code verify} and the
+     * checksum does not match. A missing file has no lines.
+     */
+    private static List<String> load(Path file, boolean verify) throws IOException {
+        if (Files.notExists(file)) return new ArrayList<>();
+        byte[] b = Files.readAllBytes(file);
+        List<String> lines = new ArrayList<>();
+        boolean checked = false;
+        int start = 0;
+        while (start < b.length) {
+            int nl = start;
+            while (nl < b.length && b[nl] != '\n') nl++;
+            if (nl == b.length && checked) break; // a torn append; the next appendLine cuts it off
+            int end = nl > start && b[nl - 1] == '\r' ? nl - 1 : nl;
+            String line = new String(b, start, end - start, StandardCharsets.UTF_8);
+            if (!checked && line.startsWith(TRAILER)) {
+                CRC32C crc = new CRC32C();
+                crc.update(b, 0, start);
+                if (verify && !line.equals(TRAILER + String.format("%08x", crc.getValue()))) return null;
+                checked = true;
+            } else {
+                lines.add(line);
+            }
+            start = nl + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * load() under the exclusive lock; if the checksum fails, sets the file
+     * aside as .corrupt and puts the previous generation back when it is
+     * intact, else keeps the lines as they are; either way the file is
+     * rewritten and its version bumped.
+     */
+    private List<String> loadOrRecover(FileChannel lock) throws IOException {
+        List<String> lines = load(path, true);
+        if (lines != null) return lines;
+        Metrics.counter("file.corrupt." + path.getFileName()).increment();
+        Path corrupt = sidecar(".corrupt");
+        Files.copy(path, corrupt, StandardCopyOption.REPLACE_EXISTING);
+        Path prev = sidecar(".prev");
+        List<String> previous = Files.exists(prev) ? load(prev, true) : null;
+        if (previous != null) {
+            Loggers.system().severe("Checksum mismatch in " + path + ": restored the previous version, kept the bad file as " + corrupt);
+            write(previous, false); // .prev stays: it is the generation we trust
+            bumpVersion(lock);
+            return previous;
+        }
+        Loggers.system().severe("Checksum mismatch in " + path + " and no intact previous version: kept it as is, copy in " + corrupt);
+        lines = load(path, false);
+        write(lines, false); // a fresh trailer, so every later read does not land here again
+        bumpVersion(lock);
+        return lines;
+    }
+
+    // the version is the lock file's first 8 bytes
+    private static long version(FileChannel lockFile) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        while (b.hasRemaining() && lockFile.read(b, b.position()) > 0) { }
+        return b.hasRemaining() ? 0 : b.getLong(0);
+    }
+
+    private static long bumpVersion(FileChannel lockFile) throws IOException {
+        long next = version(lockFile) + 1;
+        ByteBuffer b = ByteBuffer.allocate(8).putLong(0, next);
+        while (b.hasRemaining()) lockFile.write(b, b.position());
+        return next;
+    }
 }
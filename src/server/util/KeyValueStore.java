@@ -0,0 +1,97 @@
+package server.util;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * String keys to string values, with point lookups and key-ordered range
+ * scans, so services stop parsing and rewriting whole line lists themselves.
+ *
+ * Two engines, chosen with -Dstorage.engine:
+ *   csv  (default) CsvKeyValueStore: the existing text file, one "key,value"
+ *        line per entry, kept in place through FileDatabase. Works with
+ *        several StoreServer processes and the StorageDaemon.
+ *   lsm  LsmKeyValueStore: a log-structured store in a directory next to the
+ *        file ("customers.txt" -> "customers.kv/"), imported from the file
+ *        on first open. One process only.
+ *
+ * Keys must not contain commas or line breaks and values no line breaks
+ * (the csv engine stores them as lines); keys order as strings, so "1001"
+ * comes before "999".
+ */
+public interface KeyValueStore {
+
+    Optional<String> get(String key);
+
+    /** Entries with {@code from <= key < to}, in key order; a null bound is open. */
+    SortedMap<String, String> scan(String from, String to);
+
+    default SortedMap<String, String> all() {
+        return scan(null, null);
+    }
+
+    /**
+     * Runs {@code work} with no other writer (thread or process) in between
+     * and applies its puts and deletes together, then appends the changes it
+     * recorded to the ChangeLog before the store is unlocked. Like
+     * FileDatabase.update it may run more than once, so it must not have side
+     * effects beyond the batch and its result.
+     */
+    <T> T atomically(Function<Batch, T> work);
+
+    default void put(String key, String value) {
+        atomically(b -> { b.put(key, value); return null; });
+    }
+
+    /** Returns true if the key was there. */
+    default boolean delete(String key) {
+        return atomically(b -> b.delete(key));
+    }
+
+    /** Sets the key to {@code change} of its value (null when absent); a null result deletes it. Returns the result. */
+    default String compute(String key, UnaryOperator<String> change) {
+        return atomically(b -> {
+            String next = change.apply(b.get(key).orElse(null));
+            if (next == null) b.delete(key); else b.put(key, next);
+            return next;
+        });
+    }
+
+    /** True if another process changed the store since this one last read or wrote it. */
+    default boolean changedElsewhere() { return false; }
+
+    /** Reads see the batch's own writes. */
+    interface Batch {
+        Optional<String> get(String key);
+        SortedMap<String, String> scan(String from, String to);
+        void put(String key, String value);
+        boolean delete(String key);
+        /** Logs {@code change} with the batch, if the batch writes anything. */
+        void record(ChangeLog.Change change);
+    }
+
+    /** The store for the text file {@code csv}, in the engine chosen by -Dstorage.engine. */
+    static KeyValueStore open(Path csv) {
+        if (!lsm()) return new CsvKeyValueStore(csv);
+        String name = csv.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return LsmKeyValueStore.open(csv.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".kv"), csv);
+    }
+
+    static boolean lsm() {
+        return "lsm".equalsIgnoreCase(System.getProperty("storage.engine", "csv"));
+    }
+
+    static void checkKey(String key) {
+        if (key == null || key.isEmpty() || key.indexOf(',') >= 0 || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0)
+            throw new IllegalArgumentException("Bad key: " + key);
+    }
+
+    static void checkValue(String value) {
+        if (value == null || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            throw new IllegalArgumentException("Bad value: " + value);
+    }
+}
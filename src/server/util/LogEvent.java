@@ -0,0 +1,119 @@
+package server.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured log event with lazy, allocation-light formatting.
+ *
+ * Usage:
+ *   LogEvent.info(Loggers.transactions(), "STOCK_SOLD")
+ *           .field("Branch", branch.name()).field("Quantity", qty).log();
+ *
+ * Renders as "STOCK_SOLD: Branch=HOLON, Quantity=3" (same text the services logged
+ * before). When the level is filtered out and the JSON sink is off, begin() returns
+ * a shared no-op event, so field() calls cost nothing and nothing is formatted.
+ * Each thread reuses one event and its pre-sized buffers.
+ *
+ * With -Dshop.events.jsonl=true every event is also appended as one JSON object
+ * per line to logs/events.jsonl.
+ */
+public final class LogEvent {
+    private static final boolean JSONL = Boolean.getBoolean("shop.events.jsonl");
+    private static final RollingFile jsonSink = JSONL
+            ? new RollingFile(Path.of("logs", "events.jsonl"), null, 50L * 1024 * 1024, 30, 100)
+            : null;
+
+    private static final LogEvent DISABLED = new LogEvent();
+    private static final ThreadLocal<LogEvent> CURRENT = ThreadLocal.withInitial(LogEvent::new);
+
+    private final StringBuilder text = new StringBuilder(256);
+    private final StringBuilder json = new StringBuilder(256);
+    private Logger logger;
+    private Level level;
+    private String type;
+    private boolean toLogger;
+    private int fields;
+
+    private LogEvent() {}
+
+    public static LogEvent info(Logger logger, String type)    { return begin(logger, Level.INFO, type); }
+    public static LogEvent warning(Logger logger, String type) { return begin(logger, Level.WARNING, type); }
+
+    public static LogEvent begin(Logger logger, Level level, String type) {
+        boolean loggable = logger.isLoggable(level);
+        if (!loggable && !JSONL) return DISABLED;
+
+        LogEvent e = CURRENT.get();
+        e.logger = logger;
+        e.level = level;
+        e.type = type;
+        e.toLogger = loggable;
+        e.fields = 0;
+        e.text.setLength(0);
+        e.text.append(type).append(':');
+        if (JSONL) {
+            e.json.setLength(0);
+            e.json.append("{\"ts\":\"").append(Timestamps.now())
+                  .append("\",\"log\":\"").append(logger.getName())
+                  .append("\",\"level\":\"").append(level.getName())
+                  .append("\",\"event\":\"").append(type).append('"');
+        }
+        return e;
+    }
+
+    public LogEvent field(String key, String value) {
+        if (this == DISABLED) return this;
+        key(key).append(value);
+        if (JSONL) {
+            json.append(",\"").append(key).append("\":\"");
+            escape(value);
+            json.append('"');
+        }
+        return this;
+    }
+
+    public LogEvent field(String key, long value) {
+        if (this == DISABLED) return this;
+        key(key).append(value);
+        if (JSONL) json.append(",\"").append(key).append("\":").append(value);
+        return this;
+    }
+
+    /** Formats value via toString() only when the event is actually emitted. */
+    public LogEvent field(String key, Object value) {
+        if (this == DISABLED) return this;
+        return field(key, String.valueOf(value));
+    }
+
+    public void log() {
+        if (this == DISABLED) return;
+        // explicit source (log name + event type) spares java.util.logging its stack walk
+        if (toLogger) logger.logp(level, logger.getName(), type, text.toString());
+        if (JSONL) {
+            json.append("}\n");
+            try {
+                jsonSink.append(json);
+            } catch (IOException ex) {
+                System.err.println("Warning: could not write events.jsonl: " + ex.getMessage());
+            }
+        }
+    }
+
+    private StringBuilder key(String key) {
+        text.append(fields++ == 0 ? " " : ", ").append(key).append('=');
+        return text;
+    }
+
+    private void escape(String s) {
+        if (s == null) { json.append("null"); return; }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(' ');
+            else json.append(c);
+        }
+    }
+}
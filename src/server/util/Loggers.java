@@ -1,40 +1,50 @@
 package server.util;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.logging.*;
 
+/**
+ * Logger instances are created once and kept in static finals, so a log call is
+ * just a field read (and the loggers cannot be garbage collected along with their
+ * handlers). Each log file has one shared AsyncFileHandler.
+ */
 public class Loggers {
-    public static Logger system() { return logger("system.log"); }
-    public static Logger sales()  { return logger("sales.log"); }
-    public static Logger auth()   { return logger("auth.log"); }
-    public static Logger employees() { return logger("employees.log"); }
-    public static Logger customers() { return logger("customers.log"); }
-    public static Logger transactions() { return logger("transactions.log"); }
-    public static Logger chat() { return logger("chat.log"); }
+    private static final long MAX_LOG_BYTES = 5L * 1024 * 1024;
+    private static final int LOG_GENERATIONS = 5;
 
-    private static Logger logger(String name) {
+    private static final Logger SYSTEM       = create("system.log");
+    private static final Logger SALES        = create("sales.log");
+    private static final Logger AUTH         = create("auth.log");
+    private static final Logger EMPLOYEES    = create("employees.log");
+    private static final Logger CUSTOMERS    = create("customers.log");
+    private static final Logger TRANSACTIONS = create("transactions.log");
+    private static final Logger CHAT         = create("chat.log");
+
+    public static Logger system() { return SYSTEM; }
+    public static Logger sales()  { return SALES; }
+    public static Logger auth()   { return AUTH; }
+    public static Logger employees() { return EMPLOYEES; }
+    public static Logger customers() { return CUSTOMERS; }
+    public static Logger transactions() { return TRANSACTIONS; }
+    public static Logger chat() { return CHAT; }
+
+    private static Logger create(String name) {
         Logger l = Logger.getLogger(name);
-        if (l.getHandlers().length == 0) {
-            try {
-                // Use absolute path to avoid path issues
-                Path logsDir = Path.of(System.getProperty("user.dir"), "logs");
-                Files.createDirectories(logsDir);
-                
-                // Try to create the log file with append mode
-                FileHandler fh = new FileHandler(logsDir.resolve(name).toString(), true);
-                fh.setFormatter(new SimpleFormatter());
-                l.addHandler(fh);
-                l.setUseParentHandlers(false);
-            } catch (IOException e) {
-                // If logging fails, just log to console instead of crashing
-                System.err.println("Warning: Could not create log file " + name + ": " + e.getMessage());
-                ConsoleHandler ch = new ConsoleHandler();
-                ch.setFormatter(new SimpleFormatter());
-                l.addHandler(ch);
-                l.setUseParentHandlers(false);
-            }
+        l.setUseParentHandlers(false);
+        try {
+            // Use absolute path to avoid path issues
+            Path logsDir = Path.of(System.getProperty("user.dir"), "logs");
+            AsyncFileHandler h = new AsyncFileHandler(logsDir.resolve(name), MAX_LOG_BYTES, LOG_GENERATIONS);
+            l.addHandler(h);
+            // drain queued records before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(h::close));
+        } catch (IOException e) {
+            // If logging fails, just log to console instead of crashing
+            System.err.println("Warning: Could not create log file " + name + ": " + e.getMessage());
+            ConsoleHandler ch = new ConsoleHandler();
+            ch.setFormatter(new SimpleFormatter());
+            l.addHandler(ch);
         }
         return l;
     }
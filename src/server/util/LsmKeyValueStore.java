@@ -0,0 +1,711 @@
+package server.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Log-structured KeyValueStore in one directory (-Dstorage.engine=lsm).
+ *
+ * Files:
+ *   wal.log    batches not yet in a segment: int length, int crc32c, ops
+ *   <n>.seg    immutable segments sorted by key; a higher n is newer
+ *   MANIFEST   the live segments, newest first (a FileDatabase: replaced atomically)
+ *   LOCK       held by the process that has the store open
+ *
+ * A batch is appended to the WAL as one record (fsynced unless
+ * -Dstorage.fsync=false) and applied to the memtable, a sorted map in memory.
+ * Past -Dkv.memtable.bytes (default 1 MB) the memtable is written out as a new
+ * segment, listed in the MANIFEST, and the WAL starts over. Past
+ * -Dkv.compact.segments segments (default 4) all of them are merged into one,
+ * dropping overwritten values and deletions. Segments and the MANIFEST are
+ * written before the WAL is cleared, so a crash at any point replays to the
+ * same contents; a torn last WAL record is dropped, and segment files the
+ * MANIFEST does not list are deleted on open.
+ *
+ * A lookup tries the memtable, then the segments newest first: a segment's
+ * bloom filter skips it unless it may hold the key, and its sparse index
+ * (every INDEX_EVERY-th key) narrows the read to one block. Scans merge all
+ * of them. Reads share a lock; batches, flushes and compactions take it alone.
+ *
+ * Segment: records, then index, bloom filter and footer
+ *   record  int keyLength, key, int valueLength (-1 = deleted), value   (UTF-8)
+ *   index   int count, then per entry: int keyLength, key, long offset
+ *   bloom   int hashes, int words, long[words]
+ *   footer  long indexOffset, long bloomOffset, int records, int crc32c (of everything before it), int MAGIC
+ *
+ * Tool:
+ *   java -cp out server.util.LsmKeyValueStore export data/customers.kv data/customers.txt
+ */
+public final class LsmKeyValueStore implements KeyValueStore, Closeable {
+    private static final int MAGIC = 0x4C534D31; // "LSM1"
+    private static final int FOOTER_SIZE = 28;
+    private static final int INDEX_EVERY = 16;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+    private static final byte OP_PUT = 1, OP_DELETE = 0;
+
+    private final Path dir;
+    private final FileChannel lockFile;
+    private final FileChannel wal;
+    private final FileDatabase manifest;
+    private final long memtableLimit = Long.getLong("kv.memtable.bytes", 1 << 20);
+    private final int compactAt = Math.max(2, Integer.getInteger("kv.compact.segments", 4));
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+
+    private TreeMap<String, String> memtable = new TreeMap<>(); // null value = deleted
+    private long memtableBytes;
+    private volatile List<Segment> segments = new ArrayList<>(); // newest first, replaced not changed
+    private long nextSegment = 1;
+    private boolean closed;
+
+    private final LongAdder flushes;
+    private final LongAdder compactions;
+    private final LongAdder bloomSkips;
+
+    private LsmKeyValueStore(Path dir, String name) throws IOException {
+        this.dir = dir;
+        flushes = Metrics.counter("kv.flushes." + name);
+        compactions = Metrics.counter("kv.compactions." + name);
+        bloomSkips = Metrics.counter("kv.bloom.skips." + name);
+
+        Files.createDirectories(dir);
+        lockFile = FileChannel.open(dir.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // the memtable lives in this process: one process per store (released on close)
+        FileLock held;
+        try {
+            held = lockFile.tryLock();
+        } catch (OverlappingFileLockException e) {
+            held = null;
+        }
+        if (held == null) {
+            lockFile.close();
+            throw new IOException("In use by another process: " + dir);
+        }
+
+        manifest = new FileDatabase(dir.resolve("MANIFEST"));
+        Set<String> live = new HashSet<>();
+        for (String s : manifest.readAllLines()) {
+            if (s.isBlank()) continue;
+            segments.add(Segment.open(dir.resolve(s)));
+            live.add(s);
+            nextSegment = Math.max(nextSegment, segmentNumber(s) + 1);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path f : files) {
+                if (live.contains(f.getFileName().toString())) continue;
+                Files.delete(f); // written by a flush or compaction that did not reach the MANIFEST
+                nextSegment = Math.max(nextSegment, segmentNumber(f.getFileName().toString()) + 1);
+            }
+        }
+
+        wal = FileChannel.open(dir.resolve("wal.log"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replayWal();
+        Metrics.gauge("kv.segments." + name, () -> segments.size());
+    }
+
+    /**
+     * Opens the store in {@code dir}, creating it from {@code seed} (a
+     * "key,value" text file; "#" and blank lines are skipped) the first time.
+     * The seed file is left as it is and no longer read.
+     */
+    static LsmKeyValueStore open(Path dir, Path seed) {
+        if (FileDatabase.viaDaemon())
+            throw new IllegalStateException("-Dstorage.engine=lsm keeps data in one process; it cannot be used with -Dstorage.port");
+        try {
+            if (Files.notExists(dir) && seed != null && Files.exists(seed)) importFrom(seed, dir);
+            LsmKeyValueStore kv = new LsmKeyValueStore(dir, dir.getFileName().toString());
+            Runtime.getRuntime().addShutdownHook(new Thread(kv::close));
+            return kv;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // built next to the target and renamed, so a crash mid-import just imports again
+    private static void importFrom(Path seed, Path dir) throws IOException {
+        Path tmp = dir.resolveSibling(dir.getFileName() + ".tmp");
+        deleteTree(tmp);
+        int n;
+        try (LsmKeyValueStore kv = new LsmKeyValueStore(tmp, dir.getFileName().toString())) {
+            n = kv.atomically(b -> {
+                int count = 0;
+                for (String s : new FileDatabase(seed).readAllLines()) {
+                    int comma = s.indexOf(',');
+                    if (comma <= 0 || s.startsWith("#") || b.get(s.substring(0, comma)).isPresent()) continue;
+                    b.put(s.substring(0, comma), s.substring(comma + 1));
+                    count++;
+                }
+                return count;
+            });
+        }
+        Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+        Loggers.system().info("Imported " + n + " entries from " + seed + " into " + dir);
+    }
+
+    private static void deleteTree(Path p) throws IOException {
+        if (Files.notExists(p)) return;
+        if (Files.isDirectory(p)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(p)) {
+                for (Path f : files) deleteTree(f);
+            }
+        }
+        Files.delete(p);
+    }
+
+    // ---------- reads ----------
+
+    @Override
+    public Optional<String> get(String key) {
+        rw.readLock().lock();
+        try {
+            checkOpen();
+            return Optional.ofNullable(lookup(key));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SortedMap<String, String> scan(String from, String to) {
+        rw.readLock().lock();
+        try {
+            checkOpen();
+            return merged(from, to);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    private String lookup(String key) throws IOException {
+        if (memtable.containsKey(key)) return memtable.get(key);
+        for (Segment s : segments) {
+            if (!s.mayContain(key)) {
+                bloomSkips.increment();
+                continue;
+            }
+            Segment.Hit hit = s.find(key);
+            if (hit != null) return hit.value();
+        }
+        return null;
+    }
+
+    private TreeMap<String, String> merged(String from, String to) throws IOException {
+        TreeMap<String, String> out = new TreeMap<>();
+        for (int i = segments.size() - 1; i >= 0; i--) segments.get(i).scanInto(out, from, to); // oldest first, newer overwrite
+        out.putAll(CsvKeyValueStore.range(memtable, from, to));
+        out.values().removeIf(v -> v == null);
+        return out;
+    }
+
+    // ---------- writes ----------
+
+    @Override
+    public <T> T atomically(Function<Batch, T> work) {
+        rw.writeLock().lock();
+        try {
+            checkOpen();
+            TreeMap<String, String> writes = new TreeMap<>(); // null value = delete
+            List<ChangeLog.Change> changes = new ArrayList<>();
+            T result = work.apply(new Batch() {
+                @Override public Optional<String> get(String key) {
+                    if (writes.containsKey(key)) return Optional.ofNullable(writes.get(key));
+                    try {
+                        return Optional.ofNullable(lookup(key));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                @Override public SortedMap<String, String> scan(String from, String to) {
+                    try {
+                        TreeMap<String, String> out = merged(from, to);
+                        CsvKeyValueStore.range(writes, from, to).forEach((k, v) -> { if (v == null) out.remove(k); else out.put(k, v); });
+                        return out;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                @Override public void put(String key, String value) {
+                    KeyValueStore.checkKey(key);
+                    KeyValueStore.checkValue(value);
+                    writes.put(key, value);
+                }
+                @Override public boolean delete(String key) {
+                    boolean had = get(key).isPresent();
+                    writes.put(key, null);
+                    return had;
+                }
+                @Override public void record(ChangeLog.Change change) { changes.add(change); }
+            });
+            if (!writes.isEmpty()) {
+                appendWal(writes);
+                for (Map.Entry<String, String> e : writes.entrySet()) {
+                    memtable.put(e.getKey(), e.getValue());
+                    memtableBytes += 32 + 2L * e.getKey().length() + (e.getValue() == null ? 0 : 2L * e.getValue().length());
+                }
+                ChangeLog.append(changes); // under the write lock, like the writes
+                if (memtableBytes >= memtableLimit) flush();
+            }
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    private void appendWal(Map<String, String> writes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length and checksum, filled in below
+        out.writeInt(0);
+        for (Map.Entry<String, String> e : writes.entrySet()) {
+            out.writeByte(e.getValue() == null ? OP_DELETE : OP_PUT);
+            writeString(out, e.getKey());
+            if (e.getValue() != null) writeString(out, e.getValue());
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, record.limit() - 8);
+        record.putInt(0, record.limit() - 8).putInt(4, (int) crc.getValue());
+        long at = wal.size();
+        while (record.hasRemaining()) at += wal.write(record, at);
+        if (FileDatabase.FSYNC) wal.force(false);
+    }
+
+    private void replayWal() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) wal.size());
+        while (b.hasRemaining() && wal.read(b, b.position()) > 0) { }
+        b.flip();
+        int valid = 0;
+        while (b.remaining() >= 8) {
+            int length = b.getInt(valid), crc = b.getInt(valid + 4);
+            if (length < 0 || length > b.limit() - valid - 8) break;
+            CRC32C check = new CRC32C();
+            check.update(b.array(), valid + 8, length);
+            if ((int) check.getValue() != crc) break;
+            b.position(valid + 8);
+            int end = valid + 8 + length;
+            while (b.position() < end) {
+                byte op = b.get();
+                String key = readString(b);
+                memtable.put(key, op == OP_PUT ? readString(b) : null);
+            }
+            valid = end;
+            b.position(valid);
+        }
+        if (valid < b.limit()) {
+            Loggers.system().warning("Dropped " + (b.limit() - valid) + " bytes of an incomplete batch at the end of " + dir.resolve("wal.log"));
+            wal.truncate(valid);
+        }
+        for (Map.Entry<String, String> e : memtable.entrySet())
+            memtableBytes += 32 + 2L * e.getKey().length() + (e.getValue() == null ? 0 : 2L * e.getValue().length());
+    }
+
+    /** Writes the memtable out as the newest segment and clears the WAL. Caller holds the write lock. */
+    private void flush() throws IOException {
+        if (memtable.isEmpty()) return;
+        Path file = dir.resolve(nextSegment++ + ".seg");
+        // deletions only matter while an older segment may still hold the key
+        Segment.write(file, memtable.entrySet().iterator(), memtable.size(), !segments.isEmpty());
+        List<Segment> next = new ArrayList<>(segments.size() + 1);
+        next.add(Segment.open(file));
+        next.addAll(segments);
+        segments = next;
+        writeManifest();
+        wal.truncate(0);
+        if (FileDatabase.FSYNC) wal.force(true);
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        flushes.increment();
+        if (segments.size() > compactAt) compact();
+    }
+
+    /** Merges every segment into one. Caller holds the write lock. */
+    private void compact() throws IOException {
+        List<Segment> old = segments;
+        PriorityQueue<Segment.Cursor> heads = new PriorityQueue<>((a, b) -> {
+            int c = a.key.compareTo(b.key);
+            return c != 0 ? c : Integer.compare(a.age, b.age); // the newest segment wins a tie
+        });
+        int expected = 0;
+        for (int i = 0; i < old.size(); i++) {
+            Segment.Cursor c = old.get(i).cursor(0, i);
+            if (c.next()) heads.add(c);
+            expected += old.get(i).records;
+        }
+        Iterator<Map.Entry<String, String>> mergedEntries = new Iterator<>() {
+            @Override public boolean hasNext() { return !heads.isEmpty(); }
+            @Override public Map.Entry<String, String> next() {
+                try {
+                    Segment.Cursor top = heads.poll();
+                    Map.Entry<String, String> e = new java.util.AbstractMap.SimpleImmutableEntry<>(top.key, top.value);
+                    if (top.next()) heads.add(top);
+                    while (!heads.isEmpty() && heads.peek().key.equals(e.getKey())) { // older versions of the same key
+                        Segment.Cursor dup = heads.poll();
+                        if (dup.next()) heads.add(dup);
+                    }
+                    return e;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+        Path file = dir.resolve(nextSegment++ + ".seg");
+        Segment.write(file, mergedEntries, expected, false);
+        segments = new ArrayList<>(List.of(Segment.open(file)));
+        writeManifest();
+        for (Segment s : old) {
+            s.close();
+            Files.deleteIfExists(s.file);
+        }
+        compactions.increment();
+        Loggers.system().info("Compacted " + old.size() + " segments of " + dir + " into " + file.getFileName());
+    }
+
+    private void writeManifest() {
+        List<String> names = new ArrayList<>(segments.size());
+        for (Segment s : segments) names.add(s.file.getFileName().toString());
+        manifest.writeAllLines(names);
+    }
+
+    /** Writes the memtable to a segment and releases the store. */
+    @Override
+    public void close() {
+        rw.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            flush();
+            for (Segment s : segments) s.close();
+            wal.close();
+            lockFile.close();
+        } catch (IOException e) {
+            Loggers.system().warning("Closing " + dir + " failed: " + e.getMessage());
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Closed: " + dir);
+    }
+
+    private static long segmentNumber(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('.')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer b) {
+        int n = b.getInt();
+        String s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+        b.position(b.position() + n);
+        return s;
+    }
+
+    // ---------- segments ----------
+
+    private static final class Segment implements Closeable {
+        record Hit(String value) {} // value null = deleted here
+
+        final Path file;
+        final FileChannel ch;
+        final int records;
+        final long dataEnd;
+        final String[] indexKeys;
+        final long[] indexOffsets;
+        final long[] bloom;
+        final int hashes;
+
+        private Segment(Path file, FileChannel ch, int records, long dataEnd, String[] indexKeys, long[] indexOffsets,
+                        long[] bloom, int hashes) {
+            this.file = file;
+            this.ch = ch;
+            this.records = records;
+            this.dataEnd = dataEnd;
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.bloom = bloom;
+            this.hashes = hashes;
+        }
+
+        static void write(Path file, Iterator<Map.Entry<String, String>> entries, int expected, boolean keepDeletes)
+                throws IOException {
+            long[] bloom = new long[Math.max(1, (expected * BLOOM_BITS_PER_KEY + 63) / 64)];
+            List<String> indexKeys = new ArrayList<>();
+            List<Long> indexOffsets = new ArrayList<>();
+            int records = 0;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                CheckedOutputStream checked = new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024), new CRC32C());
+                DataOutputStream out = new DataOutputStream(checked);
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> e = entries.next();
+                    if (e.getValue() == null && !keepDeletes) continue;
+                    if (records % INDEX_EVERY == 0) {
+                        indexKeys.add(e.getKey());
+                        indexOffsets.add((long) out.size());
+                    }
+                    writeString(out, e.getKey());
+                    if (e.getValue() == null) {
+                        out.writeInt(-1);
+                    } else {
+                        writeString(out, e.getValue());
+                    }
+                    addToBloom(bloom, e.getKey());
+                    records++;
+                }
+                long indexOffset = out.size();
+                out.writeInt(indexKeys.size());
+                for (int i = 0; i < indexKeys.size(); i++) {
+                    writeString(out, indexKeys.get(i));
+                    out.writeLong(indexOffsets.get(i));
+                }
+                long bloomOffset = out.size();
+                out.writeInt(BLOOM_HASHES);
+                out.writeInt(bloom.length);
+                for (long w : bloom) out.writeLong(w);
+                out.writeLong(indexOffset);
+                out.writeLong(bloomOffset);
+                out.writeInt(records);
+                out.flush();
+                out.writeInt((int) checked.getChecksum().getValue());
+                out.writeInt(MAGIC);
+                out.flush();
+                if (FileDatabase.FSYNC) ch.force(true);
+            }
+        }
+
+        static Segment open(Path file) throws IOException {
+            FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long size = ch.size();
+                if (size < FOOTER_SIZE) throw new IOException("Corrupt segment (too short): " + file);
+                ByteBuffer footer = read(ch, size - FOOTER_SIZE, FOOTER_SIZE);
+                long indexOffset = footer.getLong(), bloomOffset = footer.getLong();
+                int records = footer.getInt(), crc = footer.getInt();
+                if (footer.getInt() != MAGIC) throw new IOException("Not a segment: " + file);
+
+                CRC32C check = new CRC32C();
+                ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+                for (long pos = 0, end = size - FOOTER_SIZE; pos < end; ) {
+                    chunk.clear().limit((int) Math.min(chunk.capacity(), end - pos));
+                    int n = ch.read(chunk, pos);
+                    if (n < 0) throw new IOException("Corrupt segment (short read): " + file);
+                    chunk.flip();
+                    check.update(chunk);
+                    pos += n;
+                }
+                check.update(read(ch, size - FOOTER_SIZE, 20)); // the footer up to its checksum
+                if ((int) check.getValue() != crc) throw new IOException("Corrupt segment (checksum mismatch): " + file);
+
+                ByteBuffer index = read(ch, indexOffset, (int) (bloomOffset - indexOffset));
+                int n = index.getInt();
+                String[] keys = new String[n];
+                long[] offsets = new long[n];
+                for (int i = 0; i < n; i++) {
+                    keys[i] = readString(index);
+                    offsets[i] = index.getLong();
+                }
+                ByteBuffer b = read(ch, bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset));
+                int hashes = b.getInt();
+                long[] bloom = new long[b.getInt()];
+                for (int i = 0; i < bloom.length; i++) bloom[i] = b.getLong();
+                return new Segment(file, ch, records, indexOffset, keys, offsets, bloom, hashes);
+            } catch (IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+        }
+
+        boolean mayContain(String key) {
+            long h = mix(key.hashCode());
+            int h1 = (int) h, h2 = (int) (h >>> 32);
+            long bits = (long) bloom.length * 64;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bits);
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        private static void addToBloom(long[] bloom, String key) {
+            long h = mix(key.hashCode());
+            int h1 = (int) h, h2 = (int) (h >>> 32);
+            long bits = (long) bloom.length * 64;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bits);
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        // String.hashCode is fixed by the spec, so filters stay valid across JVMs; this spreads it to 64 bits
+        private static long mix(int hash) {
+            long z = hash * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        /** The key's entry in this segment, or null if it has none. */
+        Hit find(String key) throws IOException {
+            int block = floorBlock(key);
+            if (block < 0) return null;
+            long start = indexOffsets[block], end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+            ByteBuffer b = read(ch, start, (int) (end - start));
+            while (b.hasRemaining()) {
+                String k = readString(b);
+                int n = b.getInt();
+                int c = k.compareTo(key);
+                if (c == 0) {
+                    if (n < 0) return new Hit(null);
+                    return new Hit(new String(b.array(), b.position(), n, StandardCharsets.UTF_8));
+                }
+                if (c > 0) return null;
+                if (n > 0) b.position(b.position() + n);
+            }
+            return null;
+        }
+
+        /** Puts this segment's entries in [from, to) into {@code out}, deletions as null values. */
+        void scanInto(TreeMap<String, String> out, String from, String to) throws IOException {
+            int block = from == null ? 0 : Math.max(0, floorBlock(from));
+            if (indexOffsets.length == 0) return;
+            Cursor c = cursor(indexOffsets[block], 0);
+            while (c.next()) {
+                if (from != null && c.key.compareTo(from) < 0) continue;
+                if (to != null && c.key.compareTo(to) >= 0) break;
+                out.put(c.key, c.value);
+            }
+        }
+
+        // the last index entry with a key <= key, or -1 if key sorts before the segment
+        private int floorBlock(String key) {
+            int i = Arrays.binarySearch(indexKeys, key);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        Cursor cursor(long from, int age) { return new Cursor(from, age); }
+
+        /** Reads records in order from an offset. */
+        final class Cursor {
+            final int age; // position in the newest-first list, for compaction
+            private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024).limit(0);
+            private long base; // file offset of buf[0]
+            String key;
+            String value;
+
+            Cursor(long from, int age) {
+                this.base = from;
+                this.age = age;
+            }
+
+            boolean next() throws IOException {
+                if (base + buf.position() >= dataEnd) return false;
+                key = new String(bytes(readInt()), StandardCharsets.UTF_8);
+                int n = readInt();
+                value = n < 0 ? null : new String(bytes(n), StandardCharsets.UTF_8);
+                return true;
+            }
+
+            private int readInt() throws IOException {
+                fill(4);
+                return buf.getInt();
+            }
+
+            private byte[] bytes(int n) throws IOException {
+                byte[] out = new byte[n];
+                for (int done = 0; done < n; ) {
+                    fill(1);
+                    int k = Math.min(n - done, buf.remaining());
+                    buf.get(out, done, k);
+                    done += k;
+                }
+                return out;
+            }
+
+            // makes at least n (at most 4) bytes available, reading on up to the buffer's size
+            private void fill(int n) throws IOException {
+                if (buf.remaining() >= n) return;
+                base += buf.position();
+                buf.compact();
+                buf.limit(buf.position() + (int) Math.min(buf.remaining(), dataEnd - base - buf.position()));
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, base + buf.position()) < 0) throw new IOException("Corrupt segment (short read): " + file);
+                }
+                buf.flip();
+                if (buf.remaining() < n) throw new IOException("Corrupt segment (record past the data): " + file);
+            }
+        }
+
+        private static ByteBuffer read(FileChannel ch, long pos, int n) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(n);
+            while (b.hasRemaining()) {
+                if (ch.read(b, pos + b.position()) < 0) throw new IOException("Unexpected end of segment");
+            }
+            return b.flip();
+        }
+
+        @Override
+        public void close() throws IOException { ch.close(); }
+    }
+
+    // ---------- tool ----------
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !"export".equals(args[0])) {
+            System.err.println("Usage: LsmKeyValueStore export <dir.kv> <file.txt>");
+            System.exit(2);
+        }
+        try (LsmKeyValueStore kv = new LsmKeyValueStore(Path.of(args[1]), Path.of(args[1]).getFileName().toString())) {
+            List<String> lines = new ArrayList<>();
+            kv.all().forEach((k, v) -> lines.add(k + "," + v));
+            new FileDatabase(Path.of(args[2])).writeAllLines(lines);
+            System.out.println("Exported " + lines.size() + " entries to " + args[2]);
+        }
+    }
+}
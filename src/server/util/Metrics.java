@@ -0,0 +1,104 @@
+package server.util;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry: counters, gauges and latency histograms.
+ *
+ * Names are dotted (e.g. store.cmd.SELL, file.write.products/HOLON.txt). Hot
+ * paths should keep the returned LongAdder / LatencyHistogram in a field (or a
+ * map from histograms(), for one per command) rather than looking it up per
+ * call.
+ *
+ * render() produces one metric per line:
+ *   counter   store.connections.total 12
+ *   gauge     chat.sessions 3
+ *   histogram store.cmd.SELL count=40 mean_us=812 p50_us=640 p90_us=1400 p99_us=5100 max_us=7300
+ * which is what the STATS admin command and the HTTP endpoint return.
+ */
+public final class Metrics {
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /** The histogram "<prefix><name>" for each of {@code names}, by name. */
+    public static Map<String, LatencyHistogram> histograms(String prefix, Collection<String> names) {
+        Map<String, LatencyHistogram> m = new HashMap<>();
+        for (String name : names) m.put(name, histogram(prefix + name));
+        return Map.copyOf(m);
+    }
+
+    public static List<String> render() {
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+            out.add("counter " + e.getKey() + " " + e.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> e : new TreeMap<>(gauges).entrySet()) {
+            long v;
+            try { v = e.getValue().getAsLong(); } catch (RuntimeException ex) { v = -1; }
+            out.add("gauge " + e.getKey() + " " + v);
+        }
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            out.add("histogram " + e.getKey()
+                    + " count=" + h.count()
+                    + " mean_us=" + h.mean() / 1000
+                    + " p50_us=" + h.percentile(0.50) / 1000
+                    + " p90_us=" + h.percentile(0.90) / 1000
+                    + " p99_us=" + h.percentile(0.99) / 1000
+                    + " max_us=" + h.max() / 1000);
+        }
+        return out;
+    }
+
+    /**
+     * Serves render() as text/plain on http://127.0.0.1:<port>/metrics.
+     * Bound to loopback only; port <= 0 disables the endpoint.
+     */
+    public static void startHttpEndpoint(int port) {
+        if (port <= 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = (String.join("\n", render()) + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) { os.write(body); }
+            });
+            http.start();
+            Loggers.system().info("Metrics endpoint on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            Loggers.system().warning("Metrics endpoint not started on port " + port + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package server.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only text file with size/day based rotation.
+ *
+ * The live file keeps its name (e.g. logs/chat/messages.txt) and stays open in
+ * append mode, so every append is a single write regardless of history size.
+ * When it exceeds maxBytes or the calendar day changes it is moved to
+ *   archive/<name>-yyyy-MM-dd.<n>.txt
+ * and gzipped in the background. Archives older than retentionDays, or beyond
+ * maxArchives, are deleted.
+ */
+public class RollingFile {
+    // one shared background thread for compression + retention of all rolling files
+    private static final ExecutorService housekeeping = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-housekeeping");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path file;
+    private final Path archiveDir;
+    private final String baseName;
+    private final String header;
+    private final long maxBytes;
+    private final int retentionDays;
+    private final int maxArchives;
+
+    private FileChannel channel;
+    private long size;
+    private LocalDate day;
+
+    // reused for every append (guarded by this)
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+    public RollingFile(Path file, String header, long maxBytes, int retentionDays, int maxArchives) {
+        this.file = file;
+        this.archiveDir = file.toAbsolutePath().getParent().resolve("archive");
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.baseName = dot > 0 ? name.substring(0, dot) : name;
+        this.header = header;
+        this.maxBytes = maxBytes;
+        this.retentionDays = retentionDays;
+        this.maxArchives = maxArchives;
+        // archives left uncompressed by a previous run (e.g. killed mid-gzip)
+        housekeeping.submit(this::housekeep);
+    }
+
+    public Path path() { return file; }
+
+    public synchronized void append(CharSequence entry) throws IOException {
+        if (channel == null) open();
+        if (size >= maxBytes || !LocalDate.now().equals(day)) {
+            roll();
+            open();
+        }
+        ByteBuffer buf = encode(entry);
+        while (buf.hasRemaining()) size += channel.write(buf);
+    }
+
+    private ByteBuffer encode(CharSequence entry) {
+        int max = (int) Math.ceil(entry.length() * (double) encoder.maxBytesPerChar());
+        if (bytes.capacity() < max) bytes = ByteBuffer.allocate(Math.max(max, bytes.capacity() * 2));
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(entry), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try { channel.close(); } catch (IOException ignored) {}
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        boolean existed = Files.exists(file) && Files.size(file) > 0;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!existed && header != null) {
+            channel.write(ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+        size = channel.size();
+        // a file reopened after a restart belongs to the day it was last written
+        day = existed
+                ? LocalDate.ofInstant(Files.getLastModifiedTime(file).toInstant(), ZoneId.systemDefault())
+                : LocalDate.now();
+    }
+
+    private void roll() throws IOException {
+        close();
+        Files.createDirectories(archiveDir);
+        int n = 1;
+        Path target;
+        do {
+            target = archiveDir.resolve(baseName + "-" + day + "." + n++ + ".txt");
+        } while (Files.exists(target) || Files.exists(gzipName(target)));
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        housekeeping.submit(this::housekeep);
+    }
+
+    /** Compress pending archives and apply the retention policy. */
+    private void housekeep() {
+        if (!Files.isDirectory(archiveDir)) return;
+        try {
+            for (Path p : archives()) {
+                if (p.getFileName().toString().endsWith(".txt")) gzip(p);
+            }
+            List<Path> archives = archives();
+            archives.sort(Comparator.comparing(this::lastModified).reversed());
+            Instant cutoff = Instant.now().minus(retentionDays, ChronoUnit.DAYS);
+            for (int i = 0; i < archives.size(); i++) {
+                Path p = archives.get(i);
+                if (i >= maxArchives || lastModified(p).isBefore(cutoff)) Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            Loggers.system().warning("Log housekeeping failed for " + file.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private List<Path> archives() throws IOException {
+        List<Path> out = new ArrayList<>();
+        try (Stream<Path> files = Files.list(archiveDir)) {
+            files.filter(p -> p.getFileName().toString().startsWith(baseName + "-"))
+                 .filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                 .forEach(out::add);
+        }
+        return out;
+    }
+
+    private void gzip(Path p) throws IOException {
+        Path gz = gzipName(p);
+        Path tmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+        try (InputStream in = Files.newInputStream(p);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+            in.transferTo(out);
+        }
+        Files.setLastModifiedTime(tmp, Files.getLastModifiedTime(p));
+        Files.move(tmp, gz, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(p);
+    }
+
+    private static Path gzipName(Path p) { return p.resolveSibling(p.getFileName() + ".gz"); }
+
+    private Instant lastModified(Path p) {
+        try { return Files.getLastModifiedTime(p).toInstant(); }
+        catch (IOException e) { return Instant.EPOCH; }
+    }
+}
@@ -0,0 +1,200 @@
+package server.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Warm start: resident data (inventory tables, key-value caches, the sales
+ * cube) saved together as one binary image, data/snapshot.bin
+ * (-Dsnapshot.file), every -Dsnapshot.seconds (default 60, 0 = never) and at
+ * shutdown.
+ *
+ * A part registers under a name and writes its state together with the
+ * FileDatabase.Stamp of the file it came from. At startup the image is read
+ * with one sequential read and each part takes its section back: if the
+ * file still matches the stamp the state is used as is; if the file only
+ * grew by appends (the sales ledger) just those lines are replayed; otherwise
+ * the part reads its file as before. A missing or damaged image only means a
+ * cold start.
+ *
+ * Image: int MAGIC, int FORMAT, long savedAtMillis, int sections,
+ *        per section: UTF name, int length, bytes; then int crc32c of all before.
+ */
+public final class Snapshots {
+    /** Writes one part's state; returns false to leave it out of this image (e.g. its memory is behind its file). */
+    public interface Part {
+        boolean save(DataOutputStream out) throws IOException;
+    }
+
+    /** Reads one part's state back; returns false if it no longer matches the part's file. */
+    public interface Restorer {
+        boolean restore(DataInputStream in) throws IOException;
+    }
+
+    private static final int MAGIC = 0x534E4150; // "SNAP"
+    private static final int FORMAT = 1;
+    private static final Path FILE = Path.of(System.getProperty("snapshot.file", "data/snapshot.bin"));
+
+    private static final Map<String, Part> parts = new LinkedHashMap<>();
+    private static Map<String, byte[]> image; // sections not taken yet; loaded on first restore()
+    private static int restored;
+    private static final Object saving = new Object(); // the timer and the shutdown hook may overlap
+    private static final LatencyHistogram saveTime = Metrics.histogram("snapshot.save");
+
+    private Snapshots() {}
+
+    public static synchronized void register(String name, Part part) {
+        parts.put(name, part);
+    }
+
+    /**
+     * Hands the saved state of part {@code name} to {@code restorer}, which
+     * returns false if it is out of date. Returns true if the part was
+     * restored; false means the caller loads it from its file.
+     */
+    public static boolean restore(String name, Restorer restorer) {
+        byte[] b;
+        synchronized (Snapshots.class) {
+            if (image == null) image = load();
+            b = image.remove(name); // each section is handed out once
+        }
+        if (b == null) return false;
+        try {
+            if (!restorer.restore(new DataInputStream(new ByteArrayInputStream(b)))) {
+                Loggers.system().info("Snapshot of " + name + " is out of date; reading its file");
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            Loggers.system().warning("Snapshot of " + name + " unusable: " + e.getMessage());
+            return false;
+        }
+        synchronized (Snapshots.class) {
+            restored++;
+        }
+        return true;
+    }
+
+    /** Ends startup (sections nobody asked for are dropped) and starts the periodic saves. */
+    public static synchronized void start() {
+        Loggers.system().info("Warm start: " + restored + " of " + parts.size() + " parts restored from " + FILE);
+        image = new HashMap<>();
+        long every = Long.getLong("snapshot.seconds", 60);
+        if (every <= 0) return;
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        saver.scheduleWithFixedDelay(Snapshots::saveQuietly, every, every, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(Snapshots::saveQuietly));
+    }
+
+    private static void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            Loggers.system().warning("Snapshot not saved: " + e.getMessage());
+        }
+    }
+
+    /** Writes the image now; returns the number of parts in it. */
+    public static int save() throws IOException {
+        synchronized (saving) {
+            return saveLocked();
+        }
+    }
+
+    private static int saveLocked() throws IOException {
+        long t0 = System.nanoTime();
+        Map<String, Part> current;
+        synchronized (Snapshots.class) {
+            current = new LinkedHashMap<>(parts);
+        }
+        Map<String, byte[]> sections = new LinkedHashMap<>();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (Map.Entry<String, Part> e : current.entrySet()) {
+            buf.reset();
+            try {
+                if (e.getValue().save(new DataOutputStream(buf))) sections.put(e.getKey(), buf.toByteArray());
+            } catch (IOException | RuntimeException ex) {
+                Loggers.system().warning("Snapshot of " + e.getKey() + " skipped: " + ex.getMessage());
+            }
+        }
+        if (sections.isEmpty()) return 0;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(sections.size());
+        for (Map.Entry<String, byte[]> e : sections.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().length);
+            out.write(e.getValue());
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        // several server processes may share data/: each writes its own temp file, the last rename wins
+        Path dir = FILE.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve("." + FILE.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+            while (b.hasRemaining()) ch.write(b);
+            if (FileDatabase.FSYNC) ch.force(true);
+        }
+        Files.move(tmp, FILE, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (FileDatabase.FSYNC) FileDatabase.syncDirectory(dir);
+        saveTime.recordSince(t0);
+        return sections.size();
+    }
+
+    private static Map<String, byte[]> load() {
+        Map<String, byte[]> out = new HashMap<>();
+        if (Files.notExists(FILE)) return out;
+        try {
+            byte[] b = Files.readAllBytes(FILE); // the whole image in one read
+            ByteBuffer in = ByteBuffer.wrap(b);
+            CRC32C crc = new CRC32C();
+            crc.update(b, 0, Math.max(0, b.length - 4));
+            if (b.length < 24 || in.getInt(0) != MAGIC || in.getInt(4) != FORMAT || in.getInt(b.length - 4) != (int) crc.getValue()) {
+                Loggers.system().warning("Ignoring damaged or old snapshot " + FILE);
+                return out;
+            }
+            in.position(16);
+            int n = in.getInt();
+            for (int i = 0; i < n; i++) {
+                byte[] name = new byte[in.getShort() & 0xFFFF];
+                in.get(name);
+                byte[] section = new byte[in.getInt()];
+                in.get(section);
+                out.put(new String(name, StandardCharsets.UTF_8), section); // writeUTF: plain UTF-8 for these names
+            }
+        } catch (IOException | RuntimeException e) {
+            Loggers.system().warning("Ignoring unreadable snapshot " + FILE + ": " + e.getMessage());
+            out.clear();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,15 @@
+package server.util;
+
+import java.nio.file.Path;
+
+/**
+ * A conditional write found that another process changed the file since it
+ * was read. Nothing was written; reload and try again.
+ */
+public class StaleDataException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public StaleDataException(Path path) {
+        super("Changed by another process: " + path);
+    }
+}
@@ -0,0 +1,144 @@
+package server.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * FileDatabase's connection to the StorageDaemon (see server.app.StorageDaemon
+ * for the protocol). Connections are opened on demand and up to IDLE_MAX of
+ * them are kept for reuse, so concurrent sessions do not queue behind one
+ * socket. A request is never retried: a write may have been applied before
+ * the connection broke, so the caller gets an UncheckedIOException instead.
+ */
+final class StorageClient {
+    private static final int IDLE_MAX = 16;
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final int port;
+    private final BlockingQueue<Connection> idle = new ArrayBlockingQueue<>(IDLE_MAX);
+
+    private StorageClient(int port) { this.port = port; }
+
+    /** The client for -Dstorage.port, or null when files are accessed directly. */
+    static StorageClient fromConfig() {
+        int port = Integer.getInteger("storage.port", 0);
+        return port > 0 ? new StorageClient(port) : null;
+    }
+
+    FileDatabase.Contents read(Path path) {
+        return call(c -> {
+            c.send("READ " + name(path));
+            String head = c.expect("VERSION ");
+            List<String> lines = new ArrayList<>();
+            for (String s = c.in.readLine(); ; s = c.in.readLine()) {
+                if (s == null) throw new IOException("storage daemon closed the connection");
+                if (s.startsWith("LINE ")) lines.add(s.substring(5));
+                else if (s.equals("OK END")) break;
+                else throw new IOException("storage daemon: " + s);
+            }
+            return new FileDatabase.Contents(Long.parseLong(head), lines);
+        }, path);
+    }
+
+    long write(Path path, List<String> lines, long expectedVersion, List<ChangeLog.Change> changes) {
+        return call(c -> {
+            c.out.write("WRITE " + name(path) + " " + (expectedVersion < 0 ? "*" : String.valueOf(expectedVersion))
+                    + " " + lines.size() + (changes.isEmpty() ? "" : " " + changes.size()) + "\n");
+            for (String s : lines) c.out.write("LINE " + s + "\n");
+            for (ChangeLog.Change ch : changes) c.out.write("CHANGE " + ch.toLine() + "\n");
+            c.out.flush();
+            return Long.parseLong(c.expect("OK "));
+        }, path);
+    }
+
+    long append(Path path, String line) {
+        return call(c -> {
+            c.send("APPEND " + name(path) + " " + line);
+            return Long.parseLong(c.expect("OK "));
+        }, path);
+    }
+
+    long version(Path path) {
+        return call(c -> {
+            c.send("STAT " + name(path));
+            return Long.parseLong(c.expect("OK "));
+        }, path);
+    }
+
+    // ---------- connections ----------
+
+    private interface Request<T> {
+        T run(Connection c) throws IOException;
+    }
+
+    private <T> T call(Request<T> request, Path path) {
+        Connection c = idle.poll();
+        try {
+            if (c == null) c = new Connection(port);
+            T result = request.run(c);
+            if (!idle.offer(c)) c.close();
+            return result;
+        } catch (StaleDataException e) {
+            if (!idle.offer(c)) c.close(); // a normal reply: the connection is fine
+            throw new StaleDataException(path);
+        } catch (IOException | RuntimeException e) {
+            if (c != null) c.close();
+            if (e instanceof UncheckedIOException u) throw u;
+            throw new UncheckedIOException(new IOException("storage daemon on port " + port + ": " + e.getMessage(), e));
+        }
+    }
+
+    // paths travel relative to the working directory the daemon and the front ends share
+    private static String name(Path path) {
+        String s = path.toString().replace('\\', '/');
+        if (s.indexOf(' ') >= 0) throw new IllegalArgumentException("No spaces in storage paths: " + s);
+        return s;
+    }
+
+    private static final class Connection implements Closeable {
+        final Socket socket;
+        final BufferedReader in;
+        final BufferedWriter out;
+
+        Connection(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        /** Reads one reply line starting with {@code prefix}; returns the rest. "ERR STALE" becomes StaleDataException. */
+        String expect(String prefix) throws IOException {
+            String s = in.readLine();
+            if (s == null) throw new IOException("storage daemon closed the connection");
+            if (s.startsWith(prefix)) return s.substring(prefix.length());
+            if (s.startsWith("ERR STALE")) throw new StaleDataException(null);
+            throw new IOException("storage daemon: " + s);
+        }
+
+        @Override
+        public void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
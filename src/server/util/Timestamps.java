@@ -0,0 +1,35 @@
+package server.util;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * "yyyy-MM-dd HH:mm:ss" for the current second, formatted at most once per second
+ * no matter how many log lines ask for it.
+ */
+public final class Timestamps {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final class Cached {
+        final long second;
+        final String text;
+        Cached(long second, String text) { this.second = second; this.text = text; }
+    }
+
+    private static volatile Cached cached = new Cached(Long.MIN_VALUE, "");
+
+    private Timestamps() {}
+
+    public static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Cached c = cached;
+        if (c.second != second) {
+            c = new Cached(second, LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZONE).format(FORMAT));
+            cached = c;
+        }
+        return c.text;
+    }
+}